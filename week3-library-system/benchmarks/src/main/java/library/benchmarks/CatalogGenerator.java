@@ -0,0 +1,73 @@
+package library.benchmarks;
+
+import library.Book;
+import library.Member;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds synthetic catalogs of any size for the benchmarks.
+ *
+ * Uses a fixed seed so every run sees the same data. Titles are drawn from a
+ * small vocabulary so searches have realistic hit counts, and authors repeat
+ * the way they do in a real catalog.
+ */
+public class CatalogGenerator {
+    private static final String[] WORDS = {
+            "the", "great", "life", "circle", "river", "night", "garden", "war", "peace", "house",
+            "shadow", "winter", "silent", "journey", "city", "golden", "lost", "empire", "storm", "light",
+            "ocean", "secret", "mountain", "history", "stone", "fire", "glass", "dream", "road", "kingdom"
+    };
+    private static final int AUTHORS = 5000;
+
+    private final Random random = new Random(42);
+
+    public static String bookId(int index) {
+        return "B" + index;
+    }
+
+    public static String memberId(int index) {
+        return "M" + index;
+    }
+
+    public List<Book> books(int count) {
+        List<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            books.add(new Book(bookId(i), title(), "Author " + random.nextInt(AUTHORS), "978-" + (1_000_000_000L + i)));
+        }
+        return books;
+    }
+
+    public List<Member> members(int count) {
+        List<Member> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Member member = new Member(memberId(i), "Member " + i, "member" + i + "@example.com", "555-" + (1000 + i % 9000));
+            if (i % 4 == 0) {
+                member.borrowBook(bookId(random.nextInt(Math.max(1, count))));
+            }
+            members.add(member);
+        }
+        return members;
+    }
+
+    /**
+     * Returns a random word from the title vocabulary.
+     */
+    public String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private String title() {
+        int words = 2 + random.nextInt(3);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(word());
+        }
+        return sb.toString();
+    }
+}
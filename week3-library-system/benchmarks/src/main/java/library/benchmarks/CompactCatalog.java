@@ -0,0 +1,321 @@
+package library.benchmarks;
+
+import library.Book;
+import library.Catalog;
+import library.Member;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-oriented layout of a catalog, for {@link MemoryCheck} to compare
+ * with the object model. It holds the same fields as {@link Book} and
+ * {@link Member}, but has no loan rules of its own: circulation stays in
+ * {@link library.Library}.
+ *
+ * Instead of one object per record, each field is kept in its own array and a
+ * record is just a row number:
+ * <ul>
+ *   <li>book IDs, titles and ISBNs in String arrays;</li>
+ *   <li>authors dictionary-encoded: each book keeps an int code into a table
+ *       of distinct author names;</li>
+ *   <li>copies and copies on the shelf in int arrays, and barcodes joined
+ *       with ';' as in the CSV file, null for books without any;</li>
+ *   <li>each member's loans as an int array of book rows, shared empty array
+ *       for members without loans.</li>
+ * </ul>
+ * IDs are found through open-addressing tables of row numbers, so the index
+ * holds no entry objects or boxed integers.
+ *
+ * {@link #findBookById(String)} and {@link #findMemberById(String)} return
+ * {@link Book} and {@link Member} copies built from the columns, e.g. to
+ * check that nothing was lost. Records cannot be changed or removed, and
+ * the store is not thread-safe: it is built and read by one thread.
+ */
+public class CompactCatalog {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int[] NO_BOOKS = new int[0];
+
+    private int bookCount;
+    private String[] bookIds = new String[INITIAL_CAPACITY];
+    private String[] titles = new String[INITIAL_CAPACITY];
+    private String[] isbns = new String[INITIAL_CAPACITY];
+    private int[] authorCodes = new int[INITIAL_CAPACITY];
+    private int[] copies = new int[INITIAL_CAPACITY];
+    private int[] onShelf = new int[INITIAL_CAPACITY];
+    private String[] barcodes = new String[INITIAL_CAPACITY];
+    private final IdTable bookRows = new IdTable();
+
+    private final List<String> authorNames = new ArrayList<>();
+    private final Map<String, Integer> authorCodesByName = new HashMap<>();
+
+    private int memberCount;
+    private String[] memberIds = new String[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] emails = new String[INITIAL_CAPACITY];
+    private String[] phones = new String[INITIAL_CAPACITY];
+    private int[][] loans = new int[INITIAL_CAPACITY][];
+    private final IdTable memberRows = new IdTable();
+
+    /**
+     * Copies all books and members of a catalog into a new compact store.
+     */
+    public static CompactCatalog of(Catalog catalog) {
+        return of(catalog.getBooks(), catalog.getMembers());
+    }
+
+    /**
+     * Builds a compact store from loaded records. Books must come first so
+     * that members' loans can refer to them.
+     */
+    public static CompactCatalog of(List<Book> books, List<Member> members) {
+        CompactCatalog compact = new CompactCatalog();
+        for (Book book : books) {
+            if (!compact.addBook(book)) {
+                System.err.println("Skipping duplicate book ID: " + book.getId());
+            }
+        }
+        for (Member member : members) {
+            if (!compact.addMember(member)) {
+                System.err.println("Skipping duplicate member ID: " + member.getId());
+            }
+        }
+        return compact;
+    }
+
+    /**
+     * Adds a book. Returns false if a book with the same ID already exists.
+     */
+    public boolean addBook(Book book) {
+        if (bookRows.find(book.getId(), bookIds) >= 0) {
+            return false;
+        }
+        if (bookCount == bookIds.length) {
+            int capacity = bookCount * 2;
+            bookIds = Arrays.copyOf(bookIds, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            isbns = Arrays.copyOf(isbns, capacity);
+            authorCodes = Arrays.copyOf(authorCodes, capacity);
+            copies = Arrays.copyOf(copies, capacity);
+            onShelf = Arrays.copyOf(onShelf, capacity);
+            barcodes = Arrays.copyOf(barcodes, capacity);
+        }
+        int row = bookCount++;
+        bookIds[row] = book.getId();
+        titles[row] = book.getTitle();
+        isbns[row] = book.getIsbn();
+        authorCodes[row] = authorCode(book.getAuthor());
+        copies[row] = book.getCopies();
+        onShelf[row] = book.getAvailableCopies();
+        barcodes[row] = book.getBarcodes().isEmpty() ? null : String.join(";", book.getBarcodes());
+        bookRows.insert(book.getId(), row, bookIds);
+        return true;
+    }
+
+    /**
+     * Adds a member. Returns false if a member with the same ID already exists.
+     * Borrowed book IDs that are not in the store are dropped with a warning.
+     */
+    public boolean addMember(Member member) {
+        if (memberRows.find(member.getId(), memberIds) >= 0) {
+            return false;
+        }
+        if (memberCount == memberIds.length) {
+            int capacity = memberCount * 2;
+            memberIds = Arrays.copyOf(memberIds, capacity);
+            names = Arrays.copyOf(names, capacity);
+            emails = Arrays.copyOf(emails, capacity);
+            phones = Arrays.copyOf(phones, capacity);
+            loans = Arrays.copyOf(loans, capacity);
+        }
+        int row = memberCount++;
+        memberIds[row] = member.getId();
+        names[row] = member.getName();
+        emails[row] = member.getEmail();
+        phones[row] = member.getPhone();
+        loans[row] = NO_BOOKS;
+        for (String bookId : member.getBorrowedBookIds()) {
+            int bookRow = bookRows.find(bookId, bookIds);
+            if (bookRow < 0) {
+                System.err.println("Skipping unknown book " + bookId + " borrowed by member " + member.getId());
+                continue;
+            }
+            loans[row] = withBook(loans[row], bookRow);
+        }
+        memberRows.insert(member.getId(), row, memberIds);
+        return true;
+    }
+
+    /**
+     * Finds a book by ID, or returns null if there is none.
+     */
+    public Book findBookById(String id) {
+        int row = bookRows.find(id, bookIds);
+        return row < 0 ? null : bookAt(row);
+    }
+
+    /**
+     * Finds a member by ID, or returns null if there is none.
+     */
+    public Member findMemberById(String id) {
+        int row = memberRows.find(id, memberIds);
+        return row < 0 ? null : memberAt(row);
+    }
+
+    /**
+     * Returns all books as copies, in insertion order.
+     */
+    public List<Book> getBooks() {
+        List<Book> result = new ArrayList<>(bookCount);
+        for (int row = 0; row < bookCount; row++) {
+            result.add(bookAt(row));
+        }
+        return result;
+    }
+
+    /**
+     * Returns all members as copies, in insertion order.
+     */
+    public List<Member> getMembers() {
+        List<Member> result = new ArrayList<>(memberCount);
+        for (int row = 0; row < memberCount; row++) {
+            result.add(memberAt(row));
+        }
+        return result;
+    }
+
+    public int getBookCount() {
+        return bookCount;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    /**
+     * Returns the number of distinct author names.
+     */
+    public int getAuthorCount() {
+        return authorNames.size();
+    }
+
+    /**
+     * Shrinks the column arrays to their contents, e.g. after a bulk load.
+     */
+    public void trimToSize() {
+        bookIds = Arrays.copyOf(bookIds, Math.max(bookCount, 1));
+        titles = Arrays.copyOf(titles, bookIds.length);
+        isbns = Arrays.copyOf(isbns, bookIds.length);
+        authorCodes = Arrays.copyOf(authorCodes, bookIds.length);
+        copies = Arrays.copyOf(copies, bookIds.length);
+        onShelf = Arrays.copyOf(onShelf, bookIds.length);
+        barcodes = Arrays.copyOf(barcodes, bookIds.length);
+        memberIds = Arrays.copyOf(memberIds, Math.max(memberCount, 1));
+        names = Arrays.copyOf(names, memberIds.length);
+        emails = Arrays.copyOf(emails, memberIds.length);
+        phones = Arrays.copyOf(phones, memberIds.length);
+        loans = Arrays.copyOf(loans, memberIds.length);
+    }
+
+    private Book bookAt(int row) {
+        Book book = new Book(bookIds[row], titles[row], authorNames.get(authorCodes[row]), isbns[row]);
+        if (barcodes[row] != null) {
+            for (String barcode : barcodes[row].split(";")) {
+                book.addCopy(barcode);
+            }
+        }
+        book.setCopies(copies[row], onShelf[row]);
+        return book;
+    }
+
+    private Member memberAt(int row) {
+        Member member = new Member(memberIds[row], names[row], emails[row], phones[row]);
+        for (int bookRow : loans[row]) {
+            member.borrowBook(bookIds[bookRow]);
+        }
+        return member;
+    }
+
+    private int authorCode(String author) {
+        Integer code = authorCodesByName.get(author);
+        if (code == null) {
+            code = authorNames.size();
+            authorNames.add(author);
+            authorCodesByName.put(author, code);
+        }
+        return code;
+    }
+
+    private static int[] withBook(int[] held, int bookRow) {
+        if (indexOf(held, bookRow) >= 0) {
+            return held;
+        }
+        int[] updated = Arrays.copyOf(held, held.length + 1);
+        updated[held.length] = bookRow;
+        return updated;
+    }
+
+    private static int indexOf(int[] rows, int row) {
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] == row) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Open-addressing hash table from ID to row number. Slots hold row + 1 so
+     * that 0 means empty; the IDs themselves are read from the owner's column.
+     */
+    private static class IdTable {
+        private int[] slots = new int[INITIAL_CAPACITY * 2];
+        private int size;
+
+        int find(String id, String[] ids) {
+            int mask = slots.length - 1;
+            for (int i = spread(id.hashCode()) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                int row = slots[i] - 1;
+                if (ids[row].equals(id)) {
+                    return row;
+                }
+            }
+            return -1;
+        }
+
+        void insert(String id, int row, String[] ids) {
+            // Keep the table at most half full so probe runs stay short
+            if ((size + 1) * 2 > slots.length) {
+                rehash(slots.length * 2, ids);
+            }
+            place(slots, id, row);
+            size++;
+        }
+
+        private void rehash(int capacity, String[] ids) {
+            int[] larger = new int[capacity];
+            for (int slot : slots) {
+                if (slot != 0) {
+                    place(larger, ids[slot - 1], slot - 1);
+                }
+            }
+            slots = larger;
+        }
+
+        private static void place(int[] table, String id, int row) {
+            int mask = table.length - 1;
+            int i = spread(id.hashCode()) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = row + 1;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package library.benchmarks;
+
+import library.Book;
+import library.Member;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting single records to and from CSV.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvBenchmark {
+    private Book book;
+    private String bookLine;
+    private String quotedBookLine;
+    private String memberLine;
+
+    @Setup
+    public void setUp() {
+        book = new Book("B123456", "The Great Gatsby", "F. Scott Fitzgerald", "978-0743273565");
+        bookLine = book.toCSV();
+        quotedBookLine = new Book("B123457", "War, and Peace", "Leo Tolstoy", "978-1400079988").toCSV();
+        Member member = new Member("M1001", "John Doe", "john.doe@email.com", "555-1234");
+        member.borrowBook("B123456");
+        member.borrowBook("B123457");
+        memberLine = member.toCSV();
+    }
+
+    @Benchmark
+    public String bookToCsv() {
+        return book.toCSV();
+    }
+
+    @Benchmark
+    public Book bookFromCsv() {
+        return Book.fromCSV(bookLine);
+    }
+
+    @Benchmark
+    public Book quotedBookFromCsv() {
+        return Book.fromCSV(quotedBookLine);
+    }
+
+    @Benchmark
+    public Member memberFromCsv() {
+        return Member.fromCSV(memberLine);
+    }
+}
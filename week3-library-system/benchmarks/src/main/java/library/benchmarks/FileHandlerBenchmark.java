@@ -0,0 +1,85 @@
+package library.benchmarks;
+
+import library.Book;
+import library.FileHandler;
+import library.Member;
+import library.ShardedLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and saving the data files at different catalog sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class FileHandlerBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private File dataDir;
+    private String booksFile;
+    private String membersFile;
+    private String saveFile;
+    private List<Book> books;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CatalogGenerator generator = new CatalogGenerator();
+        dataDir = Files.createTempDirectory("library-bench").toFile();
+        booksFile = FileHandler.booksFile(dataDir.getPath());
+        membersFile = FileHandler.membersFile(dataDir.getPath());
+        saveFile = new File(dataDir, "books-save.txt").getPath();
+        books = generator.books(size);
+        FileHandler.saveBooks(books, booksFile);
+        FileHandler.saveMembers(generator.members(size), membersFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dataDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDir.delete();
+    }
+
+    @Benchmark
+    public List<Book> loadBooks() {
+        return FileHandler.loadBooks(booksFile);
+    }
+
+    /**
+     * Baseline for the sharded load: the same parsing code on one thread.
+     */
+    @Benchmark
+    public List<Book> loadBooksOneShard() throws IOException {
+        return ShardedLoader.load(booksFile, reader -> Book.fromCSV(reader, 0), "expected 5 fields", 1);
+    }
+
+    @Benchmark
+    public List<Book> loadBooksSharded() throws IOException {
+        return ShardedLoader.load(booksFile, reader -> Book.fromCSV(reader, 0), "expected 5 fields");
+    }
+
+    @Benchmark
+    public List<Member> loadMembers() {
+        return FileHandler.loadMembers(membersFile);
+    }
+
+    @Benchmark
+    public boolean saveBooks() {
+        return FileHandler.saveBooks(books, saveFile);
+    }
+}
@@ -0,0 +1,101 @@
+package library.benchmarks;
+
+import library.Book;
+import library.Library;
+import library.LoanResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory lookups, title search (exact, and with a typo in every query)
+ * and borrow/return cycles at different catalog sizes. Borrow/return includes the journal append, so it measures
+ * the real per-operation write cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class LibraryBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private File dataDir;
+    private Library library;
+    private String[] queries;
+    private String[] typoQueries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CatalogGenerator generator = new CatalogGenerator();
+        dataDir = Files.createTempDirectory("library-bench").toFile();
+        library = new Library(dataDir.getPath());
+        library.getCatalog().setBooks(generator.books(size));
+        library.getCatalog().setMembers(generator.members(Math.max(1, size / 10)));
+
+        queries = new String[64];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = generator.word() + " " + generator.word().substring(0, 3);
+        }
+        typoQueries = new String[queries.length];
+        for (int i = 0; i < typoQueries.length; i++) {
+            // Swap two letters of a whole word, the typo the trigram filter finds hardest
+            char[] word = generator.word().toCharArray();
+            int at = ThreadLocalRandom.current().nextInt(word.length - 1);
+            char swapped = word[at];
+            word[at] = word[at + 1];
+            word[at + 1] = swapped;
+            typoQueries[i] = new String(word);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        library.close();
+        delete(dataDir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public Book findBookById() {
+        return library.getCatalog().findBookById(CatalogGenerator.bookId(ThreadLocalRandom.current().nextInt(size)));
+    }
+
+    @Benchmark
+    public List<Book> searchByTitle() {
+        return library.getCatalog().searchBooks(queries[ThreadLocalRandom.current().nextInt(queries.length)], 0);
+    }
+
+    @Benchmark
+    public List<Book> searchByTitleWithTypo() {
+        return library.getCatalog().searchBooks(typoQueries[ThreadLocalRandom.current().nextInt(typoQueries.length)]);
+    }
+
+    @Benchmark
+    public LoanResult borrowReturnCycle() {
+        // Member M1 is never given a book by the generator (only every fourth, from M0)
+        String bookId = CatalogGenerator.bookId(ThreadLocalRandom.current().nextInt(size));
+        LoanResult borrowed = library.borrowBook(CatalogGenerator.memberId(1), bookId);
+        if (borrowed == LoanResult.BORROWED) {
+            return library.returnBook(CatalogGenerator.memberId(1), bookId);
+        }
+        return borrowed;
+    }
+}
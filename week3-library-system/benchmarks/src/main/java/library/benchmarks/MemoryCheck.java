@@ -0,0 +1,131 @@
+package library.benchmarks;
+
+import library.Book;
+import library.Catalog;
+import library.Member;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Measures how much heap a catalog of generated books and members takes in
+ * each in-memory representation:
+ * <ul>
+ *   <li>objects: one Book and Member object per record with ID maps, every
+ *       book holding its own copy of the author name, as read from file;</li>
+ *   <li>catalog: the live {@link Catalog}, which also shares author names and
+ *       keeps the search index;</li>
+ *   <li>compact: the same fields in the column-oriented layout of
+ *       {@link CompactCatalog}.</li>
+ * </ul>
+ * Each figure is the growth of the used heap after a full GC, so run it with
+ * a heap large enough for the biggest model and nothing else going on.
+ *
+ * Usage: java -cp benchmarks.jar library.benchmarks.MemoryCheck [books] [members] [authors]
+ */
+public class MemoryCheck {
+
+    public static void main(String[] args) throws Exception {
+        int books = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int members = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int authors = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        System.out.printf("%d books, %d members, %d authors%n", books, members, authors);
+        System.out.printf("%-10s %12s %14s%n", "model", "heap (MB)", "bytes/record");
+        long records = (long) books + members;
+
+        measure("objects", records, () -> {
+            List<Book> bookList = new ArrayList<>();
+            Map<String, Book> booksById = new ConcurrentHashMap<>();
+            for (Book book : generateBooks(books, authors)) {
+                bookList.add(book);
+                booksById.put(book.getId(), book);
+            }
+            List<Member> memberList = new ArrayList<>();
+            Map<String, Member> membersById = new ConcurrentHashMap<>();
+            for (Member member : generateMembers(members, books)) {
+                memberList.add(member);
+                membersById.put(member.getId(), member);
+            }
+            return new Object[] {bookList, booksById, memberList, membersById};
+        });
+
+        measure("catalog", records, () -> {
+            Catalog catalog = new Catalog();
+            catalog.setBooks(generateBooks(books, authors));
+            catalog.setMembers(generateMembers(members, books));
+            return catalog;
+        });
+
+        measure("compact", records, () -> {
+            CompactCatalog compact = CompactCatalog.of(generateBooks(books, authors), generateMembers(members, books));
+            compact.trimToSize();
+            return compact;
+        });
+    }
+
+    /**
+     * Builds a model and prints how much the used heap grew while it is alive.
+     */
+    private static void measure(String name, long records, Supplier<Object> build) {
+        long before = usedHeap();
+        Object model = build.get();
+        long after = usedHeap();
+        long bytes = after - before;
+        System.out.printf("%-10s %12.1f %14.1f%n", name, bytes / (1024.0 * 1024.0), (double) bytes / records);
+        Reference.reachabilityFence(model);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // A few rounds, since one System.gc() does not always collect everything
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Generates books as they come out of the CSV loader: every field is a
+     * separate String, so equal author names are not shared.
+     */
+    private static List<Book> generateBooks(int count, int authors) {
+        List<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Book book = new Book("B" + i, "Title number " + i, "Author " + (i % authors),
+                    "978-" + (1_000_000_000L + i));
+            books.add(book);
+        }
+        return books;
+    }
+
+    /**
+     * Generates members; every fourth member has one to three books on loan.
+     * Loaned books are left marked available, which is fine for measuring.
+     */
+    private static List<Member> generateMembers(int count, int books) {
+        List<Member> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Member member = new Member("M" + i, "Member " + i, "member" + i + "@example.com", "555-" + i);
+            if (i % 4 == 0 && books > 0) {
+                for (int j = 0; j <= i % 3; j++) {
+                    member.borrowBook("B" + ((i + j * 7919L) % books));
+                }
+            }
+            members.add(member);
+        }
+        return members;
+    }
+}
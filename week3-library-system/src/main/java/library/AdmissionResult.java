@@ -0,0 +1,25 @@
+package library;
+
+/**
+ * Outcome of asking the {@link RequestScheduler} to run a request.
+ */
+public enum AdmissionResult {
+    ADMITTED("Request admitted."),
+    RATE_LIMITED("Error: Too many requests for this member, try again later!"),
+    QUEUE_FULL("Error: The library is busy, try again later!"),
+    TIMED_OUT("Error: The library is busy and the request waited too long, try again later!");
+
+    private final String message;
+
+    AdmissionResult(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isSuccess() {
+        return this == ADMITTED;
+    }
+}
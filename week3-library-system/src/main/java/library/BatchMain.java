@@ -0,0 +1,230 @@
+package library;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-interactive entry point for bulk imports and bulk circulation.
+ *
+ * Reads commands as CSV rows from a file, or from standard input when the
+ * file is "-" or omitted:
+ * <pre>
+ *   ADD_BOOK,id,title,author,isbn
+ *   ADD_MEMBER,id,name,email,phone
+ *   BORROW,memberId,bookId
+ *   RETURN,memberId,bookId
+ * </pre>
+ * Commands are validated and applied in batches. Each batch is written to the
+ * journal without waiting for each record to reach the disk, and the data
+ * files are saved once at the end, so a bulk import does not rewrite the
+ * catalog for every record.
+ *
+ * Usage: java library.BatchMain [commandFile|-] [--data dir] [--batch-size n]
+ */
+public class BatchMain {
+    private static final int DEFAULT_BATCH_SIZE = 10000;
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    private enum CommandType {
+        ADD_BOOK(5),
+        ADD_MEMBER(5),
+        BORROW(3),
+        RETURN(3);
+
+        private final int fields;
+
+        CommandType(int fields) {
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * One validated command with its arguments.
+     */
+    private static class Command {
+        private final CommandType type;
+        private final String[] args;
+        private final int lineNumber;
+
+        Command(CommandType type, String[] args, int lineNumber) {
+            this.type = type;
+            this.args = args;
+            this.lineNumber = lineNumber;
+        }
+    }
+
+    private final Library library;
+    private final int batchSize;
+    private final long[] applied = new long[CommandType.values().length];
+    private long failed;
+
+    public BatchMain(Library library, int batchSize) {
+        this.library = library;
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String[] args) {
+        String input = "-";
+        String dataDir = FileHandler.DATA_DIR;
+        int batchSize = DEFAULT_BATCH_SIZE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--data") && i + 1 < args.length) {
+                dataDir = args[++i];
+            } else if (args[i].equals("--batch-size") && i + 1 < args.length) {
+                batchSize = Integer.parseInt(args[++i]);
+            } else {
+                input = args[i];
+            }
+        }
+
+        Library library = new Library(dataDir);
+        BatchMain batch = new BatchMain(library, batchSize);
+        try (Reader reader = input.equals("-") ? new InputStreamReader(System.in) : new FileReader(input)) {
+            batch.run(new CsvReader(reader));
+        } catch (IOException e) {
+            System.err.println("Error reading commands: " + e.getMessage());
+        }
+        library.saveData();
+        library.close();
+    }
+
+    /**
+     * Reads, validates and applies all commands, then prints a summary.
+     */
+    public void run(CsvReader reader) throws IOException {
+        long start = System.nanoTime();
+        long batches = 0;
+        List<Command> batch = new ArrayList<>(batchSize);
+        boolean more = true;
+        while (more) {
+            more = readBatch(reader, batch);
+            if (!batch.isEmpty()) {
+                applyBatch(batch);
+                batch.clear();
+                batches++;
+            }
+        }
+        printSummary(batches, System.nanoTime() - start);
+    }
+
+    /**
+     * Fills the batch with valid commands. Returns false once the input is exhausted.
+     */
+    private boolean readBatch(CsvReader reader, List<Command> batch) throws IOException {
+        while (batch.size() < batchSize) {
+            try {
+                if (!reader.next()) {
+                    return false;
+                }
+            } catch (CsvFormatException e) {
+                reportError(e.getMessage());
+                continue;
+            }
+            Command command = parse(reader);
+            if (command != null) {
+                batch.add(command);
+            }
+        }
+        return true;
+    }
+
+    private Command parse(CsvReader reader) {
+        int line = reader.getLineNumber();
+        CommandType type;
+        try {
+            type = CommandType.valueOf(reader.getField(0).trim());
+        } catch (IllegalArgumentException e) {
+            reportError("line " + line + ": unknown command " + reader.getField(0));
+            return null;
+        }
+        if (reader.getFieldCount() != type.fields) {
+            reportError("line " + line + ": " + type + " expects " + (type.fields - 1) + " arguments");
+            return null;
+        }
+        String[] args = new String[type.fields - 1];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = reader.getField(i + 1).trim();
+        }
+        if (args[0].isEmpty() || (args.length == 2 && args[1].isEmpty())) {
+            reportError("line " + line + ": ID must not be empty");
+            return null;
+        }
+        return new Command(type, args, line);
+    }
+
+    private void applyBatch(List<Command> batch) {
+        List<CompletableFuture<String>> outcomes = new ArrayList<>(batch.size());
+        library.beginBatch();
+        try {
+            for (Command command : batch) {
+                outcomes.add(apply(command));
+            }
+        } finally {
+            library.commitBatch();
+        }
+
+        // commitBatch() waited for the journal, so these are all complete
+        for (int i = 0; i < batch.size(); i++) {
+            Command command = batch.get(i);
+            String error = outcomes.get(i).join();
+            if (error == null) {
+                applied[command.type.ordinal()]++;
+            } else {
+                reportError("line " + command.lineNumber + ": " + error);
+            }
+        }
+    }
+
+    /**
+     * Applies one command without waiting for the journal. The future
+     * completes with null on success or the reason it failed.
+     */
+    private CompletableFuture<String> apply(Command command) {
+        String[] a = command.args;
+        switch (command.type) {
+            case ADD_BOOK:
+                return library.addBookAsync(new Book(a[0], a[1], a[2], a[3]))
+                        .thenApply(added -> added ? null : "book " + a[0] + " already exists");
+            case ADD_MEMBER:
+                return library.addMemberAsync(new Member(a[0], a[1], a[2], a[3]))
+                        .thenApply(added -> added ? null : "member " + a[0] + " already exists");
+            case BORROW:
+                return library.borrowBookAsync(a[0], a[1]).thenApply(BatchMain::describe);
+            case RETURN:
+                return library.returnBookAsync(a[0], a[1]).thenApply(BatchMain::describe);
+            default:
+                return CompletableFuture.completedFuture("unsupported command");
+        }
+    }
+
+    private static String describe(LoanResult result) {
+        return result.isSuccess() ? null : result.getMessage();
+    }
+
+    private void reportError(String message) {
+        failed++;
+        if (failed <= MAX_REPORTED_ERRORS) {
+            System.err.println("Rejected " + message);
+        } else if (failed == MAX_REPORTED_ERRORS + 1) {
+            System.err.println("Further rejected commands are only counted.");
+        }
+    }
+
+    private void printSummary(long batches, long elapsedNanos) {
+        long total = 0;
+        System.out.println("\n--- Batch Summary ---");
+        for (CommandType type : CommandType.values()) {
+            System.out.printf("%-12s %10d%n", type, applied[type.ordinal()]);
+            total += applied[type.ordinal()];
+        }
+        System.out.printf("%-12s %10d%n", "REJECTED", failed);
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Applied %d commands in %d batches in %.2f s (%.0f commands/s)%n",
+                total, batches, seconds, seconds > 0 ? total / seconds : 0.0);
+    }
+}
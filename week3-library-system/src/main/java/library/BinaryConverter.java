@@ -0,0 +1,73 @@
+package library;
+
+import java.io.IOException;
+
+/**
+ * Converts the data files between the CSV text format and the binary
+ * memory-mapped format (books.bin / members.bin in the same directory).
+ *
+ * Library loads whichever of the files was written last, so a converted
+ * directory is read from the new files on the next start. To keep saving in
+ * the mapped format, run with -Dlibrary.snapshot.format=mapped.
+ *
+ * Usage: java library.BinaryConverter to-binary|to-csv [dataDir]
+ */
+public class BinaryConverter {
+
+    public static String booksBinaryFile(String dataDir) {
+        return FileHandler.binaryFile(FileHandler.booksFile(dataDir));
+    }
+
+    public static String membersBinaryFile(String dataDir) {
+        return FileHandler.binaryFile(FileHandler.membersFile(dataDir));
+    }
+
+    /**
+     * Writes books.bin and members.bin from the CSV files.
+     */
+    public static void toBinary(String dataDir) throws IOException {
+        MappedBookFile.write(FileHandler.loadBooks(FileHandler.booksFile(dataDir)), booksBinaryFile(dataDir));
+        MappedMemberFile.write(FileHandler.loadMembers(FileHandler.membersFile(dataDir)), membersBinaryFile(dataDir));
+    }
+
+    /**
+     * Writes the CSV files from books.bin and members.bin.
+     */
+    public static void toCsv(String dataDir) throws IOException {
+        try (MappedBookFile books = MappedBookFile.open(booksBinaryFile(dataDir));
+             MappedMemberFile members = MappedMemberFile.open(membersBinaryFile(dataDir))) {
+            boolean booksSaved = FileHandler.saveBooks(books.readAll(), FileHandler.booksFile(dataDir));
+            boolean membersSaved = FileHandler.saveMembers(members.readAll(), FileHandler.membersFile(dataDir));
+            if (!booksSaved || !membersSaved) {
+                throw new IOException("the CSV files were not all written");
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java library.BinaryConverter to-binary|to-csv [dataDir]");
+            System.exit(2);
+        }
+        String dataDir = args.length > 1 ? args[1] : FileHandler.DATA_DIR;
+        try {
+            switch (args[0]) {
+                case "to-binary":
+                    toBinary(dataDir);
+                    System.out.println("Wrote " + booksBinaryFile(dataDir) + " and " + membersBinaryFile(dataDir));
+                    break;
+                case "to-csv":
+                    toCsv(dataDir);
+                    System.out.println("Wrote " + FileHandler.booksFile(dataDir) + " and "
+                            + FileHandler.membersFile(dataDir));
+                    break;
+                default:
+                    System.err.println("Unknown command: " + args[0]);
+                    System.exit(2);
+            }
+        } catch (IOException e) {
+            System.err.println("Error converting data files: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
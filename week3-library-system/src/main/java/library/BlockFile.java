@@ -0,0 +1,581 @@
+package library;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Block format for the books and members snapshot files, written to
+ * books.blk and members.blk when enabled.
+ *
+ * The rows are the same CSV rows as in a plain data file, grouped into
+ * blocks of about {@link #BLOCK_SIZE} bytes. Rows never span blocks. Each
+ * block is Deflate-compressed, unless that would not make it smaller or
+ * compression is turned off, and carries a CRC32C of its header and its
+ * stored bytes. A footer records the number of blocks, rows and raw bytes,
+ * so a file that was cut short is noticed as well as one that was damaged,
+ * and the size of the rows is known without reading them.
+ *
+ * <pre>
+ *   file:   MAGIC block* footer
+ *   block:  rows rawLength storedLength codec crc32c bytes
+ *   footer: -1 blocks totalRows rawBytes crc32c
+ * </pre>
+ *
+ * The numbers are big-endian; rows, lengths and blocks are ints, totalRows
+ * and rawBytes are longs and the codec is one byte, {@link #STORED} or {@link #DEFLATE}.
+ *
+ * Loading first walks the block headers and then checks and parses the
+ * blocks in parallel on the common fork-join pool. Each block is inflated as
+ * it is parsed, so at most one stored block per thread is held in memory.
+ * The records come out in file order. A damaged block is reported and its
+ * rows are skipped, and a copy of the file is kept next to it, because the
+ * next full save would otherwise overwrite the only copy of those rows.
+ *
+ * Usage: java library.BlockFile verify|cat file...
+ */
+public final class BlockFile {
+    /**
+     * Whether full saves write this format, to books.blk and members.blk,
+     * rather than plain CSV to the text files. Off by default: the text files
+     * can be read and edited by hand, and on a single core they load about
+     * twice as fast. Both are read either way. Set with
+     * -Dlibrary.snapshot.format=block.
+     */
+    public static final boolean ENABLED = "block".equals(System.getProperty("library.snapshot.format", "csv"));
+
+    /**
+     * Whether blocks are compressed. Set with -Dlibrary.snapshot.compress.
+     */
+    public static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("library.snapshot.compress", "true"));
+
+    /**
+     * Uncompressed bytes of rows per block. Set with -Dlibrary.snapshot.blockSize.
+     */
+    public static final int BLOCK_SIZE = Integer.getInteger("library.snapshot.blockSize", 256 * 1024);
+
+    /**
+     * Deflate level, from 1 (fastest) to 9 (smallest). Set with
+     * -Dlibrary.snapshot.level.
+     */
+    public static final int LEVEL = Integer.getInteger("library.snapshot.level", 6);
+
+    static final byte STORED = 0;
+    static final byte DEFLATE = 1;
+
+    /**
+     * First bytes of a block file. The non-ASCII byte and the line endings
+     * catch transfers that treat the file as text.
+     */
+    private static final byte[] MAGIC = {(byte) 0x89, 'L', 'B', 'K', '\r', '\n', 0x1A, '\n'};
+    private static final int HEADER_BYTES = 13;
+    private static final int CRC_BYTES = 4;
+    private static final int FOOTER_BYTES = 28;
+    private static final int END = -1;
+
+    private BlockFile() {
+    }
+
+    /**
+     * A block found while walking the file.
+     */
+    private static final class Block {
+        private final int number;
+        private final long offset;
+        private final int rows;
+        private final int rawLength;
+        private final int storedLength;
+        private final byte codec;
+        private final int crc;
+
+        Block(int number, long offset, ByteBuffer header) {
+            this.number = number;
+            this.offset = offset;
+            this.rows = header.getInt();
+            this.rawLength = header.getInt();
+            this.storedLength = header.getInt();
+            this.codec = header.get();
+            this.crc = header.getInt();
+        }
+    }
+
+    /**
+     * The blocks of a file and what was wrong with its structure, if anything.
+     */
+    private static final class Layout {
+        private final List<Block> blocks = new ArrayList<>();
+        private String problem;
+    }
+
+    /**
+     * The records of one block, the rows that could not be parsed, and why
+     * the block could not be read at all, if it could not.
+     */
+    private static final class Parsed<T> {
+        private final List<T> records;
+        private final List<String> problems = new ArrayList<>();
+        private String damage;
+
+        Parsed(int rows) {
+            this.records = new ArrayList<>(rows);
+        }
+    }
+
+    /**
+     * Returns true if the file starts with the block file magic bytes.
+     */
+    public static boolean isBlockFile(File file) {
+        if (file.length() < MAGIC.length) {
+            return false;
+        }
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of bytes the rows of a block file take as plain CSV,
+     * as recorded in its footer, or -1 if the footer cannot be read.
+     */
+    public static long rawLength(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long offset = channel.size() - FOOTER_BYTES;
+            ByteBuffer footer = offset < MAGIC.length ? null : read(channel, offset, FOOTER_BYTES);
+            if (footer == null || footer.getInt(0) != END
+                    || footer.getInt(FOOTER_BYTES - CRC_BYTES) != crc(footer.array(), 0, FOOTER_BYTES - CRC_BYTES)) {
+                return -1;
+            }
+            return footer.getLong(16);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the header comment and the rows as a block file. Returns the
+     * number of rows written. The stream is not closed or synced.
+     */
+    public static long write(OutputStream out, String header, Iterator<String> rows) throws IOException {
+        out.write(MAGIC);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_SIZE + BLOCK_SIZE / 8);
+        Deflater deflater = new Deflater(LEVEL);
+        byte[] deflated = new byte[0];
+        int blocks = 0;
+        int blockRows = 0;
+        long totalRows = 0;
+        long rawBytes = 0;
+        try {
+            raw.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+            while (rows.hasNext()) {
+                raw.write((rows.next() + "\n").getBytes(StandardCharsets.UTF_8));
+                blockRows++;
+                totalRows++;
+                if (raw.size() >= BLOCK_SIZE) {
+                    rawBytes += raw.size();
+                    deflated = writeBlock(out, raw, blockRows, deflater, deflated);
+                    blocks++;
+                    blockRows = 0;
+                }
+            }
+            if (raw.size() > 0) {
+                rawBytes += raw.size();
+                writeBlock(out, raw, blockRows, deflater, deflated);
+                blocks++;
+            }
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+        footer.putInt(END).putInt(blocks).putLong(totalRows).putLong(rawBytes);
+        footer.putInt(crc(footer.array(), 0, FOOTER_BYTES - CRC_BYTES));
+        out.write(footer.array());
+        out.flush();
+        return totalRows;
+    }
+
+    /**
+     * Writes one block and empties the raw buffer. Returns the buffer used
+     * for compressing, to reuse for the next block.
+     */
+    private static byte[] writeBlock(OutputStream out, ByteArrayOutputStream raw, int rows, Deflater deflater,
+                                     byte[] deflated) throws IOException {
+        byte[] bytes = raw.toByteArray();
+        byte codec = STORED;
+        byte[] stored = bytes;
+        int storedLength = bytes.length;
+        if (COMPRESS) {
+            if (deflated.length < bytes.length) {
+                deflated = new byte[bytes.length];
+            }
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < bytes.length) {
+                length += deflater.deflate(deflated, length, bytes.length - length);
+            }
+            // Keep the block as it is if compressing did not make it smaller
+            if (deflater.finished() && length < bytes.length) {
+                codec = DEFLATE;
+                stored = deflated;
+                storedLength = length;
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + CRC_BYTES);
+        header.putInt(rows).putInt(bytes.length).putInt(storedLength).put(codec);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, HEADER_BYTES);
+        crc.update(stored, 0, storedLength);
+        header.putInt((int) crc.getValue());
+        out.write(header.array());
+        out.write(stored, 0, storedLength);
+        raw.reset();
+        return deflated;
+    }
+
+    /**
+     * Loads all records of a block file. The parser returns null for a row
+     * with too few fields, which is reported with the given detail.
+     */
+    public static <T> List<T> load(String path, Function<CsvReader, T> parser, String detail) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            Layout layout = scan(channel);
+
+            List<Callable<Parsed<T>>> tasks = new ArrayList<>(layout.blocks.size());
+            int rows = 0;
+            for (Block block : layout.blocks) {
+                tasks.add(() -> parse(channel, block, parser, detail));
+                rows += block.rows;
+            }
+            List<T> records = new ArrayList<>(rows);
+            boolean damaged = layout.problem != null;
+            for (Parsed<T> parsed : runAll(tasks)) {
+                records.addAll(parsed.records);
+                for (String problem : parsed.problems) {
+                    FileHandler.reportMalformedRow(path, problem);
+                }
+                if (parsed.damage != null) {
+                    System.err.println("Error in " + path + ": " + parsed.damage);
+                    damaged = true;
+                }
+            }
+            if (layout.problem != null) {
+                System.err.println("Error in " + path + ": " + layout.problem);
+            }
+            if (damaged) {
+                keepCopy(path);
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Walks the block headers from the start of the file to the footer.
+     * Stops at the first header that cannot be right; the blocks before it
+     * are still loaded.
+     */
+    private static Layout scan(FileChannel channel) throws IOException {
+        Layout layout = new Layout();
+        long size = channel.size();
+        ByteBuffer magic = read(channel, 0, MAGIC.length);
+        if (magic == null || !Arrays.equals(magic.array(), MAGIC)) {
+            layout.problem = "not a block file";
+            return layout;
+        }
+        long offset = MAGIC.length;
+        long rows = 0;
+        long rawBytes = 0;
+        while (true) {
+            ByteBuffer first = read(channel, offset, 4);
+            if (first == null) {
+                layout.problem = "the file is cut short after " + layout.blocks.size() + " blocks";
+                return layout;
+            }
+            if (first.getInt(0) == END) {
+                ByteBuffer footer = read(channel, offset, FOOTER_BYTES);
+                if (footer == null || footer.getInt(FOOTER_BYTES - CRC_BYTES)
+                        != crc(footer.array(), 0, FOOTER_BYTES - CRC_BYTES)) {
+                    layout.problem = "the footer is damaged";
+                } else if (footer.getInt(4) != layout.blocks.size() || footer.getLong(8) != rows
+                        || footer.getLong(16) != rawBytes) {
+                    layout.problem = "expected " + footer.getInt(4) + " blocks of " + footer.getLong(8)
+                            + " rows and " + footer.getLong(16) + " bytes, found " + layout.blocks.size()
+                            + " of " + rows + " rows and " + rawBytes + " bytes";
+                } else if (offset + FOOTER_BYTES != size) {
+                    layout.problem = "unexpected bytes after the footer";
+                }
+                return layout;
+            }
+            ByteBuffer header = read(channel, offset, HEADER_BYTES + CRC_BYTES);
+            Block block = header == null ? null : new Block(layout.blocks.size(), offset, header);
+            if (block == null || block.rows < 0 || block.rawLength < 0 || block.storedLength < 0
+                    || (block.codec != STORED && block.codec != DEFLATE)
+                    || offset + HEADER_BYTES + CRC_BYTES + block.storedLength > size) {
+                layout.problem = "block " + layout.blocks.size() + " at byte " + offset
+                        + " is cut short or has a damaged header; skipped the rest of the file";
+                return layout;
+            }
+            layout.blocks.add(block);
+            rows += block.rows;
+            rawBytes += block.rawLength;
+            offset += HEADER_BYTES + CRC_BYTES + block.storedLength;
+        }
+    }
+
+    /**
+     * Checks one block's CRC and parses its rows, inflating them as they
+     * are read.
+     */
+    private static <T> Parsed<T> parse(FileChannel channel, Block block, Function<CsvReader, T> parser,
+                                       String detail) throws IOException {
+        Parsed<T> parsed = new Parsed<>(block.rows);
+        ByteBuffer bytes = read(channel, block.offset, HEADER_BYTES + CRC_BYTES + block.storedLength);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.array(), 0, HEADER_BYTES);
+        crc.update(bytes.array(), HEADER_BYTES + CRC_BYTES, block.storedLength);
+        if ((int) crc.getValue() != block.crc) {
+            parsed.damage = "block " + block.number + " at byte " + block.offset
+                    + " does not match its checksum; skipped its " + block.rows + " rows";
+            return parsed;
+        }
+        InputStream in = new ByteArrayInputStream(bytes.array(), HEADER_BYTES + CRC_BYTES, block.storedLength);
+        Inflater inflater = null;
+        if (block.codec == DEFLATE) {
+            // Hand the inflater the whole stored block at once, not 512 bytes at a time
+            inflater = new Inflater();
+            in = new InflaterInputStream(in, inflater, Math.max(512, block.storedLength));
+        }
+        int rows = 0;
+        try (CsvReader reader = new CsvReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            while (true) {
+                try {
+                    if (!reader.next()) {
+                        break;
+                    }
+                } catch (CsvFormatException e) {
+                    rows++;
+                    parsed.problems.add("block " + block.number + ", " + e.getMessage());
+                    continue;
+                }
+                rows++;
+                T record = parser.apply(reader);
+                if (record != null) {
+                    parsed.records.add(record);
+                } else {
+                    parsed.problems.add("block " + block.number + ", line " + reader.getLineNumber() + ": " + detail);
+                }
+            }
+        } catch (IOException e) {
+            // A block that passed its checksum but does not inflate was written wrong
+            parsed.damage = "block " + block.number + " at byte " + block.offset + " does not inflate ("
+                    + e.getMessage() + "); skipped the rest of its rows";
+            return parsed;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        if (rows != block.rows) {
+            parsed.problems.add("block " + block.number + ": expected " + block.rows + " rows, read " + rows);
+        }
+        return parsed;
+    }
+
+    /**
+     * Copies a damaged file aside, so the rows that could not be read are
+     * not lost when the file is next written in full.
+     */
+    private static void keepCopy(String path) {
+        File copy = new File(path + ".damaged");
+        try {
+            Files.copy(Paths.get(path), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.err.println("Kept a copy of the damaged file as " + copy.getPath());
+        } catch (IOException e) {
+            System.err.println("Error copying damaged file " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads length bytes at the given offset, or returns null if the file
+     * ends first.
+     */
+    private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Runs the block tasks on the common fork-join pool and returns their
+     * results in order. With one block or one core they run on the calling
+     * thread instead.
+     */
+    private static <T> List<Parsed<T>> runAll(List<Callable<Parsed<T>>> tasks) throws IOException {
+        List<Parsed<T>> results = new ArrayList<>(tasks.size());
+        try {
+            if (tasks.size() < 2 || ForkJoinPool.getCommonPoolParallelism() < 2) {
+                for (Callable<Parsed<T>> task : tasks) {
+                    results.add(task.call());
+                }
+                return results;
+            }
+            for (Future<Parsed<T>> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Checks block files, e.g. backups, or prints their rows as CSV.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("verify") || args[0].equals("cat"))) {
+            System.err.println("Usage: java library.BlockFile verify|cat file...");
+            System.exit(2);
+        }
+        boolean allGood = true;
+        for (int i = 1; i < args.length; i++) {
+            if (args[0].equals("verify")) {
+                allGood &= verify(args[i], System.out);
+            } else {
+                allGood &= cat(args[i], System.out);
+            }
+        }
+        System.exit(allGood ? 0 : 1);
+    }
+
+    /**
+     * Checks every block of a file and prints a summary. Returns true if the
+     * file is intact.
+     */
+    private static boolean verify(String path, PrintStream out) throws IOException {
+        if (!isBlockFile(new File(path))) {
+            out.println(path + ": not a block file");
+            return false;
+        }
+        long rows = 0;
+        long raw = 0;
+        long stored = 0;
+        int damaged = 0;
+        Layout layout;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            layout = scan(channel);
+            List<Callable<Parsed<String>>> tasks = new ArrayList<>();
+            for (Block block : layout.blocks) {
+                tasks.add(() -> parse(channel, block, reader -> "", ""));
+                rows += block.rows;
+                raw += block.rawLength;
+                stored += block.storedLength;
+            }
+            for (Parsed<String> parsed : runAll(tasks)) {
+                for (String problem : parsed.problems) {
+                    out.println(path + ": " + problem);
+                }
+                if (parsed.damage != null) {
+                    out.println(path + ": " + parsed.damage);
+                    damaged++;
+                }
+            }
+        }
+        if (layout.problem != null) {
+            out.println(path + ": " + layout.problem);
+        }
+        boolean good = layout.problem == null && damaged == 0;
+        out.printf("%s: %s, %d blocks (%d damaged), %d rows, %d bytes stored for %d (%.1fx)%n", path,
+                good ? "OK" : "DAMAGED", layout.blocks.size(), damaged, rows, stored, raw,
+                stored == 0 ? 1.0 : (double) raw / stored);
+        return good;
+    }
+
+    /**
+     * Prints the rows of every intact block of a file as CSV, and reports
+     * damaged blocks on standard error. Returns true if the file is intact.
+     */
+    private static boolean cat(String path, PrintStream out) throws IOException {
+        if (!isBlockFile(new File(path))) {
+            System.err.println(path + ": not a block file");
+            return false;
+        }
+        boolean good = true;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            Layout layout = scan(channel);
+            List<Callable<Parsed<String>>> tasks = new ArrayList<>();
+            for (Block block : layout.blocks) {
+                tasks.add(() -> parse(channel, block, BlockFile::row, ""));
+            }
+            for (Parsed<String> parsed : runAll(tasks)) {
+                for (String row : parsed.records) {
+                    out.println(row);
+                }
+                if (parsed.damage != null) {
+                    System.err.println(path + ": " + parsed.damage);
+                    good = false;
+                }
+            }
+            if (layout.problem != null) {
+                System.err.println(path + ": " + layout.problem);
+                good = false;
+            }
+        }
+        return good;
+    }
+
+    private static String row(CsvReader reader) {
+        String[] fields = new String[reader.getFieldCount()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = reader.getField(i);
+        }
+        return CsvWriter.join(fields);
+    }
+}
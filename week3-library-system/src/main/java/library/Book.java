@@ -1,21 +1,34 @@
 package library;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Represents a book in the library system.
+ * Represents a book in the library system: a title, with one or more copies.
+ *
+ * The number of copies on the shelf is an atomic counter, so lending and
+ * returning a copy is a compare-and-set on the title, not a lock. Copies can
+ * have barcodes; a title has at most as many barcodes as copies.
  */
 public class Book {
+    private static final String[] NO_BARCODES = new String[0];
+
     private String id;
     private String title;
     private String author;
     private String isbn;
-    private boolean isAvailable;
+    private volatile int copies = 1;
+    private final AtomicInteger availableCopies = new AtomicInteger(1);
+    private volatile String[] barcodes = NO_BARCODES;
 
     public Book(String id, String title, String author, String isbn) {
         this.id = id;
         this.title = title;
         this.author = author;
         this.isbn = isbn;
-        this.isAvailable = true;
     }
 
     public String getId() {
@@ -50,20 +63,124 @@ public class Book {
         this.isbn = isbn;
     }
 
+    /**
+     * Returns true if at least one copy is on the shelf.
+     */
     public boolean isAvailable() {
-        return isAvailable;
+        return availableCopies.get() > 0;
     }
 
+    /**
+     * Puts all copies on the shelf, or none.
+     */
     public void setAvailable(boolean available) {
-        isAvailable = available;
+        availableCopies.set(available ? copies : 0);
     }
 
     public void borrow() {
-        this.isAvailable = false;
+        reserveCopy();
     }
 
     public void returnBook() {
-        this.isAvailable = true;
+        releaseCopy();
+    }
+
+    public int getCopies() {
+        return copies;
+    }
+
+    public int getAvailableCopies() {
+        return availableCopies.get();
+    }
+
+    /**
+     * Sets the number of copies and how many of them are on the shelf.
+     */
+    public void setCopies(int copies, int available) {
+        this.copies = Math.max(copies, barcodes.length);
+        availableCopies.set(Math.max(0, Math.min(available, this.copies)));
+    }
+
+    /**
+     * Takes a copy off the shelf. Returns false if there was none.
+     */
+    public boolean reserveCopy() {
+        while (true) {
+            int available = availableCopies.get();
+            if (available <= 0) {
+                return false;
+            }
+            if (availableCopies.compareAndSet(available, available - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Puts a copy back on the shelf. Returns false if all copies already were.
+     */
+    public boolean releaseCopy() {
+        while (true) {
+            int available = availableCopies.get();
+            if (available >= copies) {
+                return false;
+            }
+            if (availableCopies.compareAndSet(available, available + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes all copies off the shelf at once, e.g. before removing the book,
+     * so no copy can be lent meanwhile. Returns false if a copy was out.
+     */
+    public boolean reserveAllCopies() {
+        int all = copies;
+        return availableCopies.compareAndSet(all, 0);
+    }
+
+    /**
+     * Returns the barcodes of the copies that have one.
+     */
+    public List<String> getBarcodes() {
+        return Arrays.asList(barcodes.clone());
+    }
+
+    /**
+     * Adds a copy with the given barcode, or without one if it is null or
+     * empty. The new copy is not put on the shelf; see {@link #releaseCopy()}.
+     */
+    public synchronized void addCopy(String barcode) {
+        if (barcode != null && !barcode.isEmpty()) {
+            String[] updated = Arrays.copyOf(barcodes, barcodes.length + 1);
+            updated[barcodes.length] = barcode;
+            barcodes = updated;
+        }
+        copies = Math.max(copies + 1, barcodes.length);
+    }
+
+    /**
+     * Returns true if one of the copies has the given barcode.
+     */
+    public boolean hasBarcode(String barcode) {
+        for (String existing : barcodes) {
+            if (existing.equals(barcode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of this book, e.g. to save it while the original changes.
+     */
+    public Book copy() {
+        Book copy = new Book(id, title, author, isbn);
+        copy.barcodes = barcodes;
+        copy.copies = copies;
+        copy.availableCopies.set(availableCopies.get());
+        return copy;
     }
 
     @Override
@@ -73,27 +190,90 @@ public class Book {
                 ", title='" + title + '\'' +
                 ", author='" + author + '\'' +
                 ", isbn='" + isbn + '\'' +
-                ", available=" + isAvailable +
+                ", copies=" + copies +
+                ", available=" + availableCopies.get() +
                 '}';
     }
 
     /**
-     * Converts book to CSV format for file storage.
+     * Converts book to JSON for the HTTP API.
+     */
+    public String toJSON() {
+        return "{\"id\":" + Json.quote(id) +
+                ",\"title\":" + Json.quote(title) +
+                ",\"author\":" + Json.quote(author) +
+                ",\"isbn\":" + Json.quote(isbn) +
+                ",\"available\":" + isAvailable() +
+                ",\"copies\":" + copies +
+                ",\"availableCopies\":" + availableCopies.get() +
+                ",\"barcodes\":" + Json.array(quoted(barcodes)) +
+                '}';
+    }
+
+    /**
+     * Converts book to CSV format for file storage. A single copy without a
+     * barcode is written in the original five-field format; otherwise the
+     * number of copies, the number on the shelf and the barcodes follow.
      */
     public String toCSV() {
-        return id + "," + title + "," + author + "," + isbn + "," + isAvailable;
+        String available = String.valueOf(isAvailable());
+        if (copies == 1 && barcodes.length == 0) {
+            return CsvWriter.join(id, title, author, isbn, available);
+        }
+        return CsvWriter.join(id, title, author, isbn, available, String.valueOf(copies),
+                String.valueOf(availableCopies.get()), String.join(";", barcodes));
     }
 
     /**
      * Creates a Book from CSV string.
      */
     public static Book fromCSV(String csv) {
-        String[] parts = csv.split(",");
-        if (parts.length >= 5) {
-            Book book = new Book(parts[0], parts[1], parts[2], parts[3]);
-            book.setAvailable(Boolean.parseBoolean(parts[4]));
-            return book;
+        try {
+            CsvReader reader = CsvReader.of(csv);
+            return reader.next() ? fromCSV(reader, 0) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a Book from the current row of a CSV reader, starting at the
+     * given field. Returns null if the row has too few fields. Rows in the
+     * original five-field format are a single copy.
+     */
+    public static Book fromCSV(CsvReader reader, int first) {
+        int fields = reader.getFieldCount() - first;
+        if (fields < 5) {
+            return null;
+        }
+        Book book = new Book(reader.getField(first), reader.getField(first + 1),
+                reader.getField(first + 2), reader.getField(first + 3));
+        book.setAvailable(reader.getBoolean(first + 4));
+        if (fields >= 7) {
+            if (fields > 7 && !reader.isEmpty(first + 7)) {
+                List<String> barcodes = new ArrayList<>();
+                for (String barcode : reader.getField(first + 7).split(";")) {
+                    if (!barcode.trim().isEmpty()) {
+                        barcodes.add(barcode.trim());
+                    }
+                }
+                book.barcodes = barcodes.toArray(NO_BARCODES);
+            }
+            try {
+                book.setCopies(Integer.parseInt(reader.getField(first + 5)),
+                        Integer.parseInt(reader.getField(first + 6)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return book;
+    }
+
+    private static List<String> quoted(String[] values) {
+        List<String> result = new ArrayList<>(values.length);
+        for (String value : values) {
+            result.add(Json.quote(value));
         }
-        return null;
+        return result;
     }
 }
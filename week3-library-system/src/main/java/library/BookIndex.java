@@ -0,0 +1,185 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Secondary indexes over book authors and ISBNs.
+ *
+ * Authors are kept in a sorted map, so all works of an author, or of every
+ * author whose name starts with a prefix, are found with one range lookup.
+ * ISBNs are kept in a hash map under a normalized form without hyphens or
+ * spaces, so "978-0-13-468599-1" and "9780134685991" find the same book.
+ * Author names are compared ignoring case.
+ *
+ * Availability is not indexed: it changes on every loan, and filtering the
+ * (small) result of a lookup reads the current state of each book, so the
+ * filter is always in step with borrowing and returning.
+ *
+ * Lookups run concurrently under a read lock; updates take the write lock.
+ */
+public class BookIndex {
+    private final TreeMap<String, Set<Book>> byAuthor = new TreeMap<>();
+    private final Map<String, Set<Book>> byIsbn = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Adds a book under its author and ISBN.
+     */
+    public void add(Book book) {
+        String author = normalizeAuthor(book.getAuthor());
+        String isbn = normalizeIsbn(book.getIsbn());
+        lock.writeLock().lock();
+        try {
+            byAuthor.computeIfAbsent(author, a -> new LinkedHashSet<>()).add(book);
+            if (!isbn.isEmpty()) {
+                byIsbn.computeIfAbsent(isbn, i -> new LinkedHashSet<>()).add(book);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a book. Must be called with the same author and ISBN the book
+     * had when it was added.
+     */
+    public void remove(Book book) {
+        String author = normalizeAuthor(book.getAuthor());
+        String isbn = normalizeIsbn(book.getIsbn());
+        lock.writeLock().lock();
+        try {
+            removeFrom(byAuthor, author, book);
+            removeFrom(byIsbn, isbn, book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all books from the index.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            byAuthor.clear();
+            byIsbn.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the books by an author, in the order they were added.
+     */
+    public List<Book> findByAuthor(String author, boolean availableOnly) {
+        lock.readLock().lock();
+        try {
+            Set<Book> books = byAuthor.get(normalizeAuthor(author));
+            return books == null ? new ArrayList<>() : filter(books, availableOnly, new ArrayList<>());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the books by every author whose name starts with the prefix,
+     * ordered by author. An empty prefix finds nothing.
+     */
+    public List<Book> findByAuthorPrefix(String prefix, boolean availableOnly) {
+        String from = normalizeAuthor(prefix);
+        List<Book> result = new ArrayList<>();
+        if (from.isEmpty()) {
+            return result;
+        }
+        lock.readLock().lock();
+        try {
+            for (Set<Book> books : byAuthor.subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+                filter(books, availableOnly, result);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the books with an ISBN, ignoring hyphens and spaces.
+     */
+    public List<Book> findByIsbn(String isbn, boolean availableOnly) {
+        lock.readLock().lock();
+        try {
+            Set<Book> books = byIsbn.get(normalizeIsbn(isbn));
+            return books == null ? new ArrayList<>() : filter(books, availableOnly, new ArrayList<>());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct authors in the index.
+     */
+    public int getAuthorCount() {
+        lock.readLock().lock();
+        try {
+            return byAuthor.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lowercases and trims an author name, and collapses runs of spaces.
+     */
+    public static String normalizeAuthor(String author) {
+        if (author == null) {
+            return "";
+        }
+        return author.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Drops hyphens and spaces from an ISBN and uppercases the X check digit.
+     */
+    public static String normalizeIsbn(String isbn) {
+        if (isbn == null) {
+            return "";
+        }
+        StringBuilder normalized = new StringBuilder(isbn.length());
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c != '-' && !Character.isWhitespace(c)) {
+                normalized.append(Character.toUpperCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static List<Book> filter(Collection<Book> books, boolean availableOnly, List<Book> result) {
+        for (Book book : books) {
+            if (!availableOnly || book.isAvailable()) {
+                result.add(book);
+            }
+        }
+        return result;
+    }
+
+    private static void removeFrom(Map<String, Set<Book>> index, String key, Book book) {
+        Set<Book> books = index.get(key);
+        if (books != null) {
+            books.remove(book);
+            if (books.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
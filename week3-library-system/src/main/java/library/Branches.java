@@ -0,0 +1,871 @@
+package library;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Several library branches served from one process.
+ *
+ * Each branch is a partition: a {@link Library} with its own data directory,
+ * journal and checkpoints, so branches are saved independently and a busy
+ * branch never waits on another's locks or disk. The branches are loaded in
+ * parallel on startup.
+ *
+ * Book and member IDs are unique across branches. A routing index maps each
+ * ID to its branch, so operations on one record go straight to the branch
+ * that has it. Records added to a branch's Library directly are found by
+ * asking every branch the first time, and indexed from then on. Searches ask
+ * all branches in parallel and return the results per branch.
+ *
+ * A member borrows and places holds in their own branch. Books and members
+ * can be moved to another branch when they have no loans or holds. A move is
+ * written to a transfer log before either branch changes, and marked done
+ * after both have; a move cut short by a crash is finished on the next
+ * start. While a record is moving, operations through this class on that
+ * record wait for the move, so they see it in one branch or the other.
+ *
+ * Usage: LibraryServer --data dir --branches main,east,west keeps each
+ * branch in dir/name and the transfer log in dir/transfers.log.
+ */
+public class Branches {
+    private static final int LOCK_STRIPES = 1024;
+    private static final String TRANSFER = "TRANSFER";
+    private static final String DONE = "DONE";
+
+    private enum Kind { BOOK, MEMBER }
+
+    private final Map<String, Library> branches;
+    private final Map<String, String> bookBranches = new ConcurrentHashMap<>();
+    private final Map<String, String> memberBranches = new ConcurrentHashMap<>();
+    private final LockStripes<ReadWriteLock> bookLocks = new LockStripes<>(LOCK_STRIPES, ReentrantReadWriteLock::new);
+    private final LockStripes<ReadWriteLock> memberLocks = new LockStripes<>(LOCK_STRIPES, ReentrantReadWriteLock::new);
+    private final String transferLog;
+    private final AtomicLong transferSequence = new AtomicLong();
+    private final ExecutorService workers;
+
+    /**
+     * Serves the given branches, in the given order; the first one is the
+     * default. Transfers are logged to the given file, or not allowed if it
+     * is null.
+     */
+    public Branches(Map<String, Library> branches, String transferLog) {
+        if (branches.isEmpty()) {
+            throw new IllegalArgumentException("At least one branch is required");
+        }
+        this.branches = Collections.unmodifiableMap(new LinkedHashMap<>(branches));
+        this.transferLog = transferLog;
+        this.workers = newWorkers(branches.size());
+        if (transferLog != null) {
+            finishTransfers();
+        }
+        buildIndex();
+    }
+
+    /**
+     * Loads the named branches from subdirectories of the data directory, in
+     * parallel, and finishes any transfers cut short.
+     */
+    public static Branches open(String dataDir, List<String> names) {
+        ExecutorService loaders = newWorkers(names.size());
+        try {
+            Map<String, CompletableFuture<Library>> loading = new LinkedHashMap<>();
+            for (String name : names) {
+                String branchDir = dataDir + File.separator + name;
+                loading.put(name, CompletableFuture.supplyAsync(() -> new Library(branchDir), loaders));
+            }
+            Map<String, Library> loaded = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<Library>> entry : loading.entrySet()) {
+                loaded.put(entry.getKey(), entry.getValue().join());
+            }
+            return new Branches(loaded, transferLogFile(dataDir));
+        } finally {
+            loaders.shutdown();
+        }
+    }
+
+    /**
+     * Returns the path of the transfer log in the given data directory.
+     */
+    public static String transferLogFile(String dataDir) {
+        return dataDir + File.separator + "transfers.log";
+    }
+
+    public Set<String> getBranchNames() {
+        return branches.keySet();
+    }
+
+    /**
+     * Returns a branch, or null if there is none with the name.
+     */
+    public Library getBranch(String name) {
+        return branches.get(name);
+    }
+
+    /**
+     * Returns the name of the first branch, which takes new records and
+     * listings that name no branch.
+     */
+    public String getDefaultBranchName() {
+        return branches.keySet().iterator().next();
+    }
+
+    /**
+     * Returns the name of the branch that has a book, or null.
+     */
+    public String locateBook(String bookId) {
+        return locate(bookBranches, bookId, catalog -> catalog.containsBook(bookId));
+    }
+
+    /**
+     * Returns the name of the branch that has a member, or null.
+     */
+    public String locateMember(String memberId) {
+        return locate(memberBranches, memberId, catalog -> catalog.containsMember(memberId));
+    }
+
+    /**
+     * Finds a book in whichever branch has it, or returns null.
+     */
+    public Book findBook(String bookId) {
+        return onBook(bookId, library -> library.getCatalog().findBookById(bookId), null);
+    }
+
+    /**
+     * Finds a member in whichever branch has them, or returns null.
+     */
+    public Member findMember(String memberId) {
+        return onMember(memberId, library -> library.getCatalog().findMemberById(memberId), null);
+    }
+
+    /**
+     * Finds the book a copy belongs to, in any branch, or returns null.
+     */
+    public Book findBookByBarcode(String barcode) {
+        for (Library library : branches.values()) {
+            Book book = library.getCatalog().findBookByBarcode(barcode);
+            if (book != null) {
+                return book;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a book to a branch. Returns false if a book with the same ID is
+     * in any branch.
+     *
+     * @throws IllegalArgumentException if there is no such branch
+     */
+    public boolean addBook(String branch, Book book) {
+        Library library = branch(branch);
+        ReadWriteLock lock = bookLocks.get(book.getId());
+        lock.writeLock().lock();
+        try {
+            if (locateBook(book.getId()) != null || !library.addBook(book)) {
+                return false;
+            }
+            bookBranches.put(book.getId(), branch);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a member to a branch. Returns false if a member with the same ID
+     * is in any branch.
+     *
+     * @throws IllegalArgumentException if there is no such branch
+     */
+    public boolean addMember(String branch, Member member) {
+        Library library = branch(branch);
+        ReadWriteLock lock = memberLocks.get(member.getId());
+        lock.writeLock().lock();
+        try {
+            if (locateMember(member.getId()) != null || !library.addMember(member)) {
+                return false;
+            }
+            memberBranches.put(member.getId(), branch);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the title, author and ISBN of a book, in the branch that has it.
+     */
+    public UpdateResult updateBook(Book changes) {
+        return onBook(changes.getId(), library -> library.updateBook(changes), UpdateResult.NOT_FOUND);
+    }
+
+    /**
+     * Removes a book from the branch that has it.
+     */
+    public UpdateResult removeBook(String bookId) {
+        return onBook(bookId, library -> library.removeBook(bookId), UpdateResult.NOT_FOUND);
+    }
+
+    /**
+     * Adds a copy to a book, in the branch that has it.
+     */
+    public UpdateResult addCopy(String bookId, String barcode) {
+        return onBook(bookId, library -> library.addCopy(bookId, barcode), UpdateResult.NOT_FOUND);
+    }
+
+    /**
+     * Changes the name, email and phone of a member, in the branch that has them.
+     */
+    public UpdateResult updateMember(Member changes) {
+        return onMember(changes.getId(), library -> library.updateMember(changes), UpdateResult.NOT_FOUND);
+    }
+
+    /**
+     * Removes a member from the branch that has them.
+     */
+    public UpdateResult removeMember(String memberId) {
+        return onMember(memberId, library -> library.removeMember(memberId), UpdateResult.NOT_FOUND);
+    }
+
+    /**
+     * Returns a member's holds, oldest first, or an empty list if there is
+     * no such member.
+     */
+    public List<Hold> getHolds(String memberId) {
+        return onMember(memberId, library -> library.getHolds(memberId), new ArrayList<>());
+    }
+
+    /**
+     * Lends a copy of a book to a member, in the branch that has the book.
+     */
+    public LoanResult borrowBook(String memberId, String bookId) {
+        return onLoan(memberId, bookId, true);
+    }
+
+    /**
+     * Takes a copy of a book back, in the branch that has the book.
+     */
+    public LoanResult returnBook(String memberId, String bookId) {
+        return onLoan(memberId, bookId, false);
+    }
+
+    private LoanResult onLoan(String memberId, String bookId, boolean borrow) {
+        ReadWriteLock memberLock = memberLocks.get(memberId);
+        ReadWriteLock bookLock = bookLocks.get(bookId);
+        memberLock.readLock().lock();
+        bookLock.readLock().lock();
+        try {
+            String memberBranch = locateMember(memberId);
+            if (memberBranch == null) {
+                return LoanResult.MEMBER_NOT_FOUND;
+            }
+            String bookBranch = locateBook(bookId);
+            if (bookBranch == null) {
+                return LoanResult.BOOK_NOT_FOUND;
+            }
+            if (!memberBranch.equals(bookBranch)) {
+                return LoanResult.OTHER_BRANCH;
+            }
+            Library library = branches.get(bookBranch);
+            return borrow ? library.borrowBook(memberId, bookId) : library.returnBook(memberId, bookId);
+        } finally {
+            bookLock.readLock().unlock();
+            memberLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Places a hold on a book, in the branch that has the book.
+     */
+    public HoldResult placeHold(String memberId, String bookId, int priority) {
+        return onHold(memberId, bookId, priority, true);
+    }
+
+    /**
+     * Cancels a hold on a book, in the branch that has the book.
+     */
+    public HoldResult cancelHold(String memberId, String bookId) {
+        return onHold(memberId, bookId, 0, false);
+    }
+
+    private HoldResult onHold(String memberId, String bookId, int priority, boolean place) {
+        ReadWriteLock memberLock = memberLocks.get(memberId);
+        ReadWriteLock bookLock = bookLocks.get(bookId);
+        memberLock.readLock().lock();
+        bookLock.readLock().lock();
+        try {
+            String memberBranch = locateMember(memberId);
+            if (memberBranch == null) {
+                return HoldResult.MEMBER_NOT_FOUND;
+            }
+            String bookBranch = locateBook(bookId);
+            if (bookBranch == null) {
+                return HoldResult.BOOK_NOT_FOUND;
+            }
+            if (!memberBranch.equals(bookBranch)) {
+                return HoldResult.OTHER_BRANCH;
+            }
+            Library library = branches.get(bookBranch);
+            return place ? library.placeHold(memberId, bookId, priority) : library.cancelHold(memberId, bookId);
+        } finally {
+            bookLock.readLock().unlock();
+            memberLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches titles and authors in every branch at once, allowing up to
+     * maxEdits typos per word. Returns the matches per branch, in branch
+     * order.
+     */
+    public Map<String, List<Book>> searchBooks(String query, int maxEdits) {
+        return fanOut(catalog -> catalog.searchBooks(query, maxEdits));
+    }
+
+    /**
+     * Finds the books by an author in every branch at once.
+     */
+    public Map<String, List<Book>> findBooksByAuthor(String author, boolean availableOnly) {
+        return fanOut(catalog -> catalog.findBooksByAuthor(author, availableOnly));
+    }
+
+    /**
+     * Finds the books by every author whose name starts with the prefix, in
+     * every branch at once.
+     */
+    public Map<String, List<Book>> findBooksByAuthorPrefix(String prefix, boolean availableOnly) {
+        return fanOut(catalog -> catalog.findBooksByAuthorPrefix(prefix, availableOnly));
+    }
+
+    /**
+     * Finds the books with an ISBN in every branch at once.
+     */
+    public Map<String, List<Book>> findBooksByIsbn(String isbn, boolean availableOnly) {
+        return fanOut(catalog -> catalog.findBooksByIsbn(isbn, availableOnly));
+    }
+
+    /**
+     * Returns the number of open loans in all branches.
+     */
+    public int getOpenLoanCount() {
+        int count = 0;
+        for (Library library : branches.values()) {
+            count += library.getLoanHistory().getOpenLoanCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of overdue loans in all branches.
+     */
+    public int getOverdueLoanCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Library library : branches.values()) {
+            count += library.getLoanHistory().getOverdueLoanCount(now);
+        }
+        return count;
+    }
+
+    /**
+     * Returns up to limit overdue loans from all branches, the longest
+     * overdue first.
+     */
+    public List<Loan> getOverdueLoans(int limit) {
+        long now = System.currentTimeMillis();
+        List<Loan> loans = new ArrayList<>();
+        for (Library library : branches.values()) {
+            loans.addAll(library.getLoanHistory().getOverdueLoans(now, limit));
+        }
+        loans.sort(Comparator.comparingLong(Loan::getDueAt));
+        return loans.size() > limit ? new ArrayList<>(loans.subList(0, limit)) : loans;
+    }
+
+    /**
+     * Returns up to limit books borrowed most in all branches, with their
+     * number of borrows. A book moved between branches in the window counts
+     * its borrows in both.
+     */
+    public Map<String, Integer> getTopBooks(int limit) {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> borrows = new HashMap<>();
+        for (Library library : branches.values()) {
+            // A book in the overall top is in the top of some branch unless moved
+            library.getLoanHistory().getTopBooks(now, limit).forEach((id, n) -> borrows.merge(id, n, Integer::sum));
+        }
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(borrows.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey()));
+        Map<String, Integer> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : ranked.subList(0, Math.min(limit, ranked.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+    /**
+     * Runs a lookup on every branch's catalog in parallel and collects the
+     * results in branch order. With one branch it runs on the caller.
+     */
+    private Map<String, List<Book>> fanOut(Function<Catalog, List<Book>> lookup) {
+        Map<String, List<Book>> results = new LinkedHashMap<>();
+        if (branches.size() == 1) {
+            Map.Entry<String, Library> only = branches.entrySet().iterator().next();
+            results.put(only.getKey(), lookup.apply(only.getValue().getCatalog()));
+            return results;
+        }
+        Map<String, CompletableFuture<List<Book>>> running = new LinkedHashMap<>();
+        for (Map.Entry<String, Library> entry : branches.entrySet()) {
+            Catalog catalog = entry.getValue().getCatalog();
+            running.put(entry.getKey(), CompletableFuture.supplyAsync(() -> lookup.apply(catalog), workers));
+        }
+        for (Map.Entry<String, CompletableFuture<List<Book>>> entry : running.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().join());
+        }
+        return results;
+    }
+
+    /**
+     * Moves a book and all its copies to another branch. A book with copies
+     * on loan or with holds cannot be moved.
+     *
+     * @throws IllegalArgumentException if there is no such branch
+     * @throws UncheckedIOException if the transfer log cannot be written
+     */
+    public UpdateResult transferBook(String bookId, String toBranch) {
+        long start = System.nanoTime();
+        Library target = branch(toBranch);
+        ReadWriteLock lock = bookLocks.get(bookId);
+        lock.writeLock().lock();
+        try {
+            String fromBranch = locateBook(bookId);
+            if (fromBranch == null) {
+                return UpdateResult.NOT_FOUND;
+            }
+            if (fromBranch.equals(toBranch)) {
+                return UpdateResult.UPDATED;
+            }
+            Library source = branches.get(fromBranch);
+            Book book = source.getCatalog().findBookById(bookId);
+            if (book == null) {
+                return UpdateResult.NOT_FOUND;
+            }
+            if (target.getCatalog().containsBook(bookId)) {
+                throw new IllegalStateException("Book " + bookId + " is already in branch " + toBranch);
+            }
+            String record = book.toCSV();
+            long sequence = logTransfer(Kind.BOOK, bookId, fromBranch, toBranch, record);
+            UpdateResult removed = source.removeBook(bookId);
+            if (!removed.isSuccess()) {
+                logDone(sequence);
+                return removed;
+            }
+            if (!arrive(sequence, Kind.BOOK, bookId, record, source, target)) {
+                return UpdateResult.NOT_MOVED;
+            }
+            bookBranches.put(bookId, toBranch);
+            return UpdateResult.UPDATED;
+        } finally {
+            lock.writeLock().unlock();
+            Metrics.Operation.TRANSFER.record(start);
+        }
+    }
+
+    /**
+     * Moves a member to another branch. A member with books on loan or with
+     * holds cannot be moved.
+     *
+     * @throws IllegalArgumentException if there is no such branch
+     * @throws UncheckedIOException if the transfer log cannot be written
+     */
+    public UpdateResult transferMember(String memberId, String toBranch) {
+        long start = System.nanoTime();
+        Library target = branch(toBranch);
+        ReadWriteLock lock = memberLocks.get(memberId);
+        lock.writeLock().lock();
+        try {
+            String fromBranch = locateMember(memberId);
+            if (fromBranch == null) {
+                return UpdateResult.NOT_FOUND;
+            }
+            if (fromBranch.equals(toBranch)) {
+                return UpdateResult.UPDATED;
+            }
+            Library source = branches.get(fromBranch);
+            Member member = source.getCatalog().findMemberById(memberId);
+            if (member == null) {
+                return UpdateResult.NOT_FOUND;
+            }
+            if (target.getCatalog().containsMember(memberId)) {
+                throw new IllegalStateException("Member " + memberId + " is already in branch " + toBranch);
+            }
+            String record = member.toCSV();
+            long sequence = logTransfer(Kind.MEMBER, memberId, fromBranch, toBranch, record);
+            UpdateResult removed = source.removeMember(memberId);
+            if (!removed.isSuccess()) {
+                logDone(sequence);
+                return removed;
+            }
+            if (!arrive(sequence, Kind.MEMBER, memberId, record, source, target)) {
+                return UpdateResult.NOT_MOVED;
+            }
+            memberBranches.put(memberId, toBranch);
+            return UpdateResult.UPDATED;
+        } finally {
+            lock.writeLock().unlock();
+            Metrics.Operation.TRANSFER.record(start);
+        }
+    }
+
+    /**
+     * Saves every branch, in parallel, waiting until all are written.
+     */
+    public void saveData() {
+        List<CompletableFuture<Void>> saving = new ArrayList<>();
+        for (Library library : branches.values()) {
+            saving.add(CompletableFuture.runAsync(library::saveData, workers));
+        }
+        CompletableFuture.allOf(saving.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Closes every branch. Call saveData() first to keep everything in the
+     * snapshot files.
+     */
+    public void close() {
+        workers.shutdown();
+        for (Library library : branches.values()) {
+            library.close();
+        }
+    }
+
+    /**
+     * Runs an operation on the branch that has a book, while the book cannot
+     * move, or returns notFound if no branch has it.
+     */
+    private <T> T onBook(String bookId, Function<Library, T> operation, T notFound) {
+        ReadWriteLock lock = bookLocks.get(bookId);
+        lock.readLock().lock();
+        try {
+            String branch = locateBook(bookId);
+            return branch == null ? notFound : operation.apply(branches.get(branch));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs an operation on the branch that has a member, while the member
+     * cannot move, or returns notFound if no branch has them.
+     */
+    private <T> T onMember(String memberId, Function<Library, T> operation, T notFound) {
+        ReadWriteLock lock = memberLocks.get(memberId);
+        lock.readLock().lock();
+        try {
+            String branch = locateMember(memberId);
+            return branch == null ? notFound : operation.apply(branches.get(branch));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Library branch(String name) {
+        Library library = branches.get(name);
+        if (library == null) {
+            throw new IllegalArgumentException("Unknown branch: " + name);
+        }
+        return library;
+    }
+
+    /**
+     * Looks an ID up in the routing index, checking that the branch still
+     * has it; otherwise asks every branch and updates the index.
+     */
+    private String locate(Map<String, String> index, String id, Function<Catalog, Boolean> has) {
+        String branch = index.get(id);
+        if (branch != null && has.apply(branches.get(branch).getCatalog())) {
+            return branch;
+        }
+        for (Map.Entry<String, Library> entry : branches.entrySet()) {
+            if (has.apply(entry.getValue().getCatalog())) {
+                index.put(id, entry.getKey());
+                return entry.getKey();
+            }
+        }
+        if (branch != null) {
+            index.remove(id, branch);
+        }
+        return null;
+    }
+
+    private void buildIndex() {
+        for (Map.Entry<String, Library> entry : branches.entrySet()) {
+            Catalog catalog = entry.getValue().getCatalog();
+            for (Book book : catalog.allBooks()) {
+                String other = bookBranches.putIfAbsent(book.getId(), entry.getKey());
+                if (other != null) {
+                    System.err.println("Book " + book.getId() + " is in branches " + other + " and "
+                            + entry.getKey() + "; using " + other);
+                }
+            }
+            for (Member member : catalog.allMembers()) {
+                String other = memberBranches.putIfAbsent(member.getId(), entry.getKey());
+                if (other != null) {
+                    System.err.println("Member " + member.getId() + " is in branches " + other + " and "
+                            + entry.getKey() + "; using " + other);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a record that was removed from its old branch to the new one, and
+     * marks the transfer done. If the new branch does not take it, the record
+     * is put back in the old branch and false is returned. If it cannot be
+     * put back either, or the add failed after the record reached the new
+     * branch, the transfer is left open so that the next start finishes it
+     * from the log.
+     */
+    private boolean arrive(long sequence, Kind kind, String id, String record, Library source, Library target) {
+        boolean added;
+        try {
+            added = add(kind, target, record);
+        } catch (RuntimeException e) {
+            if (!contains(kind, target, id) && putBack(kind, id, record, source)) {
+                logDone(sequence);
+            }
+            throw e;
+        }
+        if (added || putBack(kind, id, record, source)) {
+            logDone(sequence);
+        }
+        return added;
+    }
+
+    /**
+     * Returns a record to the branch it was being moved from, or returns
+     * false if the branch does not take it.
+     */
+    private static boolean putBack(Kind kind, String id, String record, Library source) {
+        try {
+            if (add(kind, source, record)) {
+                return true;
+            }
+            System.err.println("Error returning " + id + " to its branch: the ID is already in use");
+        } catch (RuntimeException e) {
+            System.err.println("Error returning " + id + " to its branch: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static boolean add(Kind kind, Library library, String record) {
+        if (kind == Kind.BOOK) {
+            return library.addBook(onShelf(Book.fromCSV(record)));
+        }
+        return library.addMember(Member.fromCSV(record));
+    }
+
+    private static boolean contains(Kind kind, Library library, String id) {
+        Catalog catalog = library.getCatalog();
+        return kind == Kind.BOOK ? catalog.containsBook(id) : catalog.containsMember(id);
+    }
+
+    /**
+     * A moved book was not in use, so all its copies are on the shelf.
+     */
+    private static Book onShelf(Book book) {
+        book.setCopies(book.getCopies(), book.getCopies());
+        return book;
+    }
+
+    /**
+     * Writes the start of a transfer, with the whole record, to the transfer
+     * log and syncs it. Returns the transfer's sequence number.
+     */
+    private long logTransfer(Kind kind, String id, String from, String to, String record) {
+        if (transferLog == null) {
+            throw new IllegalStateException("Transfers are not enabled");
+        }
+        long sequence = transferSequence.incrementAndGet();
+        appendToLog(CsvWriter.join(TRANSFER, String.valueOf(sequence), kind.name(), id, from, to) + "," + record);
+        return sequence;
+    }
+
+    private void logDone(long sequence) {
+        appendToLog(CsvWriter.join(DONE, String.valueOf(sequence)));
+    }
+
+    private synchronized void appendToLog(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(Paths.get(transferLog), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing transfer log", e);
+        }
+    }
+
+    /**
+     * Finishes the transfers in the log that were started but not marked
+     * done, then empties the log. A record still in its old branch is moved
+     * if it is not in use by now; a record in neither branch is added to the
+     * new one from the log, or put back in the old one if the new one does
+     * not take it. Transfers that still cannot be finished stay in the log
+     * and are tried again on the next start.
+     */
+    private void finishTransfers() {
+        File file = new File(transferLog);
+        if (!file.exists()) {
+            return;
+        }
+        Map<String, String[]> unfinished = new LinkedHashMap<>();
+        long lastSequence = 0;
+        try (CsvReader reader = new CsvReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            while (true) {
+                try {
+                    if (!reader.next()) {
+                        break;
+                    }
+                } catch (CsvFormatException e) {
+                    // A half-written last line: a transfer that never started, or a
+                    // DONE mark whose transfer is simply checked again below
+                    continue;
+                }
+                if (reader.getField(0).equals(TRANSFER) && reader.getFieldCount() > 6) {
+                    String[] fields = new String[reader.getFieldCount()];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = reader.getField(i);
+                    }
+                    unfinished.put(fields[1], fields);
+                    lastSequence = Math.max(lastSequence, sequenceOf(fields[1]));
+                } else if (reader.getField(0).equals(DONE) && reader.getFieldCount() > 1) {
+                    unfinished.remove(reader.getField(1));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading transfer log: " + e.getMessage());
+            return;
+        }
+        transferSequence.set(lastSequence);
+        int open = 0;
+        for (String[] fields : unfinished.values()) {
+            boolean finished;
+            try {
+                finished = finishTransfer(fields);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping invalid transfer " + fields[1] + ": " + e.getMessage());
+                finished = true;
+            } catch (RuntimeException e) {
+                System.err.println("Error finishing transfer of " + fields[3] + ": " + e.getMessage());
+                finished = false;
+            }
+            if (finished) {
+                logDone(sequenceOf(fields[1]));
+            } else {
+                open++;
+            }
+        }
+        if (open > 0) {
+            System.err.println(open + " transfer(s) could not be finished and stay in " + transferLog);
+            return;
+        }
+        try {
+            Files.delete(file.toPath());
+            FileHandler.syncDirectory(file);
+        } catch (IOException e) {
+            System.err.println("Error removing transfer log: " + e.getMessage());
+        }
+    }
+
+    private static long sequenceOf(String field) {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Finishes one transfer from the log. Returns false if the record could
+     * not be placed in either branch, so the transfer must stay open.
+     */
+    private boolean finishTransfer(String[] fields) {
+        Kind kind = Kind.valueOf(fields[2]);
+        String id = fields[3];
+        Library source = branches.get(fields[4]);
+        Library target = branches.get(fields[5]);
+        if (source == null || target == null) {
+            System.err.println("Cannot finish transfer of " + id + ": unknown branch " + fields[4] + " or " + fields[5]);
+            return false;
+        }
+        String record = CsvWriter.join(Arrays.copyOfRange(fields, 6, fields.length));
+        boolean inSource = contains(kind, source, id);
+        boolean inTarget = contains(kind, target, id);
+        if (inSource) {
+            UpdateResult removed = kind == Kind.BOOK ? source.removeBook(id) : source.removeMember(id);
+            if (!removed.isSuccess()) {
+                System.err.println("Abandoning transfer of " + id + " to " + fields[5] + ": " + removed.getMessage());
+                return true;
+            }
+        }
+        if (!inTarget) {
+            boolean added;
+            try {
+                added = add(kind, target, record);
+            } catch (RuntimeException e) {
+                System.err.println("Error adding " + id + " to " + fields[5] + ": " + e.getMessage());
+                added = contains(kind, target, id);
+            }
+            if (!added) {
+                if (!putBack(kind, id, record, source)) {
+                    return false;
+                }
+                System.out.println("Returned " + id + " to " + fields[4] + ": it could not be added to "
+                        + fields[5] + ".");
+                return true;
+            }
+        }
+        System.out.println("Finished transfer of " + id + " from " + fields[4] + " to " + fields[5] + ".");
+        return true;
+    }
+
+    private static ExecutorService newWorkers(int branches) {
+        int threads = Math.max(1, Math.min(branches, Runtime.getRuntime().availableProcessors()));
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "branch-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,661 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Holds the books and members of the library and keeps an ID index over each,
+ * so lookups by ID do not have to scan the lists.
+ *
+ * The lists keep insertion order for display and saving; the maps are only
+ * used for point lookups. IDs are treated as immutable once a record is added.
+ *
+ * Books are also added to a {@link SearchIndex} for title and author search,
+ * and to a {@link BookIndex} for lookups by author, author prefix and ISBN.
+ * Author names are deduplicated as books are added, so all books by the same
+ * author share one String instead of each holding its own copy from the file.
+ *
+ * The catalog also keeps the {@link HoldQueue} of members waiting for books,
+ * and finds books by the barcodes of their copies.
+ *
+ * The catalog also tracks which records changed since the last save, so a save
+ * only has to write those. Adding, updating and removing through the catalog
+ * marks records itself; code that changes a Book or Member directly (loans,
+ * member edits) calls {@link #markChanged(Book)} / {@link #markChanged(Member)}.
+ *
+ * Searches are timed under {@link Metrics.Operation#SEARCH}.
+ *
+ * Readers that list or export can use a {@link CatalogSnapshot} instead of
+ * the live records. The catalog tracks what changed since the last snapshot
+ * separately from what changed since the last save; {@link #takeChanges()}
+ * copies those records and {@link #publish(CatalogSnapshot.Changes)} makes the
+ * next snapshot current, which {@link #snapshot()} returns without locking.
+ *
+ * Lookups by ID are lock-free. Adding records is synchronized so the lists and
+ * maps change together; the list getters return copies that are safe to iterate
+ * while other threads keep adding.
+ */
+public class Catalog {
+    /**
+     * Sort orders for paged book listings. Keys are compared ignoring case,
+     * with ties broken by ID.
+     */
+    public enum BookOrder {
+        ID(Book::getId), TITLE(Book::getTitle), AUTHOR(Book::getAuthor);
+
+        final Function<Book, String> key;
+        final Comparator<Book> comparator;
+
+        BookOrder(Function<Book, String> key) {
+            this.key = key;
+            this.comparator = Comparator.comparing((Book record) -> keyOf(key, record), KEY_ORDER)
+                    .thenComparing(Book::getId);
+        }
+
+        /**
+         * Builds a stand-in book that sorts where the cursor points.
+         */
+        Book probe(String cursor) {
+            String[] keyAndId = Page.decodeCursor(cursor);
+            String id = keyAndId[1];
+            switch (this) {
+                case TITLE:
+                    return new Book(id, keyAndId[0], null, null);
+                case AUTHOR:
+                    return new Book(id, null, keyAndId[0], null);
+                default:
+                    return new Book(id, null, null, null);
+            }
+        }
+    }
+
+    /**
+     * Sort orders for paged member listings, like {@link BookOrder}.
+     */
+    public enum MemberOrder {
+        ID(Member::getId), NAME(Member::getName);
+
+        final Function<Member, String> key;
+        final Comparator<Member> comparator;
+
+        MemberOrder(Function<Member, String> key) {
+            this.key = key;
+            this.comparator = Comparator.comparing((Member record) -> keyOf(key, record), KEY_ORDER)
+                    .thenComparing(Member::getId);
+        }
+
+        Member probe(String cursor) {
+            String[] keyAndId = Page.decodeCursor(cursor);
+            return this == NAME
+                    ? new Member(keyAndId[1], keyAndId[0], null, null)
+                    : new Member(keyAndId[1], null, null, null);
+        }
+    }
+
+    private static final Comparator<String> KEY_ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private static <T> String keyOf(Function<T, String> key, T record) {
+        String value = key.apply(record);
+        return value == null ? "" : value;
+    }
+
+    private final List<Book> books = new ArrayList<>();
+    private final Map<String, Book> booksById = new ConcurrentHashMap<>();
+    private final List<Member> members = new ArrayList<>();
+    private final Map<String, Member> membersById = new ConcurrentHashMap<>();
+    private final Map<String, String> authors = new ConcurrentHashMap<>();
+    private final Map<String, Book> booksByBarcode = new ConcurrentHashMap<>();
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final BookIndex bookIndex = new BookIndex();
+    private final HoldQueue holds = new HoldQueue();
+    private final Set<String> changedBookIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> changedMemberIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> unpublishedBookIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> unpublishedMemberIds = ConcurrentHashMap.newKeySet();
+    private final List<Book> unpublishedBooks = new ArrayList<>();
+    private final List<Member> unpublishedMembers = new ArrayList<>();
+    private boolean booksReset;
+    private boolean membersReset;
+    private volatile CatalogSnapshot snapshot = CatalogSnapshot.EMPTY;
+    private volatile Runnable changeListener;
+
+    /**
+     * Adds a book. Returns false if a book with the same ID already exists.
+     */
+    public synchronized boolean addBook(Book book) {
+        if (booksById.putIfAbsent(book.getId(), book) != null) {
+            return false;
+        }
+        book.setAuthor(canonicalAuthor(book.getAuthor()));
+        for (String barcode : book.getBarcodes()) {
+            if (booksByBarcode.putIfAbsent(barcode, book) != null) {
+                System.err.println("Duplicate barcode " + barcode + " on book " + book.getId());
+            }
+        }
+        books.add(book);
+        searchIndex.add(book);
+        bookIndex.add(book);
+        changedBookIds.add(book.getId());
+        unpublishedBooks.add(book);
+        changed();
+        return true;
+    }
+
+    /**
+     * Adds a member. Returns false if a member with the same ID already exists.
+     */
+    public synchronized boolean addMember(Member member) {
+        if (membersById.putIfAbsent(member.getId(), member) != null) {
+            return false;
+        }
+        members.add(member);
+        changedMemberIds.add(member.getId());
+        unpublishedMembers.add(member);
+        changed();
+        return true;
+    }
+
+    /**
+     * Removes a book. Returns the removed book, or null if there was none.
+     */
+    public synchronized Book removeBook(String id) {
+        Book book = booksById.remove(id);
+        if (book != null) {
+            books.remove(book);
+            for (String barcode : book.getBarcodes()) {
+                booksByBarcode.remove(barcode, book);
+            }
+            searchIndex.remove(book);
+            bookIndex.remove(book);
+            bookChanged(id);
+        }
+        return book;
+    }
+
+    /**
+     * Removes a member. Returns the removed member, or null if there was none.
+     */
+    public synchronized Member removeMember(String id) {
+        Member member = membersById.remove(id);
+        if (member != null) {
+            members.remove(member);
+            memberChanged(id);
+        }
+        return member;
+    }
+
+    /**
+     * Changes a book's title, author and ISBN, keeping the indexes in step.
+     */
+    public synchronized void updateBook(Book book, String title, String author, String isbn) {
+        searchIndex.remove(book);
+        bookIndex.remove(book);
+        book.setTitle(title);
+        book.setAuthor(canonicalAuthor(author));
+        book.setIsbn(isbn);
+        searchIndex.add(book);
+        bookIndex.add(book);
+        bookChanged(book.getId());
+    }
+
+    /**
+     * Adds a copy with the given barcode to a book. Returns false if another
+     * copy already has the barcode. The copy is not put on the shelf.
+     */
+    public synchronized boolean addCopy(Book book, String barcode) {
+        if (barcode != null && !barcode.isEmpty() && booksByBarcode.putIfAbsent(barcode, book) != null) {
+            return false;
+        }
+        book.addCopy(barcode);
+        bookChanged(book.getId());
+        return true;
+    }
+
+    /**
+     * Sets every book's count of copies on the shelf from the loans and the
+     * ready holds, e.g. after replaying the journal.
+     */
+    public synchronized void recountCopies() {
+        Map<String, Integer> out = new HashMap<>();
+        for (Member member : members) {
+            for (String bookId : member.getBorrowedBookIds()) {
+                out.merge(bookId, 1, Integer::sum);
+            }
+        }
+        for (Hold hold : holds.getHolds()) {
+            if (hold.isReady()) {
+                out.merge(hold.getBookId(), 1, Integer::sum);
+            }
+        }
+        for (Book book : books) {
+            int available = book.getCopies() - out.getOrDefault(book.getId(), 0);
+            if (available != book.getAvailableCopies()) {
+                book.setCopies(book.getCopies(), available);
+                bookChanged(book.getId());
+            }
+        }
+    }
+
+    /**
+     * Records that a book was changed outside the catalog, e.g. lent or returned.
+     */
+    public void markChanged(Book book) {
+        bookChanged(book.getId());
+    }
+
+    /**
+     * Records that a member was changed outside the catalog.
+     */
+    public void markChanged(Member member) {
+        memberChanged(member.getId());
+    }
+
+    private void bookChanged(String id) {
+        changedBookIds.add(id);
+        unpublishedBookIds.add(id);
+        changed();
+    }
+
+    private void memberChanged(String id) {
+        changedMemberIds.add(id);
+        unpublishedMemberIds.add(id);
+        changed();
+    }
+
+    private void changed() {
+        Runnable listener = changeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets a callback run after every change, e.g. to schedule publishing a
+     * snapshot. It runs on the writing thread, so it must be quick.
+     */
+    public void setChangeListener(Runnable listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Returns the last published snapshot. Never blocks.
+     */
+    public CatalogSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns true if records changed since the last {@link #takeChanges()}.
+     */
+    public synchronized boolean hasUnpublishedChanges() {
+        return booksReset || membersReset || !unpublishedBooks.isEmpty() || !unpublishedMembers.isEmpty()
+                || !unpublishedBookIds.isEmpty() || !unpublishedMemberIds.isEmpty();
+    }
+
+    /**
+     * Copies the records changed since the last call, for the next snapshot,
+     * and starts tracking again. Costs about the number of changed records.
+     * Callers must publish the results in the order they were taken.
+     *
+     * Writers may keep going meanwhile. Each copy is a whole version of its
+     * record: loans swap a member's list of books in one step, copy counts
+     * are atomic, and the other fields only change under this object's lock.
+     * A loan or return still in progress may show in the book's copies on
+     * the shelf before it shows in the member's books, or the other way
+     * round; both records are marked as changed when it completes, so the
+     * next snapshot has both. An ID is removed before its record is copied,
+     * so a change made during the copy is published again next time rather
+     * than lost.
+     */
+    public synchronized CatalogSnapshot.Changes takeChanges() {
+        Map<String, Book> addedBooks = new LinkedHashMap<>();
+        for (Book book : unpublishedBooks) {
+            // Skip books removed (or removed and added again) since
+            if (booksById.get(book.getId()) == book) {
+                addedBooks.put(book.getId(), book.copy());
+            }
+        }
+        Map<String, Book> changedBooks = new HashMap<>();
+        for (String id : unpublishedBookIds) {
+            unpublishedBookIds.remove(id);
+            if (addedBooks.containsKey(id)) {
+                // Added in this batch: drop any copy from before a removal, so it goes to the end
+                changedBooks.put(id, null);
+            } else {
+                Book book = booksById.get(id);
+                changedBooks.put(id, book == null ? null : book.copy());
+            }
+        }
+        Map<String, Member> addedMembers = new LinkedHashMap<>();
+        for (Member member : unpublishedMembers) {
+            if (membersById.get(member.getId()) == member) {
+                addedMembers.put(member.getId(), member.copy());
+            }
+        }
+        Map<String, Member> changedMembers = new HashMap<>();
+        for (String id : unpublishedMemberIds) {
+            unpublishedMemberIds.remove(id);
+            if (addedMembers.containsKey(id)) {
+                // Added in this batch: drop any copy from before a removal, so it goes to the end
+                changedMembers.put(id, null);
+            } else {
+                Member member = membersById.get(id);
+                changedMembers.put(id, member == null ? null : member.copy());
+            }
+        }
+        CatalogSnapshot.Changes changes = new CatalogSnapshot.Changes(
+                booksReset, changedBooks, new ArrayList<>(addedBooks.values()),
+                membersReset, changedMembers, new ArrayList<>(addedMembers.values()));
+        unpublishedBooks.clear();
+        unpublishedMembers.clear();
+        booksReset = false;
+        membersReset = false;
+        return changes;
+    }
+
+    /**
+     * Applies changes from {@link #takeChanges()} to the current snapshot and
+     * publishes the result. Readers see either the old snapshot or the new
+     * one, never part of the changes.
+     */
+    public void publish(CatalogSnapshot.Changes changes) {
+        snapshot = snapshot.apply(changes);
+    }
+
+    /**
+     * Returns the IDs of books added, changed or removed since the last
+     * {@link #clearChanges()}. Removed IDs are no longer found by ID.
+     */
+    public List<String> getChangedBookIds() {
+        return new ArrayList<>(changedBookIds);
+    }
+
+    /**
+     * Returns the IDs of members added, changed or removed since the last
+     * {@link #clearChanges()}. Removed IDs are no longer found by ID.
+     */
+    public List<String> getChangedMemberIds() {
+        return new ArrayList<>(changedMemberIds);
+    }
+
+    /**
+     * Marks the given IDs as changed again, after saving them failed.
+     */
+    public void restoreChanges(List<String> bookIds, List<String> memberIds) {
+        changedBookIds.addAll(bookIds);
+        changedMemberIds.addAll(memberIds);
+    }
+
+    /**
+     * Forgets all tracked changes, once they have been saved. Callers must
+     * make sure no changes are made between reading and clearing them.
+     */
+    public void clearChanges() {
+        changedBookIds.clear();
+        changedMemberIds.clear();
+    }
+
+    /**
+     * Finds a book by ID, or returns null if there is none.
+     */
+    public Book findBookById(String id) {
+        return booksById.get(id);
+    }
+
+    /**
+     * Finds the book a copy with the given barcode belongs to, or returns
+     * null if there is none.
+     */
+    public Book findBookByBarcode(String barcode) {
+        return booksByBarcode.get(barcode);
+    }
+
+    /**
+     * Finds a member by ID, or returns null if there is none.
+     */
+    public Member findMemberById(String id) {
+        return membersById.get(id);
+    }
+
+    /**
+     * Searches titles and authors, allowing {@link SearchIndex#MAX_EDITS}
+     * typos per word; see {@link SearchIndex#search(String, int)}.
+     */
+    public List<Book> searchBooks(String query) {
+        return searchBooks(query, SearchIndex.MAX_EDITS);
+    }
+
+    /**
+     * Searches titles and authors, allowing up to maxEdits typos per word.
+     */
+    public List<Book> searchBooks(String query, int maxEdits) {
+        long start = System.nanoTime();
+        List<Book> found = searchIndex.search(query, maxEdits);
+        Metrics.Operation.SEARCH.record(start);
+        return found;
+    }
+
+    /**
+     * Finds the books by an author, ignoring case, optionally only the
+     * available ones.
+     */
+    public List<Book> findBooksByAuthor(String author, boolean availableOnly) {
+        long start = System.nanoTime();
+        List<Book> found = bookIndex.findByAuthor(author, availableOnly);
+        Metrics.Operation.SEARCH.record(start);
+        return found;
+    }
+
+    /**
+     * Finds the books by every author whose name starts with the prefix,
+     * ordered by author, optionally only the available ones.
+     */
+    public List<Book> findBooksByAuthorPrefix(String prefix, boolean availableOnly) {
+        long start = System.nanoTime();
+        List<Book> found = bookIndex.findByAuthorPrefix(prefix, availableOnly);
+        Metrics.Operation.SEARCH.record(start);
+        return found;
+    }
+
+    /**
+     * Finds the books with an ISBN, ignoring hyphens and spaces, optionally
+     * only the available ones.
+     */
+    public List<Book> findBooksByIsbn(String isbn, boolean availableOnly) {
+        long start = System.nanoTime();
+        List<Book> found = bookIndex.findByIsbn(isbn, availableOnly);
+        Metrics.Operation.SEARCH.record(start);
+        return found;
+    }
+
+    /**
+     * Returns the holds on books.
+     */
+    public HoldQueue getHolds() {
+        return holds;
+    }
+
+    public boolean containsBook(String id) {
+        return booksById.containsKey(id);
+    }
+
+    public boolean containsMember(String id) {
+        return membersById.containsKey(id);
+    }
+
+    /**
+     * Replaces all books, e.g. after loading them from file.
+     * Records with a duplicate ID are skipped; the first one wins.
+     * The loaded books are taken to be saved already.
+     */
+    public synchronized void setBooks(List<Book> loaded) {
+        books.clear();
+        booksById.clear();
+        authors.clear();
+        booksByBarcode.clear();
+        searchIndex.clear();
+        bookIndex.clear();
+        unpublishedBooks.clear();
+        unpublishedBookIds.clear();
+        booksReset = true;
+        for (Book book : loaded) {
+            if (!addBook(book)) {
+                System.err.println("Skipping duplicate book ID: " + book.getId());
+            }
+        }
+        changedBookIds.clear();
+    }
+
+    /**
+     * Replaces all members, e.g. after loading them from file.
+     * Records with a duplicate ID are skipped; the first one wins.
+     * The loaded members are taken to be saved already.
+     */
+    public synchronized void setMembers(List<Member> loaded) {
+        members.clear();
+        membersById.clear();
+        unpublishedMembers.clear();
+        unpublishedMemberIds.clear();
+        membersReset = true;
+        for (Member member : loaded) {
+            if (!addMember(member)) {
+                System.err.println("Skipping duplicate member ID: " + member.getId());
+            }
+        }
+        changedMemberIds.clear();
+    }
+
+    /**
+     * Returns a copy of all books in insertion order.
+     */
+    public synchronized List<Book> getBooks() {
+        return new ArrayList<>(books);
+    }
+
+    /**
+     * Returns a copy of all members in insertion order.
+     */
+    public synchronized List<Member> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    /**
+     * Returns up to limit books starting at offset, in insertion order.
+     */
+    public synchronized List<Book> getBooks(int offset, int limit) {
+        int from = Math.min(Math.max(0, offset), books.size());
+        int to = Math.min(books.size(), from + Math.max(0, limit));
+        return new ArrayList<>(books.subList(from, to));
+    }
+
+    /**
+     * Returns up to limit members starting at offset, in insertion order.
+     */
+    public synchronized List<Member> getMembers(int offset, int limit) {
+        int from = Math.min(Math.max(0, offset), members.size());
+        int to = Math.min(members.size(), from + Math.max(0, limit));
+        return new ArrayList<>(members.subList(from, to));
+    }
+
+    /**
+     * Returns up to limit books in the given order, starting after the
+     * cursor of the previous page, or from the start if the cursor is null.
+     * Takes one pass over the books and memory for one page; the books are
+     * not copied or locked.
+     *
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page<Book> getBooks(BookOrder order, String cursor, int limit) {
+        return pageOf(booksById.values(), order, cursor, limit);
+    }
+
+    /**
+     * Returns up to limit members in the given order, starting after the
+     * cursor of the previous page, like {@link #getBooks(BookOrder, String, int)}.
+     *
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page<Member> getMembers(MemberOrder order, String cursor, int limit) {
+        return pageOf(membersById.values(), order, cursor, limit);
+    }
+
+    /**
+     * Returns one page of the given books in the given order.
+     */
+    static Page<Book> pageOf(Iterable<Book> books, BookOrder order, String cursor, int limit) {
+        Book after = cursor == null ? null : order.probe(cursor);
+        List<Book> items = Page.select(books, order.comparator, after, limit);
+        return new Page<>(items, nextCursor(items, limit, book -> keyOf(order.key, book), Book::getId));
+    }
+
+    /**
+     * Returns one page of the given members in the given order.
+     */
+    static Page<Member> pageOf(Iterable<Member> members, MemberOrder order, String cursor, int limit) {
+        Member after = cursor == null ? null : order.probe(cursor);
+        List<Member> items = Page.select(members, order.comparator, after, limit);
+        return new Page<>(items, nextCursor(items, limit, member -> keyOf(order.key, member), Member::getId));
+    }
+
+    private static <T> String nextCursor(List<T> items, int limit, Function<T, String> key,
+                                         Function<T, String> id) {
+        if (items.isEmpty() || items.size() < limit) {
+            return null;
+        }
+        T last = items.get(items.size() - 1);
+        return Page.encodeCursor(key.apply(last), id.apply(last));
+    }
+
+    /**
+     * Returns a live, read-only view of all books in no particular order,
+     * for exporting them without copying the catalog. Iterating it never
+     * fails; every book that exists for the whole iteration is seen exactly
+     * once, and books added or removed meanwhile may or may not be.
+     */
+    public Collection<Book> allBooks() {
+        return Collections.unmodifiableCollection(booksById.values());
+    }
+
+    /**
+     * Returns a live, read-only view of all members, like {@link #allBooks()}.
+     */
+    public Collection<Member> allMembers() {
+        return Collections.unmodifiableCollection(membersById.values());
+    }
+
+    /**
+     * Returns the number of distinct author names.
+     */
+    public int getAuthorCount() {
+        return authors.size();
+    }
+
+    /**
+     * Returns the shared copy of an author name.
+     */
+    private String canonicalAuthor(String author) {
+        if (author == null) {
+            return null;
+        }
+        String existing = authors.putIfAbsent(author, author);
+        return existing != null ? existing : author;
+    }
+
+    public int getBookCount() {
+        return booksById.size();
+    }
+
+    public int getMemberCount() {
+        return membersById.size();
+    }
+}
@@ -0,0 +1,199 @@
+package library;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, point-in-time view of a catalog's books and members.
+ *
+ * The catalog publishes a new snapshot after each batch of writes (see
+ * {@link Catalog#publish(Changes)}); readers take the current one with
+ * {@link Catalog#snapshot()}, a single volatile read, and can then list,
+ * page and look up records without locks. The records are copies, so they
+ * do not change after publishing either.
+ *
+ * Each snapshot shares all unchanged records with the one before it, so
+ * publishing costs about the size of the batch, and a reader holding an old
+ * snapshot keeps a consistent view for as long as it needs.
+ */
+public final class CatalogSnapshot {
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(0,
+            SnapshotTable.empty(Book::getId), SnapshotTable.empty(Member::getId));
+
+    /**
+     * The records changed since the last snapshot, copied from the catalog
+     * while no writes were in progress.
+     */
+    public static final class Changes {
+        private final boolean booksReset;
+        private final Map<String, Book> changedBooks;
+        private final List<Book> addedBooks;
+        private final boolean membersReset;
+        private final Map<String, Member> changedMembers;
+        private final List<Member> addedMembers;
+
+        /**
+         * Changed records map an ID to its new copy, or to null if it was
+         * removed. Added records are in the order they were added. If a
+         * reset flag is set, the records were all replaced and the snapshot
+         * starts again from the added ones.
+         */
+        Changes(boolean booksReset, Map<String, Book> changedBooks, List<Book> addedBooks,
+                boolean membersReset, Map<String, Member> changedMembers, List<Member> addedMembers) {
+            this.booksReset = booksReset;
+            this.changedBooks = changedBooks;
+            this.addedBooks = addedBooks;
+            this.membersReset = membersReset;
+            this.changedMembers = changedMembers;
+            this.addedMembers = addedMembers;
+        }
+
+        /**
+         * Returns the number of records added, changed or removed.
+         */
+        public int size() {
+            return changedBooks.size() + addedBooks.size() + changedMembers.size() + addedMembers.size();
+        }
+    }
+
+    private final long version;
+    private final SnapshotTable<Book> books;
+    private final SnapshotTable<Member> members;
+
+    private CatalogSnapshot(long version, SnapshotTable<Book> books, SnapshotTable<Member> members) {
+        this.version = version;
+        this.books = books;
+        this.members = members;
+    }
+
+    /**
+     * Returns the next snapshot, with the changes applied to this one.
+     */
+    CatalogSnapshot apply(Changes changes) {
+        SnapshotTable<Book> nextBooks = changes.booksReset ? SnapshotTable.empty(Book::getId) : books;
+        SnapshotTable<Member> nextMembers = changes.membersReset ? SnapshotTable.empty(Member::getId) : members;
+        return new CatalogSnapshot(version + 1,
+                nextBooks.apply(changes.changedBooks, changes.addedBooks),
+                nextMembers.apply(changes.changedMembers, changes.addedMembers));
+    }
+
+    /**
+     * Returns the number of the snapshot; each one published is one higher.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getBookCount() {
+        return books.size();
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    /**
+     * Finds a book by ID, or returns null if there is none.
+     */
+    public Book findBookById(String id) {
+        return id == null ? null : books.get(id);
+    }
+
+    /**
+     * Finds a member by ID, or returns null if there is none.
+     */
+    public Member findMemberById(String id) {
+        return id == null ? null : members.get(id);
+    }
+
+    /**
+     * Returns this snapshot's copy of each of the given books, in the same
+     * order, skipping books it does not have, e.g. to show search results
+     * found in the live catalog.
+     */
+    public List<Book> versionsOf(List<Book> found) {
+        List<Book> result = new ArrayList<>(found.size());
+        for (Book book : found) {
+            Book version = books.get(book.getId());
+            if (version != null) {
+                result.add(version);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to limit books starting at offset, in insertion order.
+     */
+    public List<Book> getBooks(int offset, int limit) {
+        return books.range(offset, limit);
+    }
+
+    /**
+     * Returns up to limit members starting at offset, in insertion order.
+     */
+    public List<Member> getMembers(int offset, int limit) {
+        return members.range(offset, limit);
+    }
+
+    /**
+     * Returns up to limit books in the given order, starting after the
+     * cursor of the previous page, like
+     * {@link Catalog#getBooks(Catalog.BookOrder, String, int)}. Paging
+     * through one snapshot sees every book exactly once.
+     *
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page<Book> getBooks(Catalog.BookOrder order, String cursor, int limit) {
+        return Catalog.pageOf(books, order, cursor, limit);
+    }
+
+    /**
+     * Returns up to limit members in the given order, starting after the
+     * cursor of the previous page, like {@link #getBooks(Catalog.BookOrder, String, int)}.
+     *
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page<Member> getMembers(Catalog.MemberOrder order, String cursor, int limit) {
+        return Catalog.pageOf(members, order, cursor, limit);
+    }
+
+    /**
+     * Returns a read-only view of all books in insertion order.
+     */
+    public Collection<Book> allBooks() {
+        return new TableView<>(books);
+    }
+
+    /**
+     * Returns a read-only view of all members in insertion order.
+     */
+    public Collection<Member> allMembers() {
+        return new TableView<>(members);
+    }
+
+    /**
+     * A table seen as a collection, so it streams with a known size.
+     */
+    private static final class TableView<T> extends AbstractCollection<T> {
+        private final SnapshotTable<T> table;
+
+        TableView(SnapshotTable<T> table) {
+            this.table = table;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return table.iterator();
+        }
+
+        @Override
+        public int size() {
+            return table.size();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A consistent copy of the records to save, taken while the library's state
+ * is locked and written to the data files after the lock is released.
+ *
+ * For each data file it holds either all records (a full save) or only the
+ * records changed since the last save plus the IDs of removed ones (a delta
+ * save). The holds are few and always written in full. The records are
+ * copies, so the library can keep changing while the checkpoint is being
+ * written.
+ */
+public class Checkpoint {
+    private final String booksPath;
+    private final String membersPath;
+    private final String holdsPath;
+    private final boolean fullBooks;
+    private final boolean fullMembers;
+    private final List<String> changedBookIds;
+    private final List<String> changedMemberIds;
+    private final List<Book> books = new ArrayList<>();
+    private final List<String> removedBookIds = new ArrayList<>();
+    private final List<Member> members = new ArrayList<>();
+    private final List<String> removedMemberIds = new ArrayList<>();
+    private final List<Hold> holds;
+
+    private Checkpoint(Catalog catalog, String dataDir) {
+        booksPath = FileHandler.booksFile(dataDir);
+        membersPath = FileHandler.membersFile(dataDir);
+        holdsPath = FileHandler.holdsFile(dataDir);
+        fullBooks = FileHandler.needsFullSave(booksPath);
+        fullMembers = FileHandler.needsFullSave(membersPath);
+        changedBookIds = catalog.getChangedBookIds();
+        changedMemberIds = catalog.getChangedMemberIds();
+        holds = catalog.getHolds().getHolds();
+
+        if (fullBooks) {
+            for (Book book : catalog.getBooks()) {
+                books.add(book.copy());
+            }
+        } else {
+            for (String id : changedBookIds) {
+                Book book = catalog.findBookById(id);
+                if (book != null) {
+                    books.add(book.copy());
+                } else {
+                    removedBookIds.add(id);
+                }
+            }
+        }
+
+        if (fullMembers) {
+            for (Member member : catalog.getMembers()) {
+                members.add(member.copy());
+            }
+        } else {
+            for (String id : changedMemberIds) {
+                Member member = catalog.findMemberById(id);
+                if (member != null) {
+                    members.add(member.copy());
+                } else {
+                    removedMemberIds.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies what the next save has to write. The caller must keep the
+     * catalog from changing until this returns.
+     */
+    public static Checkpoint capture(Catalog catalog, String dataDir) {
+        return new Checkpoint(catalog, dataDir);
+    }
+
+    /**
+     * Writes the checkpoint to the data files.
+     * Returns true if all files were written successfully.
+     */
+    public boolean write() {
+        boolean booksSaved = fullBooks
+                ? FileHandler.saveBooks(books, booksPath)
+                : FileHandler.saveBookChanges(books, removedBookIds, booksPath);
+        boolean membersSaved = fullMembers
+                ? FileHandler.saveMembers(members, membersPath)
+                : FileHandler.saveMemberChanges(members, removedMemberIds, membersPath);
+        boolean holdsSaved = FileHandler.saveHolds(holds, holdsPath);
+        return booksSaved && membersSaved && holdsSaved;
+    }
+
+    /**
+     * Returns the IDs of the books that were changed when the checkpoint was taken.
+     */
+    public List<String> getChangedBookIds() {
+        return changedBookIds;
+    }
+
+    /**
+     * Returns the IDs of the members that were changed when the checkpoint was taken.
+     */
+    public List<String> getChangedMemberIds() {
+        return changedMemberIds;
+    }
+}
@@ -0,0 +1,30 @@
+package library;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a CSV row cannot be parsed. Carries the line the row starts on.
+ */
+public class CsvFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int lineNumber;
+    private final String reason;
+
+    public CsvFormatException(String message, int lineNumber) {
+        super("line " + lineNumber + ": " + message);
+        this.lineNumber = lineNumber;
+        this.reason = message;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Returns what is wrong with the row, without the line number.
+     */
+    public String getReason() {
+        return reason;
+    }
+}
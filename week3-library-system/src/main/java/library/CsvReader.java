@@ -0,0 +1,253 @@
+package library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Streaming CSV parser (RFC 4180) used for the data files and the journal.
+ *
+ * The input is read through one reusable char buffer and the fields of the
+ * current row are kept in a second reusable buffer, so no per-line String,
+ * regex or array is created; a field only becomes a String when it is asked
+ * for.
+ *
+ * Fields may be quoted with '"' and then contain commas, line breaks and
+ * doubled quotes. Blank lines and lines starting with '#' are skipped.
+ * A malformed row makes {@link #next()} throw a {@link CsvFormatException}
+ * with its line number; the reader has already moved past the row, so the
+ * caller can report it and keep reading.
+ */
+public class CsvReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int EOF = -1;
+
+    private final Reader in;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+
+    private char[] chars;
+    private int charCount;
+    private int[] fieldEnds = new int[16];
+    private int fieldCount;
+
+    private int lineNumber;
+    private int recordLine;
+
+    public CsvReader(Reader in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    public CsvReader(Reader in, int bufferSize) {
+        this.in = in;
+        this.buffer = new char[bufferSize];
+        this.chars = new char[Math.min(256, bufferSize)];
+    }
+
+    /**
+     * Creates a reader over a single line of text.
+     */
+    public static CsvReader of(String line) {
+        // Size the buffer to the line; a full-size buffer would dominate the cost
+        return new CsvReader(new StringReader(line), Math.max(16, line.length()));
+    }
+
+    /**
+     * Moves to the next row. Returns false at the end of the input.
+     */
+    public boolean next() throws IOException {
+        fieldCount = 0;
+        charCount = 0;
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                return false;
+            }
+            lineNumber++;
+            recordLine = lineNumber;
+            if (c == '\n') {
+                continue;
+            }
+            if (c == '\r') {
+                skipLineFeed();
+                continue;
+            }
+            if (c == '#') {
+                skipLine();
+                continue;
+            }
+            parseRecord(c);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of fields in the current row.
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns a field of the current row.
+     */
+    public String getField(int index) {
+        checkIndex(index);
+        int start = index == 0 ? 0 : fieldEnds[index - 1];
+        return new String(chars, start, fieldEnds[index] - start);
+    }
+
+    /**
+     * Returns true if a field is "true" (ignoring case), without creating a String.
+     */
+    public boolean getBoolean(int index) {
+        checkIndex(index);
+        int start = index == 0 ? 0 : fieldEnds[index - 1];
+        if (fieldEnds[index] - start != 4) {
+            return false;
+        }
+        return (chars[start] | 0x20) == 't' && (chars[start + 1] | 0x20) == 'r'
+                && (chars[start + 2] | 0x20) == 'u' && (chars[start + 3] | 0x20) == 'e';
+    }
+
+    /**
+     * Returns true if a field is empty.
+     */
+    public boolean isEmpty(int index) {
+        checkIndex(index);
+        int start = index == 0 ? 0 : fieldEnds[index - 1];
+        return fieldEnds[index] == start;
+    }
+
+    /**
+     * Returns the line number the current row starts on.
+     */
+    public int getLineNumber() {
+        return recordLine;
+    }
+
+    /**
+     * Returns the number of lines read so far, including blank and comment
+     * lines and the line breaks inside quoted fields.
+     */
+    public int getLinesRead() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void parseRecord(int first) throws IOException {
+        int c = first;
+        while (true) {
+            if (c == '"') {
+                c = parseQuoted();
+                if (c != ',' && c != '\n' && c != '\r' && c != EOF) {
+                    skipLine();
+                    throw new CsvFormatException("unexpected character after closing quote", recordLine);
+                }
+            } else {
+                while (c != ',' && c != '\n' && c != '\r' && c != EOF) {
+                    append((char) c);
+                    c = read();
+                }
+            }
+            endField();
+
+            if (c == ',') {
+                c = read();
+                continue;
+            }
+            if (c == '\r') {
+                skipLineFeed();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Reads a quoted field after its opening quote and returns the character
+     * following the closing quote.
+     */
+    private int parseQuoted() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == EOF) {
+                throw new CsvFormatException("unterminated quoted field", recordLine);
+            }
+            if (c == '"') {
+                int next = read();
+                if (next != '"') {
+                    return next;
+                }
+            } else if (c == '\n') {
+                lineNumber++;
+            }
+            append((char) c);
+        }
+    }
+
+    private void append(char c) {
+        if (charCount == chars.length) {
+            char[] larger = new char[chars.length * 2];
+            System.arraycopy(chars, 0, larger, 0, charCount);
+            chars = larger;
+        }
+        chars[charCount++] = c;
+    }
+
+    private void endField() {
+        if (fieldCount == fieldEnds.length) {
+            int[] larger = new int[fieldEnds.length * 2];
+            System.arraycopy(fieldEnds, 0, larger, 0, fieldCount);
+            fieldEnds = larger;
+        }
+        fieldEnds[fieldCount++] = charCount;
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != '\n' && c != '\r' && c != EOF);
+        if (c == '\r') {
+            skipLineFeed();
+        }
+    }
+
+    private void skipLineFeed() throws IOException {
+        if (position == limit && !fill()) {
+            return;
+        }
+        if (buffer[position] == '\n') {
+            position++;
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return EOF;
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + fieldCount);
+        }
+    }
+}
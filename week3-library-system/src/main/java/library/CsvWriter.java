@@ -0,0 +1,60 @@
+package library;
+
+/**
+ * Formats rows for the CSV data files and the journal.
+ *
+ * Fields containing a comma, quote or line break are quoted, with quotes
+ * doubled, so {@link CsvReader} reads them back unchanged.
+ */
+public class CsvWriter {
+
+    /**
+     * Joins fields into one CSV row (without a line ending).
+     */
+    public static String join(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendField(sb, fields[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends one field, quoting it if needed.
+     */
+    public static void appendField(StringBuilder sb, String field) {
+        if (field == null) {
+            return;
+        }
+        if (!needsQuotes(field)) {
+            sb.append(field);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static boolean needsQuotes(String field) {
+        // A leading '#' would otherwise make the row look like a comment
+        if (!field.isEmpty() && field.charAt(0) == '#') {
+            return true;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
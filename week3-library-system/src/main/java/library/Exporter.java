@@ -0,0 +1,124 @@
+package library;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Writes all books or members to CSV or JSON in one pass.
+ *
+ * Records are read from the live catalog without copying it and formatted one
+ * at a time into a large buffer, so an export takes the same small amount of
+ * memory for any catalog size and runs as fast as the output can take it.
+ * CSV exports use the data file format and can be loaded as books.txt or
+ * members.txt; JSON exports are one array with an object per record.
+ *
+ * Usage: java library.Exporter books|members csv|json outFile [dataDir]
+ */
+public class Exporter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public enum Format {
+        CSV, JSON;
+
+        /**
+         * Parses "csv" or "json", ignoring case.
+         *
+         * @throws IllegalArgumentException for any other format
+         */
+        public static Format parse(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown format: " + name + " (expected csv or json)");
+        }
+    }
+
+    /**
+     * Writes books to the output and returns the number written. The output
+     * is flushed but not closed.
+     */
+    public static long exportBooks(Iterable<Book> books, Format format, Writer out) throws IOException {
+        return export(books, format, out, FileHandler.BOOKS_HEADER, Book::toCSV, Book::toJSON);
+    }
+
+    /**
+     * Writes members to the output and returns the number written. The
+     * output is flushed but not closed.
+     */
+    public static long exportMembers(Iterable<Member> members, Format format, Writer out) throws IOException {
+        return export(members, format, out, FileHandler.MEMBERS_HEADER, Member::toCSV, Member::toJSON);
+    }
+
+    private static <T> long export(Iterable<T> records, Format format, Writer out, String header,
+                                   Function<T, String> csv, Function<T, String> json) throws IOException {
+        long start = System.nanoTime();
+        long count = 0;
+        BufferedWriter writer = new BufferedWriter(out, BUFFER_SIZE);
+        if (format == Format.CSV) {
+            writer.write(header);
+            writer.newLine();
+            for (T record : records) {
+                writer.write(csv.apply(record));
+                writer.newLine();
+                count++;
+            }
+        } else {
+            writer.write('[');
+            for (T record : records) {
+                if (count > 0) {
+                    writer.write(',');
+                }
+                writer.newLine();
+                writer.write(json.apply(record));
+                count++;
+            }
+            writer.newLine();
+            writer.write(']');
+            writer.newLine();
+        }
+        writer.flush();
+        Metrics.Operation.EXPORT.record(start);
+        return count;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java library.Exporter books|members csv|json outFile [dataDir]");
+            System.exit(2);
+        }
+        String records = args[0].toLowerCase(Locale.ROOT);
+        if (!records.equals("books") && !records.equals("members")) {
+            System.err.println("Unknown records: " + args[0]);
+            System.exit(2);
+        }
+        Format format;
+        try {
+            format = Format.parse(args[1]);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        Library library = new Library(args.length > 3 ? args[3] : FileHandler.DATA_DIR);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(args[2]), StandardCharsets.UTF_8)) {
+            CatalogSnapshot snapshot = library.getCatalog().snapshot();
+            long count = records.equals("books")
+                    ? exportBooks(snapshot.allBooks(), format, out)
+                    : exportMembers(snapshot.allMembers(), format, out);
+            System.out.println("Exported " + count + " " + records + " to " + args[2]);
+        } catch (IOException e) {
+            System.err.println("Error exporting " + records + ": " + e.getMessage());
+            System.exit(1);
+        } finally {
+            library.close();
+        }
+    }
+}
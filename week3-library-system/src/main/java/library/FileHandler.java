@@ -1,105 +1,662 @@
 package library;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 /**
- * Handles file operations for books and members.
+ * Handles file operations for books, members and holds.
+ *
+ * Each data file can have a delta file next to it (books.txt.delta) holding
+ * the records changed since the data file was last written in full: a PUT row
+ * with the whole record, or a DELETE row with its ID. Loading applies the
+ * delta over the data file, and a full save removes it.
+ *
+ * With -Dlibrary.snapshot.format=block, full saves of books and members are
+ * written as a {@link BlockFile}, with compressed, checksummed blocks, to
+ * books.blk and members.blk instead of the text files. Loading reads
+ * whichever of the two files was written last, so switching the format
+ * either way converts the data on the next save. Delta files stay plain CSV
+ * next to the text file.
+ *
+ * With -Dlibrary.snapshot.format=mapped, full saves go to books.bin and
+ * members.bin in the {@link MappedRecordFile} format instead, and loading
+ * maps them rather than parsing text. The same rule applies: whichever of
+ * the files was written last is read.
  */
 public class FileHandler {
+    public static final String DATA_DIR = "data";
     private static final String BOOKS_FILE = "data/books.txt";
     private static final String MEMBERS_FILE = "data/members.txt";
 
+    /**
+     * Group commit settings for the journal: the most entries written with one
+     * fsync, and how long the writer may wait for more entries before writing.
+     * Set with -Dlibrary.journal.maxBatchSize and -Dlibrary.journal.maxDelayMicros.
+     */
+    public static final int JOURNAL_MAX_BATCH_SIZE = Integer.getInteger("library.journal.maxBatchSize", 512);
+    public static final long JOURNAL_MAX_DELAY_MICROS = Long.getLong("library.journal.maxDelayMicros", 200);
+
+    static final String BOOKS_HEADER = "# Format: id,title,author,isbn,available[,copies,availableCopies,barcodes]";
+    static final String MEMBERS_HEADER = "# Format: id,name,email,phone,borrowedBookIds";
+    private static final String HOLDS_HEADER = "# Format: bookId,memberId,priority,sequence,expiresAt,ready";
+    private static final String DELTA_HEADER = "# Format: PUT,<record> or DELETE,id";
+    private static final String PUT = "PUT";
+    private static final String DELETE = "DELETE";
+
+    /**
+     * Once a delta file reaches this percentage of its data file's size, the
+     * next save rewrites the data file in full instead of adding to the delta.
+     * A block file counts at the size of its rows as plain CSV, like the delta.
+     */
+    private static final int MAX_DELTA_PERCENT = 50;
+
+    /**
+     * Returns the path of the books file in the given data directory.
+     */
+    public static String booksFile(String dataDir) {
+        return dataDir + File.separator + "books.txt";
+    }
+
+    /**
+     * Returns the path of the members file in the given data directory.
+     */
+    public static String membersFile(String dataDir) {
+        return dataDir + File.separator + "members.txt";
+    }
+
+    /**
+     * Returns the path of the holds file in the given data directory.
+     */
+    public static String holdsFile(String dataDir) {
+        return dataDir + File.separator + "holds.txt";
+    }
+
+    /**
+     * Returns the path of the metrics report in the given data directory.
+     */
+    public static String metricsFile(String dataDir) {
+        return dataDir + File.separator + "metrics.txt";
+    }
+
+    /**
+     * Returns the path of the journal file in the given data directory.
+     */
+    public static String journalFile(String dataDir) {
+        return dataDir + File.separator + "journal.log";
+    }
+
+    /**
+     * Returns the path of the delta file kept next to the given data file.
+     */
+    public static String deltaFile(String path) {
+        return path + ".delta";
+    }
+
+    /**
+     * Returns the path of the block file written instead of the given data
+     * file when snapshots are written as blocks, e.g. books.blk for books.txt.
+     */
+    public static String blockFile(String path) {
+        return (path.endsWith(".txt") ? path.substring(0, path.length() - 4) : path) + ".blk";
+    }
+
+    /**
+     * Returns the path of the mapped file written instead of the given data
+     * file when snapshots are written in the mapped format, e.g. books.bin
+     * for books.txt.
+     */
+    public static String binaryFile(String path) {
+        return (path.endsWith(".txt") ? path.substring(0, path.length() - 4) : path) + ".bin";
+    }
+
+    /**
+     * Returns the path full saves of the given data file are written to in
+     * the configured format.
+     */
+    private static String snapshotPath(String path) {
+        if (BlockFile.ENABLED) {
+            return blockFile(path);
+        }
+        return MappedRecordFile.ENABLED ? binaryFile(path) : path;
+    }
+
+    /**
+     * Returns the file holding the records of the given data file: the text,
+     * block or mapped file, whichever was written last, or the configured
+     * one on a tie. More than one exists only if a save stopped before
+     * removing the older ones, or the data was converted by hand.
+     */
+    private static File currentSnapshot(String path) {
+        String configured = snapshotPath(path);
+        File current = null;
+        for (String candidate : new String[] {path, blockFile(path), binaryFile(path)}) {
+            File file = new File(candidate);
+            if (!file.exists()) {
+                continue;
+            }
+            if (current == null || file.lastModified() > current.lastModified()
+                    || (file.lastModified() == current.lastModified() && candidate.equals(configured))) {
+                current = file;
+            }
+        }
+        return current != null ? current : new File(path);
+    }
+
+    private static boolean isBinaryFile(File file) {
+        return file.getName().endsWith(".bin");
+    }
+
+    /**
+     * Returns true if the data file should be written in full on the next
+     * save: it does not exist yet, is not in the format snapshots are written
+     * in, or its delta file has grown too large.
+     */
+    public static boolean needsFullSave(String path) {
+        File file = currentSnapshot(path);
+        if (!file.exists() || !file.getPath().equals(snapshotPath(path))
+                || BlockFile.isBlockFile(file) != BlockFile.ENABLED) {
+            return true;
+        }
+        long size = BlockFile.ENABLED ? BlockFile.rawLength(file) : file.length();
+        return new File(deltaFile(path)).length() * 100 >= size * MAX_DELTA_PERCENT;
+    }
+
     /**
      * Saves all books to the books file.
+     * Returns true if the file was written successfully.
+     */
+    public static boolean saveBooks(List<Book> books) {
+        return saveBooks(books, BOOKS_FILE);
+    }
+
+    /**
+     * Saves all books to the given file.
+     *
+     * The books are written to a temporary file, synced to disk and then
+     * renamed over the old file, so a crash leaves either the old or the new
+     * file in place, never a partly written one. With block snapshots the
+     * books go to the block file, and the file in the other format is
+     * removed afterwards.
      */
-    public static void saveBooks(List<Book> books) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(BOOKS_FILE))) {
-            for (Book book : books) {
-                writer.println(book.toCSV());
+    public static boolean saveBooks(List<Book> books, String path) {
+        String target = snapshotPath(path);
+        File temp = new File(target + ".tmp");
+        try {
+            if (MappedRecordFile.ENABLED) {
+                MappedBookFile.write(books, temp.getPath());
+            } else {
+                writeSnapshot(temp, BOOKS_HEADER, books, Book::toCSV);
             }
-            System.out.println("Books saved successfully.");
+            Metrics.FileKind.BOOKS.written(temp.length(), books.size());
+            replace(temp, target);
         } catch (IOException e) {
+            temp.delete();
             System.err.println("Error saving books: " + e.getMessage());
+            return false;
+        }
+        boolean removed = deleteOtherSnapshot(path);
+        return deleteDelta(path) && removed;
+    }
+
+    /**
+     * Appends changed and removed books to the delta file of the given books
+     * file. Writes nothing if there are no changes.
+     */
+    public static boolean saveBookChanges(List<Book> changed, List<String> removedIds, String path) {
+        List<String> rows = new ArrayList<>(changed.size());
+        for (Book book : changed) {
+            rows.add(PUT + "," + book.toCSV());
         }
+        return appendChanges(rows, removedIds, deltaFile(path), "book", Metrics.FileKind.BOOKS);
     }
 
     /**
      * Loads all books from the books file.
      */
     public static List<Book> loadBooks() {
+        return loadBooks(BOOKS_FILE);
+    }
+
+    /**
+     * Loads all books from the given file.
+     */
+    public static List<Book> loadBooks(String path) {
         List<Book> books = new ArrayList<>();
-        File file = new File(BOOKS_FILE);
+        File file = currentSnapshot(path);
         
         if (!file.exists()) {
             return books;
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(BOOKS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    Book book = Book.fromCSV(line);
+        if (isBinaryFile(file)) {
+            try (MappedBookFile mapped = MappedBookFile.open(file.getPath())) {
+                books = mapped.readAll();
+            } catch (IOException e) {
+                System.err.println("Error loading books: " + e.getMessage());
+            }
+        } else if (BlockFile.isBlockFile(file)) {
+            try {
+                books = BlockFile.load(file.getPath(), reader -> Book.fromCSV(reader, 0), "expected 5 fields");
+            } catch (IOException e) {
+                System.err.println("Error loading books: " + e.getMessage());
+            }
+        } else if (ShardedLoader.isWorthwhile(file)) {
+            try {
+                books = ShardedLoader.load(file.getPath(), reader -> Book.fromCSV(reader, 0), "expected 5 fields");
+            } catch (IOException e) {
+                System.err.println("Error loading books: " + e.getMessage());
+            }
+        } else {
+            try (CsvReader reader = new CsvReader(reader(file))) {
+                while (nextRow(reader, file.getPath())) {
+                    Book book = Book.fromCSV(reader, 0);
                     if (book != null) {
                         books.add(book);
+                    } else {
+                        reportMalformedRow(file.getPath(), "line " + reader.getLineNumber() + ": expected 5 fields");
                     }
                 }
+            } catch (IOException e) {
+                System.err.println("Error loading books: " + e.getMessage());
             }
-            System.out.println("Loaded " + books.size() + " books.");
-        } catch (IOException e) {
-            System.err.println("Error loading books: " + e.getMessage());
         }
+        Metrics.FileKind.BOOKS.read(file.length(), books.size());
+        books = applyChanges(books, deltaFile(path), Book::getId, reader -> Book.fromCSV(reader, 1),
+                Metrics.FileKind.BOOKS);
+        System.out.println("Loaded " + books.size() + " books.");
         return books;
     }
 
     /**
      * Saves all members to the members file.
+     * Returns true if the file was written successfully.
+     */
+    public static boolean saveMembers(List<Member> members) {
+        return saveMembers(members, MEMBERS_FILE);
+    }
+
+    /**
+     * Saves all members to the given file, replacing it atomically like
+     * {@link #saveBooks(List, String)}.
      */
-    public static void saveMembers(List<Member> members) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(MEMBERS_FILE))) {
-            for (Member member : members) {
-                writer.println(member.toCSV());
+    public static boolean saveMembers(List<Member> members, String path) {
+        String target = snapshotPath(path);
+        File temp = new File(target + ".tmp");
+        try {
+            if (MappedRecordFile.ENABLED) {
+                MappedMemberFile.write(members, temp.getPath());
+            } else {
+                writeSnapshot(temp, MEMBERS_HEADER, members, Member::toCSV);
             }
-            System.out.println("Members saved successfully.");
+            Metrics.FileKind.MEMBERS.written(temp.length(), members.size());
+            replace(temp, target);
         } catch (IOException e) {
+            temp.delete();
             System.err.println("Error saving members: " + e.getMessage());
+            return false;
         }
+        boolean removed = deleteOtherSnapshot(path);
+        return deleteDelta(path) && removed;
+    }
+
+    /**
+     * Appends changed and removed members to the delta file of the given
+     * members file. Writes nothing if there are no changes.
+     */
+    public static boolean saveMemberChanges(List<Member> changed, List<String> removedIds, String path) {
+        List<String> rows = new ArrayList<>(changed.size());
+        for (Member member : changed) {
+            rows.add(PUT + "," + member.toCSV());
+        }
+        return appendChanges(rows, removedIds, deltaFile(path), "member", Metrics.FileKind.MEMBERS);
     }
 
     /**
      * Loads all members from the members file.
      */
     public static List<Member> loadMembers() {
+        return loadMembers(MEMBERS_FILE);
+    }
+
+    /**
+     * Loads all members from the given file.
+     */
+    public static List<Member> loadMembers(String path) {
         List<Member> members = new ArrayList<>();
-        File file = new File(MEMBERS_FILE);
+        File file = currentSnapshot(path);
         
         if (!file.exists()) {
             return members;
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(MEMBERS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    Member member = Member.fromCSV(line);
+        if (isBinaryFile(file)) {
+            try (MappedMemberFile mapped = MappedMemberFile.open(file.getPath())) {
+                members = mapped.readAll();
+            } catch (IOException e) {
+                System.err.println("Error loading members: " + e.getMessage());
+            }
+        } else if (BlockFile.isBlockFile(file)) {
+            try {
+                members = BlockFile.load(file.getPath(), reader -> Member.fromCSV(reader, 0),
+                        "expected at least 4 fields");
+            } catch (IOException e) {
+                System.err.println("Error loading members: " + e.getMessage());
+            }
+        } else if (ShardedLoader.isWorthwhile(file)) {
+            try {
+                members = ShardedLoader.load(file.getPath(), reader -> Member.fromCSV(reader, 0),
+                        "expected at least 4 fields");
+            } catch (IOException e) {
+                System.err.println("Error loading members: " + e.getMessage());
+            }
+        } else {
+            try (CsvReader reader = new CsvReader(reader(file))) {
+                while (nextRow(reader, file.getPath())) {
+                    Member member = Member.fromCSV(reader, 0);
                     if (member != null) {
                         members.add(member);
+                    } else {
+                        reportMalformedRow(file.getPath(), "line " + reader.getLineNumber() + ": expected at least 4 fields");
                     }
                 }
+            } catch (IOException e) {
+                System.err.println("Error loading members: " + e.getMessage());
             }
-            System.out.println("Loaded " + members.size() + " members.");
-        } catch (IOException e) {
-            System.err.println("Error loading members: " + e.getMessage());
         }
+        Metrics.FileKind.MEMBERS.read(file.length(), members.size());
+        members = applyChanges(members, deltaFile(path), Member::getId, reader -> Member.fromCSV(reader, 1),
+                Metrics.FileKind.MEMBERS);
+        System.out.println("Loaded " + members.size() + " members.");
         return members;
     }
 
+    /**
+     * Saves all holds to the given file, replacing it atomically like
+     * {@link #saveBooks(List, String)}.
+     */
+    public static boolean saveHolds(List<Hold> holds, String path) {
+        File temp = new File(path + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp);
+                 PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))) {
+                writer.println(HOLDS_HEADER);
+                for (Hold hold : holds) {
+                    writer.println(hold.toCSV());
+                }
+                sync(writer, out);
+            }
+            Metrics.FileKind.HOLDS.written(temp.length(), holds.size());
+            replace(temp, path);
+        } catch (IOException e) {
+            temp.delete();
+            System.err.println("Error saving holds: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a text report, e.g. the metrics, with new contents. The report
+     * is renamed into place but not synced: losing it in a crash is harmless.
+     */
+    public static boolean saveReport(String text, String path) {
+        File temp = new File(path + ".tmp");
+        try {
+            try (Writer writer = new BufferedWriter(new FileWriter(temp, StandardCharsets.UTF_8))) {
+                writer.write(text);
+            }
+            Files.move(temp.toPath(), new File(path).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            temp.delete();
+            System.err.println("Error saving report: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads all holds from the given file.
+     */
+    public static List<Hold> loadHolds(String path) {
+        List<Hold> holds = new ArrayList<>();
+        File file = new File(path);
+
+        if (!file.exists()) {
+            return holds;
+        }
+
+        try (CsvReader reader = new CsvReader(reader(file))) {
+            while (nextRow(reader, path)) {
+                Hold hold = Hold.fromCSV(reader, 0);
+                if (hold != null) {
+                    holds.add(hold);
+                } else {
+                    reportMalformedRow(path, "line " + reader.getLineNumber() + ": expected 6 fields");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading holds: " + e.getMessage());
+        }
+        Metrics.FileKind.HOLDS.read(file.length(), holds.size());
+        if (!holds.isEmpty()) {
+            System.out.println("Loaded " + holds.size() + " holds.");
+        }
+        return holds;
+    }
+
+    private static boolean appendChanges(List<String> rows, List<String> removedIds, String deltaPath,
+                                         String kind, Metrics.FileKind fileKind) {
+        if (rows.isEmpty() && removedIds.isEmpty()) {
+            return true;
+        }
+        File delta = new File(deltaPath);
+        boolean isNew = !delta.exists();
+        long before = delta.length();
+        try (FileOutputStream out = new FileOutputStream(deltaPath, true);
+             PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))) {
+            if (isNew) {
+                writer.println(DELTA_HEADER);
+            }
+            for (String row : rows) {
+                writer.println(row);
+            }
+            for (String id : removedIds) {
+                writer.println(DELETE + "," + CsvWriter.join(id));
+            }
+            sync(writer, out);
+            if (isNew) {
+                syncDirectory(delta);
+            }
+            fileKind.written(delta.length() - before, rows.size() + removedIds.size());
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving " + kind + " changes: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Applies a delta file, if there is one, to records loaded from its data
+     * file. Changed records keep their position; new ones go at the end.
+     */
+    private static <T> List<T> applyChanges(List<T> records, String deltaPath, Function<T, String> idOf,
+                                            Function<CsvReader, T> parse, Metrics.FileKind fileKind) {
+        File file = new File(deltaPath);
+        if (!file.exists()) {
+            return records;
+        }
+        long rows = 0;
+
+        Map<String, T> byId = new LinkedHashMap<>();
+        for (T record : records) {
+            // Duplicates are left for Catalog to report; the first one wins
+            byId.putIfAbsent(idOf.apply(record), record);
+        }
+        try (CsvReader reader = new CsvReader(reader(file))) {
+            while (nextRow(reader, deltaPath)) {
+                rows++;
+                String operation = reader.getField(0);
+                if (operation.equals(PUT)) {
+                    T record = parse.apply(reader);
+                    if (record != null) {
+                        byId.put(idOf.apply(record), record);
+                        continue;
+                    }
+                } else if (operation.equals(DELETE) && reader.getFieldCount() >= 2) {
+                    byId.remove(reader.getField(1));
+                    continue;
+                }
+                reportMalformedRow(deltaPath, "line " + reader.getLineNumber() + ": not a valid change");
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading changes: " + e.getMessage());
+        }
+        fileKind.read(file.length(), rows);
+        return new ArrayList<>(byId.values());
+    }
+
+    /**
+     * Writes records to a snapshot file, as a block file or as plain CSV,
+     * and forces it to disk.
+     */
+    private static <T> void writeSnapshot(File file, String header, List<T> records, Function<T, String> toRow)
+            throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            if (BlockFile.ENABLED) {
+                BlockFile.write(new BufferedOutputStream(out), header, records.stream().map(toRow).iterator());
+                out.getFD().sync();
+                return;
+            }
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))) {
+                writer.println(header);
+                for (T record : records) {
+                    writer.println(toRow.apply(record));
+                }
+                sync(writer, out);
+            }
+        }
+    }
+
+    /**
+     * Flushes a writer and forces its file's contents to disk.
+     */
+    private static void sync(PrintWriter writer, FileOutputStream out) throws IOException {
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("write failed");
+        }
+        out.getFD().sync();
+    }
+
+    /**
+     * Renames a fully written temporary file over the target in one step.
+     */
+    private static void replace(File temp, String path) throws IOException {
+        File target = new File(path);
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(target);
+    }
+
+    /**
+     * Syncs the directory holding a file, so that a rename or a new file
+     * survives a crash too.
+     */
+    static void syncDirectory(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory; the file itself is synced
+        }
+    }
+
+    /**
+     * Removes the snapshots in the formats not written any more, after the
+     * data file has been written in full in the configured one.
+     */
+    private static boolean deleteOtherSnapshot(String path) {
+        String configured = snapshotPath(path);
+        boolean removed = true;
+        for (String candidate : new String[] {path, blockFile(path), binaryFile(path)}) {
+            File other = new File(candidate);
+            if (candidate.equals(configured) || !other.exists()) {
+                continue;
+            }
+            if (other.delete()) {
+                syncDirectory(other);
+            } else {
+                System.err.println("Error removing " + other.getPath());
+                removed = false;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the delta file after its data file has been written in full.
+     */
+    private static boolean deleteDelta(String path) {
+        File delta = new File(deltaFile(path));
+        if (!delta.exists()) {
+            return true;
+        }
+        if (!delta.delete()) {
+            System.err.println("Error removing " + delta.getPath());
+            return false;
+        }
+        // The removal must be durable before the journal is dropped
+        syncDirectory(delta);
+        return true;
+    }
+
+    /**
+     * Opens a data file for reading. Data files are always UTF-8, whatever
+     * the platform's default charset.
+     */
+    private static Reader reader(File file) throws FileNotFoundException {
+        return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Advances to the next well-formed row, reporting and skipping malformed ones.
+     */
+    private static boolean nextRow(CsvReader reader, String path) throws IOException {
+        while (true) {
+            try {
+                return reader.next();
+            } catch (CsvFormatException e) {
+                reportMalformedRow(path, e.getMessage());
+            }
+        }
+    }
+
+    static void reportMalformedRow(String path, String detail) {
+        System.err.println("Skipping malformed row in " + path + ", " + detail);
+    }
+
     /**
      * Ensures the data directory exists.
      */
     public static void ensureDataDirectory() {
-        File dataDir = new File("data");
+        ensureDataDirectory(DATA_DIR);
+    }
+
+    /**
+     * Ensures the given data directory exists.
+     */
+    public static void ensureDataDirectory(String path) {
+        File dataDir = new File(path);
         if (!dataDir.exists()) {
             dataDir.mkdirs();
             System.out.println("Created data directory.");
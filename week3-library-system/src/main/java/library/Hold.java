@@ -0,0 +1,162 @@
+package library;
+
+import java.io.IOException;
+
+/**
+ * A member's hold on a book that is out.
+ *
+ * A hold waits in the book's queue until the book comes back. It is then
+ * ready: a copy is kept for that member until they borrow it or the pickup
+ * time runs out. Holds with a higher priority are served first, and holds of
+ * the same priority in the order they were placed.
+ */
+public class Hold implements Comparable<Hold> {
+
+    /**
+     * Where a hold is in its life.
+     */
+    public enum State {
+        WAITING,
+        READY,
+        DONE
+    }
+
+    private final String bookId;
+    private final String memberId;
+    private final int priority;
+    private final long sequence;
+    private volatile long expiresAt;
+    private volatile State state = State.WAITING;
+
+    public Hold(String bookId, String memberId, int priority, long sequence, long expiresAt) {
+        this.bookId = bookId;
+        this.memberId = memberId;
+        this.priority = priority;
+        this.sequence = sequence;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns when the hold runs out, in epoch milliseconds: the end of the
+     * wait while waiting, the end of the pickup time once ready.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    /**
+     * Returns a copy of this hold, e.g. to save it while the original changes.
+     */
+    public Hold copy() {
+        Hold copy = new Hold(bookId, memberId, priority, sequence, expiresAt);
+        copy.state = state;
+        return copy;
+    }
+
+    /**
+     * Orders holds by priority, highest first, then by when they were placed.
+     */
+    @Override
+    public int compareTo(Hold other) {
+        if (priority != other.priority) {
+            return Integer.compare(other.priority, priority);
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public String toString() {
+        return "Hold{" +
+                "bookId='" + bookId + '\'' +
+                ", memberId='" + memberId + '\'' +
+                ", priority=" + priority +
+                ", state=" + state +
+                ", expiresAt=" + expiresAt +
+                '}';
+    }
+
+    /**
+     * Converts hold to JSON for the HTTP API.
+     */
+    public String toJSON() {
+        return "{\"bookId\":" + Json.quote(bookId) +
+                ",\"memberId\":" + Json.quote(memberId) +
+                ",\"priority\":" + priority +
+                ",\"ready\":" + isReady() +
+                ",\"expiresAt\":" + expiresAt +
+                '}';
+    }
+
+    /**
+     * Converts hold to CSV format for file storage.
+     */
+    public String toCSV() {
+        return CsvWriter.join(bookId, memberId, String.valueOf(priority), String.valueOf(sequence),
+                String.valueOf(expiresAt), String.valueOf(isReady()));
+    }
+
+    /**
+     * Creates a Hold from CSV string.
+     */
+    public static Hold fromCSV(String csv) {
+        try {
+            CsvReader reader = CsvReader.of(csv);
+            return reader.next() ? fromCSV(reader, 0) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a Hold from the current row of a CSV reader, starting at the
+     * given field. Returns null if the row has too few or malformed fields.
+     */
+    public static Hold fromCSV(CsvReader reader, int first) {
+        if (reader.getFieldCount() - first < 6) {
+            return null;
+        }
+        try {
+            Hold hold = new Hold(reader.getField(first), reader.getField(first + 1),
+                    Integer.parseInt(reader.getField(first + 2)), Long.parseLong(reader.getField(first + 3)),
+                    Long.parseLong(reader.getField(first + 4)));
+            if (reader.getBoolean(first + 5)) {
+                hold.setState(State.READY);
+            }
+            return hold;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The holds on all books: for each book a priority queue of waiting holds and
+ * the ready holds, the members a copy is being kept for.
+ *
+ * When a copy comes back, {@link #promoteNext} takes the next waiting hold
+ * off the book's queue in O(log n), without looking at any other holds or
+ * members. Cancelled and expired holds are not searched out of the queue;
+ * they are marked done and skipped when they reach the head.
+ *
+ * Every hold runs out at some point: a waiting hold after the longest wait,
+ * a ready hold after the pickup time. Deadlines go into a {@link TimerWheel},
+ * and {@link #takeExpired(long)} returns the holds that ran out without
+ * sweeping all of them.
+ *
+ * Changes to the holds on one book must be made under that book's lock;
+ * holds on different books can change concurrently. Lookups by member and
+ * {@link #hasHoldsOn(String)} are safe at any time.
+ */
+public class HoldQueue {
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 4096;
+
+    private final Map<String, BookHolds> byBook = new ConcurrentHashMap<>();
+    private final Map<String, Set<Hold>> byMember = new ConcurrentHashMap<>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final TimerWheel<Hold> expiries = new TimerWheel<>(TICK_MILLIS, WHEEL_SLOTS, System.currentTimeMillis());
+
+    /**
+     * Returns the sequence number for a new hold, which orders holds of the
+     * same priority.
+     */
+    public long nextSequence() {
+        return nextSequence.getAndIncrement();
+    }
+
+    /**
+     * Adds a waiting hold. Returns null if the member already has a hold on
+     * the book.
+     */
+    public Hold place(String bookId, String memberId, int priority, long sequence, long expiresAt) {
+        BookHolds holds = byBook.computeIfAbsent(bookId, id -> new BookHolds());
+        if (holds.byMember.containsKey(memberId)) {
+            return null;
+        }
+        Hold hold = new Hold(bookId, memberId, priority, sequence, expiresAt);
+        holds.byMember.put(memberId, hold);
+        holds.waiting.add(hold);
+        byMember.compute(memberId, (id, ofMember) -> {
+            Set<Hold> set = ofMember != null ? ofMember : ConcurrentHashMap.newKeySet();
+            set.add(hold);
+            return set;
+        });
+        nextSequence.accumulateAndGet(sequence + 1, Math::max);
+        expiries.schedule(hold, expiresAt);
+        return hold;
+    }
+
+    /**
+     * Finds a member's hold on a book, or returns null if there is none.
+     */
+    public Hold find(String bookId, String memberId) {
+        BookHolds holds = byBook.get(bookId);
+        return holds == null ? null : holds.byMember.get(memberId);
+    }
+
+    /**
+     * Returns true if a member has a hold on a book, waiting or ready.
+     */
+    public boolean hasHold(String memberId, String bookId) {
+        Set<Hold> holds = byMember.get(memberId);
+        if (holds != null) {
+            for (Hold hold : holds) {
+                if (hold.getBookId().equals(bookId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if there are holds on a book, waiting or ready.
+     */
+    public boolean hasHoldsOn(String bookId) {
+        return byBook.containsKey(bookId);
+    }
+
+    /**
+     * Returns true if a copy of the book is being kept for a hold.
+     */
+    public boolean hasReady(String bookId) {
+        BookHolds holds = byBook.get(bookId);
+        return holds != null && holds.readyCount > 0;
+    }
+
+    /**
+     * Removes a member's hold on a book, waiting or ready. Returns the removed
+     * hold, or null if there was none.
+     */
+    public Hold remove(String bookId, String memberId) {
+        BookHolds holds = byBook.get(bookId);
+        Hold hold = holds == null ? null : holds.byMember.remove(memberId);
+        if (hold == null) {
+            return null;
+        }
+        if (hold.isReady()) {
+            holds.readyCount--;
+        }
+        hold.setState(Hold.State.DONE);
+        byMember.computeIfPresent(memberId, (id, ofMember) -> {
+            ofMember.remove(hold);
+            return ofMember.isEmpty() ? null : ofMember;
+        });
+        if (holds.byMember.isEmpty()) {
+            byBook.remove(bookId);
+        }
+        return hold;
+    }
+
+    /**
+     * Makes the next waiting hold on a book ready, to run out at the given
+     * time. Holds whose wait has already run out at now are passed over and
+     * left for {@link #takeExpired(long)}. Returns the hold, or null if
+     * nobody is waiting.
+     */
+    public Hold promoteNext(String bookId, long now, long expiresAt) {
+        BookHolds holds = byBook.get(bookId);
+        if (holds == null) {
+            return null;
+        }
+        Hold hold;
+        while ((hold = holds.waiting.poll()) != null) {
+            if (hold.getState() == Hold.State.WAITING && hold.getExpiresAt() > now) {
+                makeReady(holds, hold, expiresAt);
+                return hold;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes a member's waiting hold on a book ready, e.g. when replaying the
+     * journal. Returns the hold, or null if the member has no waiting hold on
+     * the book.
+     */
+    public Hold promote(String bookId, String memberId, long expiresAt) {
+        BookHolds holds = byBook.get(bookId);
+        Hold hold = holds == null ? null : holds.byMember.get(memberId);
+        if (hold == null || hold.getState() != Hold.State.WAITING) {
+            return null;
+        }
+        // Still in the waiting queue, where the state check skips it
+        makeReady(holds, hold, expiresAt);
+        return hold;
+    }
+
+    private void makeReady(BookHolds holds, Hold hold, long expiresAt) {
+        hold.setState(Hold.State.READY);
+        hold.setExpiresAt(expiresAt);
+        holds.readyCount++;
+        expiries.schedule(hold, expiresAt);
+    }
+
+    /**
+     * Returns the number of members waiting for a book, not counting the ones
+     * a copy is being kept for.
+     */
+    public int getQueueLength(String bookId) {
+        BookHolds holds = byBook.get(bookId);
+        if (holds == null) {
+            return 0;
+        }
+        return holds.byMember.size() - holds.readyCount;
+    }
+
+    /**
+     * Returns a member's holds, oldest first.
+     */
+    public List<Hold> getHoldsOf(String memberId) {
+        Set<Hold> holds = byMember.get(memberId);
+        List<Hold> result = holds == null ? new ArrayList<>() : new ArrayList<>(holds);
+        result.sort(Comparator.comparingLong(Hold::getSequence));
+        return result;
+    }
+
+    public boolean hasHolds(String memberId) {
+        Set<Hold> holds = byMember.get(memberId);
+        return holds != null && !holds.isEmpty();
+    }
+
+    /**
+     * Returns copies of all holds, oldest first, e.g. for saving. The caller
+     * must keep the holds from changing until this returns.
+     */
+    public List<Hold> getHolds() {
+        List<Hold> result = new ArrayList<>();
+        for (BookHolds holds : byBook.values()) {
+            for (Hold hold : holds.byMember.values()) {
+                result.add(hold.copy());
+            }
+        }
+        result.sort(Comparator.comparingLong(Hold::getSequence));
+        return result;
+    }
+
+    /**
+     * Replaces all holds, e.g. after loading them from file. Holds that refer
+     * to a book or member the catalog does not have are skipped.
+     */
+    public void setHolds(List<Hold> loaded, Catalog catalog) {
+        byBook.clear();
+        byMember.clear();
+        expiries.clear();
+        List<Hold> sorted = new ArrayList<>(loaded);
+        sorted.sort(Comparator.comparingLong(Hold::getSequence));
+        for (Hold hold : sorted) {
+            if (!catalog.containsBook(hold.getBookId()) || !catalog.containsMember(hold.getMemberId())) {
+                System.err.println("Skipping hold of member " + hold.getMemberId() + " on unknown book or member "
+                        + hold.getBookId());
+                continue;
+            }
+            if (place(hold.getBookId(), hold.getMemberId(), hold.getPriority(), hold.getSequence(),
+                    hold.getExpiresAt()) == null) {
+                System.err.println("Skipping duplicate hold of member " + hold.getMemberId() + " on book "
+                        + hold.getBookId());
+                continue;
+            }
+            if (hold.isReady()) {
+                promote(hold.getBookId(), hold.getMemberId(), hold.getExpiresAt());
+            }
+        }
+    }
+
+    /**
+     * Returns the holds that ran out by now. The holds are not removed; the
+     * caller removes each one under its book's lock after checking that it is
+     * still current, since it may have been cancelled, fulfilled or made
+     * ready with a new deadline in the meantime.
+     */
+    public List<Hold> takeExpired(long now) {
+        List<Hold> expired = new ArrayList<>();
+        for (Hold hold : expiries.advance(now)) {
+            if (hold.getState() != Hold.State.DONE && hold.getExpiresAt() <= now) {
+                expired.add(hold);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of holds, waiting and ready.
+     */
+    public int size() {
+        int size = 0;
+        for (BookHolds holds : byBook.values()) {
+            size += holds.byMember.size();
+        }
+        return size;
+    }
+
+    /**
+     * The holds on one book, guarded by the book's lock.
+     */
+    private static class BookHolds {
+        private final PriorityQueue<Hold> waiting = new PriorityQueue<>();
+        private final Map<String, Hold> byMember = new LinkedHashMap<>();
+        private int readyCount;
+    }
+}
@@ -0,0 +1,30 @@
+package library;
+
+/**
+ * Outcome of placing or cancelling a hold.
+ */
+public enum HoldResult {
+    PLACED("Hold placed. The book will be kept for you when it comes back."),
+    CANCELLED("Hold cancelled."),
+    MEMBER_NOT_FOUND("Error: Member not found!"),
+    BOOK_NOT_FOUND("Error: Book not found!"),
+    AVAILABLE("Error: Book is available, borrow it instead!"),
+    ALREADY_BORROWED("Error: Member has already borrowed this book!"),
+    ALREADY_HELD("Error: Member already has a hold on this book!"),
+    NOT_HELD("Error: Member has no hold on this book!"),
+    OTHER_BRANCH("Error: Book belongs to another branch than the member!");
+
+    private final String message;
+
+    HoldResult(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isSuccess() {
+        return this == PLACED || this == CANCELLED;
+    }
+}
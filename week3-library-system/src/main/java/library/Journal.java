@@ -0,0 +1,508 @@
+package library;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of library mutations.
+ *
+ * Every change is written as one line to the journal instead of rewriting the
+ * data files, so the cost of a change does not depend on the catalog size.
+ * On startup the journal is replayed over the last snapshot, and compaction
+ * folds it back into the snapshot files.
+ *
+ * Compaction runs in the background, so changes keep coming while the
+ * snapshot is written. {@link #rotate()} therefore moves the entries so far
+ * aside to a second file (journal.log.1) and starts a fresh journal;
+ * {@link #dropRotated()} deletes the old entries once the snapshot holding
+ * them is safely on disk. Replay reads the rotated file first.
+ *
+ * Replay applies each entry as a plain write (no limit or availability checks),
+ * so replaying entries that are already part of the snapshot is harmless.
+ * Entries that hand a book on to the next hold (RETURNED, HOLD_REMOVED) name
+ * that hold and its pickup deadline, so replay does not depend on the clock.
+ * Replay does not count copies on the shelf, which is not a plain write; the
+ * caller recounts them from the loans and holds afterwards
+ * ({@link Catalog#recountCopies()}).
+ *
+ * Writes use group commit: {@link #append} only queues the entry, and a single
+ * writer thread writes whatever has queued up with one write and one fsync,
+ * then completes the futures of all entries in that batch. Entries are written
+ * in the order they were queued. Under concurrent load many changes share one
+ * disk round trip, while each caller is still only acknowledged once its entry
+ * is on disk.
+ */
+public class Journal {
+
+    /**
+     * Kinds of entries written to the journal.
+     */
+    public enum Operation {
+        BOOK_ADDED,
+        MEMBER_ADDED,
+        BORROWED,
+        RETURNED,
+        BOOK_UPDATED,
+        BOOK_REMOVED,
+        MEMBER_UPDATED,
+        MEMBER_REMOVED,
+        HOLD_PLACED,
+        HOLD_REMOVED,
+        /** Only in older journals; a return now records its own hand-off. */
+        HOLD_READY,
+        COPY_ADDED
+    }
+
+    /**
+     * A queued entry; a null line is a flush marker with nothing to write.
+     */
+    private static class Entry {
+        private final byte[] line;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Entry(byte[] line) {
+            this.line = line;
+        }
+    }
+
+    private final String path;
+    private final String rotatedPath;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Object fileLock = new Object();
+    private FileChannel channel;
+    private Thread writerThread;
+    private volatile boolean running;
+    private int entryCount;
+
+    public Journal(String path) {
+        this(path, FileHandler.JOURNAL_MAX_BATCH_SIZE, FileHandler.JOURNAL_MAX_DELAY_MICROS);
+    }
+
+    /**
+     * Creates a journal that writes at most maxBatchSize entries per fsync and
+     * waits up to maxDelayMicros for a batch to fill before writing it.
+     */
+    public Journal(String path, int maxBatchSize, long maxDelayMicros) {
+        this.path = path;
+        this.rotatedPath = path + ".1";
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+    }
+
+    /**
+     * Queues one entry. The payload is the operation's fields as a CSV row.
+     * The returned future completes once the entry is on disk, or
+     * exceptionally if it could not be written.
+     */
+    public synchronized CompletableFuture<Void> append(Operation operation, String payload) {
+        startWriter();
+        Entry entry = new Entry((operation.name() + "," + payload + "\n").getBytes(StandardCharsets.UTF_8));
+        queue.add(entry);
+        entryCount++;
+        return entry.durable;
+    }
+
+    /**
+     * Waits until every entry queued so far is on disk.
+     */
+    public void flush() {
+        CompletableFuture<Void> marker;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            Entry entry = new Entry(null);
+            queue.add(entry);
+            marker = entry.durable;
+        }
+        marker.join();
+    }
+
+    /**
+     * Returns the number of entries in the journal since the last compaction.
+     */
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Replays all journal entries over the given catalog: the rotated entries
+     * of an unfinished compaction first, then the current ones.
+     */
+    public synchronized void replay(Catalog catalog) {
+        int replayed = replay(catalog, new File(rotatedPath)) + replay(catalog, new File(path));
+        entryCount = replayed;
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " journal entries.");
+        }
+    }
+
+    private static int replay(Catalog catalog, File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int replayed = 0;
+        try (CsvReader reader = new CsvReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            while (true) {
+                try {
+                    if (!reader.next()) {
+                        break;
+                    }
+                } catch (CsvFormatException e) {
+                    // Typically a half-written last entry after a crash
+                    System.err.println("Skipping invalid journal entry at " + e.getMessage());
+                    continue;
+                }
+                if (apply(catalog, reader)) {
+                    replayed++;
+                } else {
+                    System.err.println("Skipping invalid journal entry at line " + reader.getLineNumber());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading journal: " + e.getMessage());
+        }
+        Metrics.FileKind.JOURNAL.read(file.length(), replayed);
+        return replayed;
+    }
+
+    /**
+     * Moves all entries so far aside to the rotated file and starts an empty
+     * journal. If an earlier rotated file was never dropped, the entries are
+     * added to it. Callers must make sure no new entries are appended meanwhile.
+     */
+    public void rotate() throws IOException {
+        flush();
+        synchronized (fileLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            Path current = Paths.get(path);
+            Path rotated = Paths.get(rotatedPath);
+            if (Files.exists(current)) {
+                if (Files.exists(rotated)) {
+                    try (FileChannel out = FileChannel.open(rotated, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND)) {
+                        out.write(ByteBuffer.wrap(Files.readAllBytes(current)));
+                        out.force(false);
+                    }
+                    Files.delete(current);
+                } else {
+                    Files.move(current, rotated, StandardCopyOption.ATOMIC_MOVE);
+                }
+                FileHandler.syncDirectory(current.toFile());
+            }
+        }
+        synchronized (this) {
+            entryCount = 0;
+        }
+    }
+
+    /**
+     * Deletes the rotated entries once they are part of the snapshot files.
+     */
+    public void dropRotated() {
+        try {
+            Files.deleteIfExists(Paths.get(rotatedPath));
+        } catch (IOException e) {
+            System.err.println("Error removing rotated journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes any queued entries, stops the writer thread and closes the file.
+     */
+    public void close() {
+        Thread writer;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            writer = writerThread;
+            writerThread = null;
+            // Wakes the writer if it is waiting for entries
+            queue.add(new Entry(null));
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (fileLock) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            } catch (IOException e) {
+                System.err.println("Error closing journal: " + e.getMessage());
+            }
+        }
+    }
+
+    private void startWriter() {
+        if (!running) {
+            running = true;
+            writerThread = new Thread(this::writeLoop, "journal-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    /**
+     * Writer thread: takes the next entry, gathers more up to the batch size or
+     * the delay cap, then writes and syncs them together.
+     */
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = running ? queue.take() : queue.poll();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize && maxDelayNanos > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    Entry next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // Not expected; keep going until close() stops the loop
+                continue;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) {
+        long start = System.nanoTime();
+        int size = 0;
+        int lines = 0;
+        for (Entry entry : batch) {
+            if (entry.line != null) {
+                size += entry.line.length;
+                lines++;
+            }
+        }
+        try {
+            if (size > 0) {
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                for (Entry entry : batch) {
+                    if (entry.line != null) {
+                        buffer.put(entry.line);
+                    }
+                }
+                buffer.flip();
+                synchronized (fileLock) {
+                    if (channel == null) {
+                        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    }
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+                Metrics.FileKind.JOURNAL.written(size, lines);
+                Metrics.Operation.JOURNAL_SYNC.record(start);
+            }
+            for (Entry entry : batch) {
+                entry.durable.complete(null);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing journal: " + e.getMessage());
+            Metrics.Operation.JOURNAL_SYNC.record(start, false);
+            for (Entry entry : batch) {
+                entry.durable.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Applies the entry in the reader's current row: the operation name,
+     * followed by the operation's CSV fields.
+     */
+    private static boolean apply(Catalog catalog, CsvReader reader) {
+        Operation operation;
+        try {
+            operation = Operation.valueOf(reader.getField(0));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        switch (operation) {
+            case BOOK_ADDED: {
+                Book book = Book.fromCSV(reader, 1);
+                if (book == null) {
+                    return false;
+                }
+                catalog.addBook(book);
+                return true;
+            }
+            case MEMBER_ADDED: {
+                Member member = Member.fromCSV(reader, 1);
+                if (member == null) {
+                    return false;
+                }
+                catalog.addMember(member);
+                return true;
+            }
+            case BORROWED:
+            case RETURNED: {
+                if (reader.getFieldCount() < 3) {
+                    return false;
+                }
+                Member member = catalog.findMemberById(reader.getField(1));
+                Book book = catalog.findBookById(reader.getField(2));
+                if (member == null || book == null) {
+                    return false;
+                }
+                if (operation == Operation.BORROWED) {
+                    member.borrowBook(book.getId());
+                    catalog.getHolds().remove(book.getId(), member.getId());
+                } else {
+                    member.returnBook(book.getId());
+                    if (!handOff(catalog, book, reader, 3)) {
+                        return false;
+                    }
+                }
+                catalog.markChanged(book);
+                catalog.markChanged(member);
+                return true;
+            }
+            case BOOK_UPDATED: {
+                Book updated = Book.fromCSV(reader, 1);
+                Book book = updated == null ? null : catalog.findBookById(updated.getId());
+                if (book == null) {
+                    return false;
+                }
+                catalog.updateBook(book, updated.getTitle(), updated.getAuthor(), updated.getIsbn());
+                return true;
+            }
+            case MEMBER_UPDATED: {
+                Member updated = Member.fromCSV(reader, 1);
+                Member member = updated == null ? null : catalog.findMemberById(updated.getId());
+                if (member == null) {
+                    return false;
+                }
+                member.setName(updated.getName());
+                member.setEmail(updated.getEmail());
+                member.setPhone(updated.getPhone());
+                catalog.markChanged(member);
+                return true;
+            }
+            case BOOK_REMOVED:
+            case MEMBER_REMOVED:
+                if (reader.getFieldCount() < 2) {
+                    return false;
+                }
+                // Already gone is fine: the snapshot may include the removal
+                if (operation == Operation.BOOK_REMOVED) {
+                    catalog.removeBook(reader.getField(1));
+                } else {
+                    catalog.removeMember(reader.getField(1));
+                }
+                return true;
+            case HOLD_PLACED: {
+                if (reader.getFieldCount() < 6) {
+                    return false;
+                }
+                if (!catalog.containsBook(reader.getField(1)) || !catalog.containsMember(reader.getField(2))) {
+                    return false;
+                }
+                try {
+                    // Already there is fine: the snapshot may include the hold
+                    catalog.getHolds().place(reader.getField(1), reader.getField(2),
+                            Integer.parseInt(reader.getField(3)), Long.parseLong(reader.getField(4)),
+                            Long.parseLong(reader.getField(5)));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                return true;
+            }
+            case HOLD_REMOVED: {
+                if (reader.getFieldCount() < 3) {
+                    return false;
+                }
+                catalog.getHolds().remove(reader.getField(1), reader.getField(2));
+                Book book = catalog.findBookById(reader.getField(1));
+                if (book == null) {
+                    return true;
+                }
+                if (!handOff(catalog, book, reader, 3)) {
+                    return false;
+                }
+                catalog.markChanged(book);
+                return true;
+            }
+            case HOLD_READY:
+            case COPY_ADDED: {
+                if (reader.getFieldCount() < 3) {
+                    return false;
+                }
+                Book book = catalog.findBookById(reader.getField(1));
+                if (book == null) {
+                    return false;
+                }
+                if (operation == Operation.HOLD_READY) {
+                    return handOff(catalog, book, reader, 2);
+                }
+                // Already there is fine: the snapshot may include the copy
+                if (!book.hasBarcode(reader.getField(2))) {
+                    catalog.addCopy(book, reader.getField(2));
+                }
+                return handOff(catalog, book, reader, 3);
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Makes the hold named in the entry from the given field on (member ID
+     * and pickup deadline) ready, keeping a copy for it. Does nothing if the
+     * entry names none.
+     */
+    private static boolean handOff(Catalog catalog, Book book, CsvReader reader, int first) {
+        if (reader.getFieldCount() < first + 2) {
+            return true;
+        }
+        try {
+            catalog.getHolds().promote(book.getId(), reader.getField(first),
+                    Long.parseLong(reader.getField(first + 1)));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -1,43 +1,925 @@
 package library;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * Main library management class that handles all library operations.
+ *
+ * The operations that take their input as arguments (addBook(Book),
+ * borrowBook(String, String), ...) are safe to call from many threads at once.
+ * Borrowing and returning lock only the member's lock stripe, and the book's
+ * only if the book has holds; copies are counted with compare-and-set, so
+ * loans of different copies of a title do not wait on each other. Saving
+ * takes the state lock exclusively only while it copies the changed records
+ * and rotates the journal, so the snapshot and the journal stay consistent;
+ * the files are written after the lock is released.
+ *
+ * Members can place a hold on a book that is out. When the book comes back it
+ * is kept for the next hold in line, and only that member can borrow it until
+ * the pickup time runs out. A background thread expires holds as they run out.
+ *
+ * Every borrow and return is also written to the {@link LoanHistory}, which
+ * keeps the due dates of open loans and the most borrowed books.
+ *
+ * Listings and exports read a {@link CatalogSnapshot} rather than the live
+ * catalog, so they never wait for writers. Changes are published to a new
+ * snapshot by a background thread shortly after they are made, and at once
+ * after loading and after each batch; the console publishes before it lists,
+ * so it always shows its own changes.
+ *
+ * Every operation is counted and timed in {@link Metrics}.
  */
-public class Library {
-    private List<Book> books;
-    private List<Member> members;
+public final class Library {
+    public static final int MAX_BORROWED_BOOKS = 3;
+    private static final int COMPACTION_THRESHOLD = 1000;
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * How long a returned book is kept for the next hold, and how long a hold
+     * may wait for the book at most. Set with -Dlibrary.holds.pickupMillis and
+     * -Dlibrary.holds.maxWaitMillis.
+     */
+    public static final long HOLD_PICKUP_MILLIS = Long.getLong("library.holds.pickupMillis",
+            TimeUnit.DAYS.toMillis(7));
+    public static final long HOLD_MAX_WAIT_MILLIS = Long.getLong("library.holds.maxWaitMillis",
+            TimeUnit.DAYS.toMillis(180));
+    private static final long HOLD_CHECK_MILLIS = 1000;
+    private static final long HISTORY_FLUSH_MILLIS = 1000;
+    private static final int DISPLAY_PAGE_SIZE = 20;
+    private static final int STATISTICS_ROWS = 10;
+    private static final String RULE = "------------------------------------------------------------------";
+
+    private final String dataDir;
+    private final Catalog catalog;
+    private final Journal journal;
+    private final LoanHistory history;
+    private final LockStripes<Lock> memberLocks = new LockStripes<>(LOCK_STRIPES, ReentrantLock::new);
+    private final LockStripes<Lock> bookLocks = new LockStripes<>(LOCK_STRIPES, ReentrantLock::new);
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final Object checkpointLock = new Object();
+    private final AtomicBoolean checkpointQueued = new AtomicBoolean();
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object publishLock = new Object();
+    private final AtomicBoolean publishQueued = new AtomicBoolean();
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "housekeeping");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean batchMode;
     private Scanner scanner;
 
     public Library() {
-        this.books = new ArrayList<>();
-        this.members = new ArrayList<>();
+        this(FileHandler.DATA_DIR);
+    }
+
+    /**
+     * Creates a library that keeps its files in the given directory.
+     */
+    public Library(String dataDir) {
+        this.dataDir = dataDir;
+        this.catalog = new Catalog();
+        this.journal = new Journal(FileHandler.journalFile(dataDir));
+        this.history = new LoanHistory(LoanHistory.historyDir(dataDir));
         this.scanner = new Scanner(System.in);
         
         // Ensure data directory exists
-        FileHandler.ensureDataDirectory();
+        FileHandler.ensureDataDirectory(dataDir);
         
         // Load data from files
         loadData();
+        catalog.setChangeListener(this::publishSoon);
+
+        Metrics.register();
+        Metrics.startDump(FileHandler.metricsFile(dataDir));
+        housekeeping.scheduleWithFixedDelay(this::expireHolds, HOLD_CHECK_MILLIS, HOLD_CHECK_MILLIS,
+                TimeUnit.MILLISECONDS);
+        housekeeping.scheduleWithFixedDelay(history::flush, HISTORY_FLUSH_MILLIS, HISTORY_FLUSH_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Loads data from files.
+     * Loads data from files: the last snapshot, then the journal on top of
+     * it, then the loan history checked against the loans.
      */
     public void loadData() {
-        books = FileHandler.loadBooks();
-        members = FileHandler.loadMembers();
+        long start = System.nanoTime();
+        stateLock.writeLock().lock();
+        try {
+            catalog.setBooks(FileHandler.loadBooks(FileHandler.booksFile(dataDir)));
+            catalog.setMembers(FileHandler.loadMembers(FileHandler.membersFile(dataDir)));
+            catalog.getHolds().setHolds(FileHandler.loadHolds(FileHandler.holdsFile(dataDir)), catalog);
+            journal.replay(catalog);
+            catalog.recountCopies();
+            history.load(catalog);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        publish();
+        Metrics.Operation.LOAD.record(start);
+    }
+
+    /**
+     * Publishes the changes made so far as the catalog's next snapshot. The
+     * changed records are copied while writers keep going, without the state
+     * lock, so publishing never holds up a loan; see
+     * {@link Catalog#takeChanges()} for what a snapshot then shows.
+     */
+    public void publish() {
+        synchronized (publishLock) {
+            if (catalog.hasUnpublishedChanges()) {
+                catalog.publish(catalog.takeChanges());
+            }
+        }
+    }
+
+    /**
+     * Queues publishing a snapshot on the background thread. Never blocks the
+     * caller; changes made while one is queued are published with it.
+     */
+    private void publishSoon() {
+        if (!publishQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            publisher.execute(() -> {
+                publishQueued.set(false);
+                publish();
+            });
+        } catch (RejectedExecutionException e) {
+            // The library is closing
+            publishQueued.set(false);
+        }
+    }
+
+    /**
+     * Returns a snapshot that includes every change made so far.
+     */
+    private CatalogSnapshot latestSnapshot() {
+        publish();
+        return catalog.snapshot();
+    }
+
+    /**
+     * Saves data to files and compacts the journal into them, waiting until
+     * the files are written. Automatic compaction does the same on a
+     * background thread.
+     *
+     * Only the records changed since the last save are written, as a delta
+     * next to each data file, so the cost follows the number of changes rather
+     * than the catalog size. Once a delta grows large, the data file is
+     * rewritten in full instead. Returns true if all files were written.
+     */
+    public boolean saveData() {
+        return checkpoint();
+    }
+
+    /**
+     * Copies the changed records and rotates the journal under the state
+     * lock, then writes the copies without holding it, so other operations
+     * only wait for the copy. The rotated journal entries are dropped once
+     * both files are safely written; if writing fails they are kept and the
+     * records stay marked as changed.
+     */
+    private boolean checkpoint() {
+        synchronized (checkpointLock) {
+            long start = System.nanoTime();
+            Checkpoint checkpoint;
+            stateLock.writeLock().lock();
+            try {
+                journal.rotate();
+                checkpoint = Checkpoint.capture(catalog, dataDir);
+                catalog.clearChanges();
+            } catch (IOException e) {
+                System.err.println("Error rotating journal: " + e.getMessage());
+                Metrics.Operation.SAVE.record(start, false);
+                return false;
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+
+            boolean written = checkpoint.write();
+            if (written) {
+                journal.dropRotated();
+            } else {
+                catalog.restoreChanges(checkpoint.getChangedBookIds(), checkpoint.getChangedMemberIds());
+            }
+            Metrics.Operation.SAVE.record(start, written);
+            return written;
+        }
+    }
+
+    /**
+     * Waits for a running checkpoint to finish and closes the journal.
+     * Call saveData() first to keep everything in the snapshot files.
+     */
+    public void close() {
+        housekeeping.shutdown();
+        publisher.shutdown();
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+        history.close();
+    }
+
+    /**
+     * Starts a bulk batch: until {@link #commitBatch()}, compaction is put off
+     * so a large import is not interrupted by repeated snapshot writes. Use the
+     * *Async operations inside a batch to avoid waiting for each journal write.
+     */
+    public void beginBatch() {
+        batchMode = true;
+    }
+
+    /**
+     * Ends a bulk batch, waiting until all of its journal entries are on disk,
+     * and publishes it as one snapshot.
+     */
+    public void commitBatch() {
+        journal.flush();
+        publish();
+        batchMode = false;
+        compactIfNeeded();
+    }
+
+    /**
+     * Starts a background checkpoint once the journal has grown large enough.
+     * Never blocks the caller; at most one checkpoint is queued at a time.
+     */
+    private void compactIfNeeded() {
+        if (batchMode || journal.getEntryCount() < COMPACTION_THRESHOLD
+                || !checkpointQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            checkpointer.execute(() -> {
+                checkpointQueued.set(false);
+                // An explicit save may have compacted since this was queued
+                if (journal.getEntryCount() >= COMPACTION_THRESHOLD) {
+                    checkpoint();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The library is closing
+            checkpointQueued.set(false);
+        }
+    }
+
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Returns the history of loans, with the open and overdue loans and the
+     * most borrowed books.
+     */
+    public LoanHistory getLoanHistory() {
+        return history;
+    }
+
+    /**
+     * Adds a book. Returns false if a book with the same ID already exists.
+     */
+    public boolean addBook(Book book) {
+        return addBookAsync(book).join();
+    }
+
+    /**
+     * Adds a book. The change is visible at once; the future completes with
+     * the result once it is durable in the journal.
+     */
+    public CompletableFuture<Boolean> addBookAsync(Book book) {
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> result;
+        boolean added;
+        stateLock.readLock().lock();
+        try {
+            added = catalog.addBook(book);
+            if (added) {
+                result = journal.append(Journal.Operation.BOOK_ADDED, book.toCSV()).thenApply(v -> true);
+            } else {
+                result = CompletableFuture.completedFuture(false);
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        Metrics.Operation.ADD_BOOK.record(start, added);
+        compactIfNeeded();
+        return result;
+    }
+
+    /**
+     * Adds a member. Returns false if a member with the same ID already exists.
+     */
+    public boolean addMember(Member member) {
+        return addMemberAsync(member).join();
+    }
+
+    /**
+     * Adds a member. The change is visible at once; the future completes with
+     * the result once it is durable in the journal.
+     */
+    public CompletableFuture<Boolean> addMemberAsync(Member member) {
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> result;
+        boolean added;
+        stateLock.readLock().lock();
+        try {
+            added = catalog.addMember(member);
+            if (added) {
+                result = journal.append(Journal.Operation.MEMBER_ADDED, member.toCSV()).thenApply(v -> true);
+            } else {
+                result = CompletableFuture.completedFuture(false);
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        Metrics.Operation.ADD_MEMBER.record(start, added);
+        compactIfNeeded();
+        return result;
     }
 
     /**
-     * Saves data to files.
+     * Lends a copy of a book to a member. The limit check, the availability
+     * check and the update of both records happen atomically. Returns once
+     * the loan is durable in the journal.
      */
-    public void saveData() {
-        FileHandler.saveBooks(books);
-        FileHandler.saveMembers(members);
+    public LoanResult borrowBook(String memberId, String bookId) {
+        return borrowBookAsync(memberId, bookId).join();
+    }
+
+    /**
+     * Lends a copy of a book to a member, like {@link #borrowBook(String, String)},
+     * but returns as soon as the loan is made. The future completes once it
+     * is durable in the journal.
+     *
+     * Unless the member has a hold on the book, the copy is taken off the
+     * shelf with a compare-and-set on the book's counter and the book's lock
+     * is not taken, so members borrowing copies of the same title do not
+     * wait on each other.
+     */
+    public CompletableFuture<LoanResult> borrowBookAsync(String memberId, String bookId) {
+        long start = System.nanoTime();
+        Member member = catalog.findMemberById(memberId);
+        if (member == null) {
+            return CompletableFuture.completedFuture(timed(Metrics.Operation.BORROW, start, LoanResult.MEMBER_NOT_FOUND));
+        }
+        Book book = catalog.findBookById(bookId);
+        if (book == null) {
+            return CompletableFuture.completedFuture(timed(Metrics.Operation.BORROW, start, LoanResult.BOOK_NOT_FOUND));
+        }
+
+        return underMemberLock(Metrics.Operation.BORROW, start, member, book, () -> {
+            if (member.getBorrowedBooksCount() >= MAX_BORROWED_BOOKS) {
+                return LoanResult.LIMIT_REACHED;
+            }
+            if (member.getBorrowedBookIds().contains(bookId)) {
+                return LoanResult.ALREADY_BORROWED;
+            }
+            HoldQueue holds = catalog.getHolds();
+            // Holds of this member are only placed under the member's lock, so this cannot change
+            if (!holds.hasHold(memberId, bookId)) {
+                if (!book.reserveCopy()) {
+                    return holds.hasReady(bookId) ? LoanResult.RESERVED : LoanResult.NOT_AVAILABLE;
+                }
+            } else {
+                LoanResult taken = underBookLock(book, () -> {
+                    Hold own = holds.find(bookId, memberId);
+                    // A ready hold already has a copy kept for it
+                    if ((own == null || !own.isReady()) && !book.reserveCopy()) {
+                        return holds.hasReady(bookId) ? LoanResult.RESERVED : LoanResult.NOT_AVAILABLE;
+                    }
+                    holds.remove(bookId, memberId);
+                    return LoanResult.BORROWED;
+                });
+                if (!taken.isSuccess()) {
+                    return taken;
+                }
+            }
+            member.borrowBook(bookId);
+            history.borrowed(memberId, bookId, System.currentTimeMillis());
+            catalog.markChanged(book);
+            catalog.markChanged(member);
+            return LoanResult.BORROWED;
+        }, Journal.Operation.BORROWED, () -> CsvWriter.join(memberId, bookId));
+    }
+
+    /**
+     * Takes a copy of a book back from a member. The check that the member
+     * holds the book and the update of both records happen atomically. If
+     * members are waiting for the book, the copy is kept for the next one in
+     * line instead of going back on the shelf. Returns once the return is
+     * durable in the journal.
+     */
+    public LoanResult returnBook(String memberId, String bookId) {
+        return returnBookAsync(memberId, bookId).join();
+    }
+
+    /**
+     * Takes a copy back, like {@link #returnBook(String, String)}, but returns
+     * as soon as the return is made. The future completes once it is durable
+     * in the journal.
+     */
+    public CompletableFuture<LoanResult> returnBookAsync(String memberId, String bookId) {
+        long start = System.nanoTime();
+        Member member = catalog.findMemberById(memberId);
+        if (member == null) {
+            return CompletableFuture.completedFuture(timed(Metrics.Operation.RETURN, start, LoanResult.MEMBER_NOT_FOUND));
+        }
+        Book book = catalog.findBookById(bookId);
+        if (book == null) {
+            return CompletableFuture.completedFuture(timed(Metrics.Operation.RETURN, start, LoanResult.BOOK_NOT_FOUND));
+        }
+
+        Hold[] keptFor = new Hold[1];
+        return underMemberLock(Metrics.Operation.RETURN, start, member, book, () -> {
+            if (!member.getBorrowedBookIds().contains(bookId)) {
+                return LoanResult.NOT_BORROWED;
+            }
+            member.returnBook(bookId);
+            long now = System.currentTimeMillis();
+            history.returned(memberId, bookId, now);
+            keptFor[0] = giveBack(book, now);
+            catalog.markChanged(book);
+            catalog.markChanged(member);
+            return LoanResult.RETURNED;
+        }, Journal.Operation.RETURNED, () -> withHandOff(CsvWriter.join(memberId, bookId), keptFor[0]));
+    }
+
+    /**
+     * Puts a returned copy back on the shelf, or keeps it for the next hold
+     * in line. Returns the hold it is kept for, or null.
+     *
+     * The book's lock is only taken if the book has holds. Without it, a hold
+     * placed at the same moment may have seen no copy on the shelf; the check
+     * after putting the copy back catches that, since placing a hold checks
+     * for copies after adding the hold (see {@link #placeHold}). A copy kept
+     * that way is returned too, so the hand-off is journaled in the same
+     * entry as the return and is durable when the caller is told it is.
+     */
+    private Hold giveBack(Book book, long now) {
+        HoldQueue holds = catalog.getHolds();
+        if (holds.hasHoldsOn(book.getId())) {
+            return underBookLock(book, () -> {
+                Hold next = handOff(book, now);
+                if (next == null) {
+                    book.releaseCopy();
+                }
+                return next;
+            });
+        }
+        book.releaseCopy();
+        if (holds.hasHoldsOn(book.getId())) {
+            return underBookLock(book, () -> {
+                // Another member may have taken the copy already
+                if (!book.reserveCopy()) {
+                    return null;
+                }
+                Hold next = handOff(book, now);
+                if (next == null) {
+                    book.releaseCopy();
+                }
+                return next;
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Runs a loan change while holding the member's stripe lock, and journals
+     * it with the given payload if it succeeded. The journal entry is queued
+     * under the lock, so entries for the same member are in order, but the
+     * wait for the disk happens after the lock is released. The change takes
+     * the book's lock itself where it needs it (see {@link #underBookLock});
+     * member locks are always taken before book locks, so threads cannot
+     * deadlock. The operation is timed under the given metric up to the point
+     * the journal entry is queued.
+     */
+    private CompletableFuture<LoanResult> underMemberLock(Metrics.Operation metric, long start, Member member,
+                                                          Book book, Supplier<LoanResult> change,
+                                                          Journal.Operation operation, Supplier<String> payload) {
+        CompletableFuture<LoanResult> durable;
+        boolean success;
+        Lock memberLock = memberLocks.get(member.getId());
+        stateLock.readLock().lock();
+        memberLock.lock();
+        try {
+            LoanResult result;
+            // Either record may have been removed while we waited for the lock
+            if (catalog.findMemberById(member.getId()) != member) {
+                result = LoanResult.MEMBER_NOT_FOUND;
+            } else if (catalog.findBookById(book.getId()) != book) {
+                result = LoanResult.BOOK_NOT_FOUND;
+            } else {
+                result = change.get();
+            }
+            success = result.isSuccess();
+            if (success) {
+                durable = journal.append(operation, payload.get()).thenApply(v -> result);
+            } else {
+                durable = CompletableFuture.completedFuture(result);
+            }
+        } finally {
+            memberLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        metric.record(start, success);
+        compactIfNeeded();
+        return durable;
+    }
+
+    /**
+     * Runs a change to a book's holds while holding the book's stripe lock.
+     * The caller must hold the state lock.
+     */
+    private <T> T underBookLock(Book book, Supplier<T> change) {
+        Lock bookLock = bookLocks.get(book.getId());
+        bookLock.lock();
+        try {
+            return change.get();
+        } finally {
+            bookLock.unlock();
+        }
+    }
+
+    /**
+     * Records an operation's time and outcome, and returns the outcome.
+     */
+    private static LoanResult timed(Metrics.Operation metric, long start, LoanResult result) {
+        metric.record(start, result.isSuccess());
+        return result;
+    }
+
+    private static HoldResult timed(Metrics.Operation metric, long start, HoldResult result) {
+        metric.record(start, result.isSuccess());
+        return result;
+    }
+
+    private static UpdateResult timed(Metrics.Operation metric, long start, UpdateResult result) {
+        metric.record(start, result.isSuccess());
+        return result;
+    }
+
+    /**
+     * Places a hold on a book that is out, with normal priority.
+     */
+    public HoldResult placeHold(String memberId, String bookId) {
+        return placeHold(memberId, bookId, 0);
+    }
+
+    /**
+     * Places a hold on a book that has no copy on the shelf. Holds with a
+     * higher priority are served first; holds of the same priority in the
+     * order they were placed. Returns once the hold is durable in the journal.
+     */
+    public HoldResult placeHold(String memberId, String bookId, int priority) {
+        long start = System.nanoTime();
+        Member member = catalog.findMemberById(memberId);
+        if (member == null) {
+            return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.MEMBER_NOT_FOUND);
+        }
+        Book book = catalog.findBookById(bookId);
+        if (book == null) {
+            return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.BOOK_NOT_FOUND);
+        }
+
+        CompletableFuture<Void> durable;
+        Lock memberLock = memberLocks.get(memberId);
+        Lock bookLock = bookLocks.get(bookId);
+        stateLock.readLock().lock();
+        memberLock.lock();
+        bookLock.lock();
+        try {
+            if (catalog.findMemberById(memberId) != member) {
+                return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.MEMBER_NOT_FOUND);
+            }
+            if (catalog.findBookById(bookId) != book) {
+                return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.BOOK_NOT_FOUND);
+            }
+            if (member.getBorrowedBookIds().contains(bookId)) {
+                return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.ALREADY_BORROWED);
+            }
+            if (book.isAvailable()) {
+                return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.AVAILABLE);
+            }
+            HoldQueue holds = catalog.getHolds();
+            Hold hold = holds.place(bookId, memberId, priority, holds.nextSequence(),
+                    System.currentTimeMillis() + HOLD_MAX_WAIT_MILLIS);
+            if (hold == null) {
+                return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.ALREADY_HELD);
+            }
+            // A copy returned without the book's lock while the hold was added
+            if (book.isAvailable()) {
+                holds.remove(bookId, memberId);
+                return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.AVAILABLE);
+            }
+            durable = journal.append(Journal.Operation.HOLD_PLACED, CsvWriter.join(bookId, memberId,
+                    String.valueOf(priority), String.valueOf(hold.getSequence()),
+                    String.valueOf(hold.getExpiresAt())));
+        } finally {
+            bookLock.unlock();
+            memberLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        durable.join();
+        compactIfNeeded();
+        return timed(Metrics.Operation.PLACE_HOLD, start, HoldResult.PLACED);
+    }
+
+    /**
+     * Cancels a member's hold on a book. If a copy was being kept for the
+     * member, it goes to the next hold in line, or back on the shelf.
+     */
+    public HoldResult cancelHold(String memberId, String bookId) {
+        long start = System.nanoTime();
+        if (!catalog.containsMember(memberId)) {
+            return timed(Metrics.Operation.CANCEL_HOLD, start, HoldResult.MEMBER_NOT_FOUND);
+        }
+        Book book = catalog.findBookById(bookId);
+        if (book == null) {
+            return timed(Metrics.Operation.CANCEL_HOLD, start, HoldResult.BOOK_NOT_FOUND);
+        }
+
+        CompletableFuture<Void> durable;
+        Lock bookLock = bookLocks.get(bookId);
+        stateLock.readLock().lock();
+        bookLock.lock();
+        try {
+            if (catalog.getHolds().find(bookId, memberId) == null) {
+                return timed(Metrics.Operation.CANCEL_HOLD, start, HoldResult.NOT_HELD);
+            }
+            durable = removeHold(bookId, memberId, System.currentTimeMillis());
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        durable.join();
+        compactIfNeeded();
+        return timed(Metrics.Operation.CANCEL_HOLD, start, HoldResult.CANCELLED);
+    }
+
+    /**
+     * Returns a member's holds, oldest first.
+     */
+    public List<Hold> getHolds(String memberId) {
+        return catalog.getHolds().getHoldsOf(memberId);
+    }
+
+    /**
+     * Removes the holds that ran out, passing copies kept for an expired hold
+     * on to the next one in line. Runs on the housekeeping thread.
+     */
+    private void expireHolds() {
+        try {
+            long start = System.nanoTime();
+            long now = System.currentTimeMillis();
+            List<Hold> expired = catalog.getHolds().takeExpired(now);
+            for (Hold hold : expired) {
+                Lock bookLock = bookLocks.get(hold.getBookId());
+                stateLock.readLock().lock();
+                bookLock.lock();
+                try {
+                    // It may have been fulfilled, cancelled or made ready since
+                    if (catalog.getHolds().find(hold.getBookId(), hold.getMemberId()) == hold
+                            && hold.getExpiresAt() <= now) {
+                        removeHold(hold.getBookId(), hold.getMemberId(), now);
+                    }
+                } finally {
+                    bookLock.unlock();
+                    stateLock.readLock().unlock();
+                }
+            }
+            // Only runs that found something are timed, so idle ticks do not hide the cost
+            if (!expired.isEmpty()) {
+                Metrics.Operation.EXPIRE_HOLDS.record(start);
+            }
+        } catch (RuntimeException e) {
+            // Keep the thread alive; the hold is tried again on restart
+            System.err.println("Error expiring holds: " + e.getMessage());
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes a hold and journals it. If a copy was being kept for it, the
+     * copy goes to the next hold in line or back on the shelf. Must be called
+     * under the book's lock.
+     */
+    private CompletableFuture<Void> removeHold(String bookId, String memberId, long now) {
+        HoldQueue holds = catalog.getHolds();
+        Hold removed = holds.find(bookId, memberId);
+        boolean wasReady = removed != null && removed.isReady();
+        holds.remove(bookId, memberId);
+        Book book = catalog.findBookById(bookId);
+        Hold next = null;
+        if (book != null && wasReady) {
+            next = handOff(book, now);
+            if (next == null) {
+                book.releaseCopy();
+            }
+            catalog.markChanged(book);
+        }
+        return journal.append(Journal.Operation.HOLD_REMOVED, withHandOff(CsvWriter.join(bookId, memberId), next));
+    }
+
+    /**
+     * Makes the next waiting hold on a book ready, if anyone is waiting.
+     * Returns the hold, or null. Must be called under the book's lock.
+     */
+    private Hold handOff(Book book, long now) {
+        return catalog.getHolds().promoteNext(book.getId(), now, now + HOLD_PICKUP_MILLIS);
+    }
+
+    /**
+     * Adds the hold a copy is now kept for, if any, to a journal payload, so
+     * replay hands the copy to the same member with the same deadline.
+     */
+    private static String withHandOff(String payload, Hold next) {
+        if (next == null) {
+            return payload;
+        }
+        return payload + "," + CsvWriter.join(next.getMemberId(), String.valueOf(next.getExpiresAt()));
+    }
+
+    /**
+     * Adds a copy with the given barcode to a book. If members are waiting
+     * for the book, the copy is kept for the next one in line; otherwise it
+     * goes on the shelf.
+     */
+    public UpdateResult addCopy(String bookId, String barcode) {
+        long start = System.nanoTime();
+        if (barcode == null || barcode.trim().isEmpty()) {
+            throw new IllegalArgumentException("A barcode is required");
+        }
+        String code = barcode.trim();
+        CompletableFuture<Void> durable;
+        Lock bookLock = bookLocks.get(bookId);
+        stateLock.readLock().lock();
+        bookLock.lock();
+        try {
+            Book book = catalog.findBookById(bookId);
+            if (book == null) {
+                return timed(Metrics.Operation.ADD_COPY, start, UpdateResult.NOT_FOUND);
+            }
+            if (!catalog.addCopy(book, code)) {
+                return timed(Metrics.Operation.ADD_COPY, start, UpdateResult.DUPLICATE);
+            }
+            Hold next = handOff(book, System.currentTimeMillis());
+            if (next == null) {
+                book.releaseCopy();
+            }
+            durable = journal.append(Journal.Operation.COPY_ADDED, withHandOff(CsvWriter.join(bookId, code), next));
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        durable.join();
+        compactIfNeeded();
+        return timed(Metrics.Operation.ADD_COPY, start, UpdateResult.UPDATED);
+    }
+
+    /**
+     * Changes the title, author and ISBN of the book with the same ID.
+     */
+    public UpdateResult updateBook(Book changes) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> durable;
+        Lock bookLock = bookLocks.get(changes.getId());
+        stateLock.readLock().lock();
+        bookLock.lock();
+        try {
+            Book book = catalog.findBookById(changes.getId());
+            if (book == null) {
+                return timed(Metrics.Operation.UPDATE_BOOK, start, UpdateResult.NOT_FOUND);
+            }
+            catalog.updateBook(book, changes.getTitle(), changes.getAuthor(), changes.getIsbn());
+            durable = journal.append(Journal.Operation.BOOK_UPDATED, book.toCSV());
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        durable.join();
+        compactIfNeeded();
+        return timed(Metrics.Operation.UPDATE_BOOK, start, UpdateResult.UPDATED);
+    }
+
+    /**
+     * Removes a book. A book with a copy on loan or with holds cannot be removed.
+     */
+    public UpdateResult removeBook(String bookId) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> durable;
+        Lock bookLock = bookLocks.get(bookId);
+        stateLock.readLock().lock();
+        bookLock.lock();
+        try {
+            Book book = catalog.findBookById(bookId);
+            if (book == null) {
+                return timed(Metrics.Operation.REMOVE_BOOK, start, UpdateResult.NOT_FOUND);
+            }
+            if (catalog.getHolds().getQueueLength(bookId) > 0 || !book.reserveAllCopies()) {
+                return timed(Metrics.Operation.REMOVE_BOOK, start, UpdateResult.IN_USE);
+            }
+            catalog.removeBook(bookId);
+            durable = journal.append(Journal.Operation.BOOK_REMOVED, CsvWriter.join(bookId));
+        } finally {
+            bookLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        durable.join();
+        compactIfNeeded();
+        return timed(Metrics.Operation.REMOVE_BOOK, start, UpdateResult.REMOVED);
+    }
+
+    /**
+     * Changes the name, email and phone of the member with the same ID.
+     */
+    public UpdateResult updateMember(Member changes) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> durable;
+        Lock memberLock = memberLocks.get(changes.getId());
+        stateLock.readLock().lock();
+        memberLock.lock();
+        try {
+            Member member = catalog.findMemberById(changes.getId());
+            if (member == null) {
+                return timed(Metrics.Operation.UPDATE_MEMBER, start, UpdateResult.NOT_FOUND);
+            }
+            member.setName(changes.getName());
+            member.setEmail(changes.getEmail());
+            member.setPhone(changes.getPhone());
+            catalog.markChanged(member);
+            durable = journal.append(Journal.Operation.MEMBER_UPDATED, member.toCSV());
+        } finally {
+            memberLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        durable.join();
+        compactIfNeeded();
+        return timed(Metrics.Operation.UPDATE_MEMBER, start, UpdateResult.UPDATED);
+    }
+
+    /**
+     * Removes a member. A member with books on loan or holds cannot be removed.
+     */
+    public UpdateResult removeMember(String memberId) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> durable;
+        Lock memberLock = memberLocks.get(memberId);
+        stateLock.readLock().lock();
+        memberLock.lock();
+        try {
+            Member member = catalog.findMemberById(memberId);
+            if (member == null) {
+                return timed(Metrics.Operation.REMOVE_MEMBER, start, UpdateResult.NOT_FOUND);
+            }
+            if (member.getBorrowedBooksCount() > 0 || catalog.getHolds().hasHolds(memberId)) {
+                return timed(Metrics.Operation.REMOVE_MEMBER, start, UpdateResult.IN_USE);
+            }
+            catalog.removeMember(memberId);
+            durable = journal.append(Journal.Operation.MEMBER_REMOVED, CsvWriter.join(memberId));
+        } finally {
+            memberLock.unlock();
+            stateLock.readLock().unlock();
+        }
+        durable.join();
+        compactIfNeeded();
+        return timed(Metrics.Operation.REMOVE_MEMBER, start, UpdateResult.REMOVED);
     }
 
     /**
@@ -49,11 +931,9 @@ public class Library {
         String id = scanner.nextLine().trim();
         
         // Check if book ID already exists
-        for (Book book : books) {
-            if (book.getId().equals(id)) {
-                System.out.println("Error: Book with this ID already exists!");
-                return;
-            }
+        if (catalog.containsBook(id)) {
+            System.out.println("Error: Book with this ID already exists!");
+            return;
         }
         
         System.out.print("Enter Title: ");
@@ -64,48 +944,85 @@ public class Library {
         String isbn = scanner.nextLine().trim();
         
         Book newBook = new Book(id, title, author, isbn);
-        books.add(newBook);
-        saveData();
+        if (!addBook(newBook)) {
+            System.out.println("Error: Book with this ID already exists!");
+            return;
+        }
         System.out.println("Book added successfully!");
     }
 
     /**
-     * Displays all books in the library.
+     * Lists the books a page at a time, in the order they were added or
+     * sorted by ID, title or author. Only the page on screen is fetched and
+     * formatted, and each page is printed with one write.
      */
     public void displayBooks() {
         System.out.println("\n--- All Books ---");
-        if (books.isEmpty()) {
+        CatalogSnapshot snapshot = latestSnapshot();
+        if (snapshot.getBookCount() == 0) {
             System.out.println("No books in the library.");
             return;
         }
-        
-        System.out.println("------------------------------------------------------------------");
-        System.out.printf("%-10s %-25s %-20s %-15s %-10s%n", "ID", "Title", "Author", "ISBN", "Available");
-        System.out.println("------------------------------------------------------------------");
-        
-        for (Book book : books) {
-            System.out.printf("%-10s %-25s %-20s %-15s %-10s%n",
-                    book.getId(),
-                    truncate(book.getTitle(), 25),
-                    truncate(book.getAuthor(), 20),
-                    book.getIsbn(),
-                    book.isAvailable() ? "Yes" : "No");
-        }
-        System.out.println("------------------------------------------------------------------");
+        System.out.print("Sort by (id, title, author; Enter for the order added): ");
+        Catalog.BookOrder order = parseOrder(Catalog.BookOrder.class, scanner.nextLine().trim());
+
+        StringBuilder page = new StringBuilder();
+        page.append(RULE).append(System.lineSeparator());
+        pad(page, "ID", 10);
+        pad(page, "Title", 25);
+        pad(page, "Author", 20);
+        pad(page, "ISBN", 15);
+        page.append("Available").append(System.lineSeparator());
+        page.append(RULE).append(System.lineSeparator());
+
+        int offset = 0;
+        String cursor = null;
+        boolean more;
+        do {
+            List<Book> books;
+            if (order == null) {
+                books = snapshot.getBooks(offset, DISPLAY_PAGE_SIZE);
+                offset += books.size();
+                more = offset < snapshot.getBookCount();
+            } else {
+                Page<Book> next = snapshot.getBooks(order, cursor, DISPLAY_PAGE_SIZE);
+                books = next.getItems();
+                cursor = next.getNextCursor();
+                more = cursor != null;
+            }
+            for (Book book : books) {
+                pad(page, book.getId(), 10);
+                clip(page, book.getTitle(), 25);
+                clip(page, book.getAuthor(), 20);
+                pad(page, book.getIsbn(), 15);
+                page.append(availability(book)).append(System.lineSeparator());
+            }
+            if (!more) {
+                page.append(RULE).append(System.lineSeparator());
+            }
+            System.out.print(page);
+            page.setLength(0);
+        } while (more && nextPage());
     }
 
     /**
-     * Searches for a book by ID or title.
+     * Searches for a book by ID, or by words in the title or author.
      */
     public void searchBook() {
         System.out.println("\n--- Search Book ---");
-        System.out.print("Enter search term (ID or Title): ");
-        String searchTerm = scanner.nextLine().trim().toLowerCase();
+        System.out.print("Enter search term (ID, Title or Author): ");
+        String searchTerm = scanner.nextLine().trim();
         
+        // Matches come from the live index and are shown as of the snapshot
+        CatalogSnapshot snapshot = latestSnapshot();
         boolean found = false;
-        for (Book book : books) {
-            if (book.getId().toLowerCase().equals(searchTerm) || 
-                book.getTitle().toLowerCase().contains(searchTerm)) {
+        Book byId = snapshot.findBookById(searchTerm);
+        if (byId != null) {
+            System.out.println(byId);
+            found = true;
+        }
+        for (Book book : snapshot.versionsOf(catalog.searchBooks(searchTerm))) {
+            if (book != byId) {
                 System.out.println(book);
                 found = true;
             }
@@ -125,11 +1042,9 @@ public class Library {
         String id = scanner.nextLine().trim();
         
         // Check if member ID already exists
-        for (Member member : members) {
-            if (member.getId().equals(id)) {
-                System.out.println("Error: Member with this ID already exists!");
-                return;
-            }
+        if (catalog.containsMember(id)) {
+            System.out.println("Error: Member with this ID already exists!");
+            return;
         }
         
         System.out.print("Enter Name: ");
@@ -140,34 +1055,88 @@ public class Library {
         String phone = scanner.nextLine().trim();
         
         Member newMember = new Member(id, name, email, phone);
-        members.add(newMember);
-        saveData();
+        if (!addMember(newMember)) {
+            System.out.println("Error: Member with this ID already exists!");
+            return;
+        }
         System.out.println("Member added successfully!");
     }
 
     /**
-     * Displays all members in the library.
+     * Lists the members a page at a time, in the order they were added or
+     * sorted by ID or name, like {@link #displayBooks()}.
      */
     public void displayMembers() {
         System.out.println("\n--- All Members ---");
-        if (members.isEmpty()) {
+        CatalogSnapshot snapshot = latestSnapshot();
+        if (snapshot.getMemberCount() == 0) {
             System.out.println("No members in the library.");
             return;
         }
-        
-        System.out.println("------------------------------------------------------------------");
-        System.out.printf("%-10s %-20s %-25s %-15s %-15s%n", "ID", "Name", "Email", "Phone", "Books Borrowed");
-        System.out.println("------------------------------------------------------------------");
-        
-        for (Member member : members) {
-            System.out.printf("%-10s %-20s %-25s %-15s %-15d%n",
-                    member.getId(),
-                    truncate(member.getName(), 20),
-                    truncate(member.getEmail(), 25),
-                    member.getPhone(),
-                    member.getBorrowedBooksCount());
+        System.out.print("Sort by (id, name; Enter for the order added): ");
+        Catalog.MemberOrder order = parseOrder(Catalog.MemberOrder.class, scanner.nextLine().trim());
+
+        StringBuilder page = new StringBuilder();
+        page.append(RULE).append(System.lineSeparator());
+        pad(page, "ID", 10);
+        pad(page, "Name", 20);
+        pad(page, "Email", 25);
+        pad(page, "Phone", 15);
+        page.append("Books Borrowed").append(System.lineSeparator());
+        page.append(RULE).append(System.lineSeparator());
+
+        int offset = 0;
+        String cursor = null;
+        boolean more;
+        do {
+            List<Member> members;
+            if (order == null) {
+                members = snapshot.getMembers(offset, DISPLAY_PAGE_SIZE);
+                offset += members.size();
+                more = offset < snapshot.getMemberCount();
+            } else {
+                Page<Member> next = snapshot.getMembers(order, cursor, DISPLAY_PAGE_SIZE);
+                members = next.getItems();
+                cursor = next.getNextCursor();
+                more = cursor != null;
+            }
+            for (Member member : members) {
+                pad(page, member.getId(), 10);
+                clip(page, member.getName(), 20);
+                clip(page, member.getEmail(), 25);
+                pad(page, member.getPhone(), 15);
+                page.append(member.getBorrowedBooksCount()).append(System.lineSeparator());
+            }
+            if (!more) {
+                page.append(RULE).append(System.lineSeparator());
+            }
+            System.out.print(page);
+            page.setLength(0);
+        } while (more && nextPage());
+    }
+
+    /**
+     * Asks whether to show the next page. Returns false if the user typed q.
+     */
+    private boolean nextPage() {
+        System.out.print("-- Enter for more, q to stop -- ");
+        return !scanner.nextLine().trim().equalsIgnoreCase("q");
+    }
+
+    /**
+     * Parses a sort order typed by the user, or returns null for the order
+     * added when nothing (or something unknown) was typed.
+     */
+    private static <E extends Enum<E>> E parseOrder(Class<E> type, String name) {
+        for (E order : type.getEnumConstants()) {
+            if (order.name().equalsIgnoreCase(name)) {
+                return order;
+            }
+        }
+        if (!name.isEmpty()) {
+            System.out.println("Unknown sort order, showing the order added.");
         }
-        System.out.println("------------------------------------------------------------------");
+        return null;
     }
 
     /**
@@ -187,7 +1156,7 @@ public class Library {
         }
         
         // Check if member has reached borrowing limit
-        if (member.getBorrowedBooksCount() >= 3) {
+        if (member.getBorrowedBooksCount() >= MAX_BORROWED_BOOKS) {
             System.out.println("Error: Member has already borrowed maximum 3 books!");
             return;
         }
@@ -202,17 +1171,8 @@ public class Library {
             return;
         }
         
-        // Check if book is available
-        if (!book.isAvailable()) {
-            System.out.println("Error: Book is not available!");
-            return;
-        }
-        
-        // Process borrowing
-        book.borrow();
-        member.borrowBook(bookId);
-        saveData();
-        System.out.println("Book borrowed successfully!");
+        // Process borrowing; availability and the limit are checked again atomically
+        System.out.println(borrowBook(memberId, bookId).getMessage());
     }
 
     /**
@@ -241,17 +1201,22 @@ public class Library {
             return;
         }
         
-        // Check if member has borrowed this book
-        if (!member.getBorrowedBookIds().contains(bookId)) {
-            System.out.println("Error: Member has not borrowed this book!");
-            return;
-        }
-        
         // Process return
-        book.returnBook();
-        member.returnBook(bookId);
-        saveData();
-        System.out.println("Book returned successfully!");
+        System.out.println(returnBook(memberId, bookId).getMessage());
+    }
+
+    /**
+     * Allows a member to place a hold on a book that is out.
+     */
+    public void placeHold() {
+        System.out.println("\n--- Place Hold ---");
+        
+        System.out.print("Enter Member ID: ");
+        String memberId = scanner.nextLine().trim();
+        System.out.print("Enter Book ID: ");
+        String bookId = scanner.nextLine().trim();
+        
+        System.out.println(placeHold(memberId, bookId).getMessage());
     }
 
     /**
@@ -262,7 +1227,8 @@ public class Library {
         
         System.out.print("Enter Member ID: ");
         String memberId = scanner.nextLine().trim();
-        Member member = findMemberById(memberId);
+        CatalogSnapshot snapshot = latestSnapshot();
+        Member member = snapshot.findMemberById(memberId);
         
         if (member == null) {
             System.out.println("Error: Member not found!");
@@ -277,46 +1243,140 @@ public class Library {
         }
         
         System.out.println("Books borrowed by " + member.getName() + ":");
+        long now = System.currentTimeMillis();
         for (String bookId : borrowedIds) {
-            Book book = findBookById(bookId);
+            Book book = snapshot.findBookById(bookId);
             if (book != null) {
-                System.out.println("  - " + book.getTitle() + " by " + book.getAuthor());
+                Loan loan = history.getLoan(memberId, bookId);
+                String due = loan == null ? ""
+                        : " (due " + formatDate(loan.getDueAt()) + (loan.isOverdue(now) ? ", OVERDUE)" : ")");
+                System.out.println("  - " + book.getTitle() + " by " + book.getAuthor() + due);
             }
         }
     }
 
     /**
-     * Finds a book by ID.
+     * Displays open and overdue loan counts, the most borrowed books and the
+     * loans that are most overdue.
      */
-    private Book findBookById(String id) {
-        for (Book book : books) {
-            if (book.getId().equals(id)) {
-                return book;
+    public void displayLoanStatistics() {
+        long now = System.currentTimeMillis();
+        System.out.println("\n--- Loan Statistics ---");
+        System.out.println("Open loans: " + history.getOpenLoanCount());
+        System.out.println("Overdue loans: " + history.getOverdueLoanCount(now));
+
+        Map<String, Integer> top = history.getTopBooks(now, STATISTICS_ROWS);
+        System.out.println("\nMost borrowed in the last " + LoanHistory.WINDOW_DAYS + " days:");
+        if (top.isEmpty()) {
+            System.out.println("  No books borrowed.");
+        }
+        int rank = 1;
+        for (Map.Entry<String, Integer> entry : top.entrySet()) {
+            Book book = findBookById(entry.getKey());
+            String title = book == null ? entry.getKey() + " (removed)" : book.getTitle();
+            System.out.println("  " + rank++ + ". " + title + " - " + entry.getValue() + " borrows");
+        }
+
+        List<Loan> overdue = history.getOverdueLoans(now, STATISTICS_ROWS);
+        if (!overdue.isEmpty()) {
+            System.out.println("\nMost overdue:");
+            for (Loan loan : overdue) {
+                Book book = findBookById(loan.getBookId());
+                System.out.println("  - " + (book == null ? loan.getBookId() : book.getTitle())
+                        + ", member " + loan.getMemberId() + ", due " + formatDate(loan.getDueAt()));
             }
         }
-        return null;
+    }
+
+    private static String formatDate(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault()).toLocalDate().toString();
+    }
+
+    /**
+     * Exports all books or members to a CSV or JSON file.
+     */
+    public void exportData() {
+        System.out.println("\n--- Export Data ---");
+        System.out.print("Export books or members: ");
+        String records = scanner.nextLine().trim().toLowerCase(Locale.ROOT);
+        if (!records.equals("books") && !records.equals("members")) {
+            System.out.println("Error: Enter books or members!");
+            return;
+        }
+        Exporter.Format format;
+        System.out.print("Format (csv or json): ");
+        try {
+            format = Exporter.Format.parse(scanner.nextLine().trim());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        System.out.print("File name: ");
+        String fileName = scanner.nextLine().trim();
+        if (fileName.isEmpty()) {
+            System.out.println("Error: A file name is required!");
+            return;
+        }
+        CatalogSnapshot snapshot = latestSnapshot();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8)) {
+            long count = records.equals("books")
+                    ? Exporter.exportBooks(snapshot.allBooks(), format, out)
+                    : Exporter.exportMembers(snapshot.allMembers(), format, out);
+            System.out.println("Exported " + count + " " + records + " to " + fileName + ".");
+        } catch (IOException e) {
+            System.out.println("Error exporting " + records + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finds a book by ID.
+     */
+    private Book findBookById(String id) {
+        return catalog.findBookById(id);
     }
 
     /**
      * Finds a member by ID.
      */
     private Member findMemberById(String id) {
-        for (Member member : members) {
-            if (member.getId().equals(id)) {
-                return member;
-            }
+        return catalog.findMemberById(id);
+    }
+
+    /**
+     * Describes how many copies of a book are on the shelf: Yes or No for a
+     * single copy, "available/copies" otherwise.
+     */
+    private static String availability(Book book) {
+        if (book.getCopies() == 1) {
+            return book.isAvailable() ? "Yes" : "No";
         }
-        return null;
+        return book.getAvailableCopies() + "/" + book.getCopies();
     }
 
     /**
-     * Truncates a string to a maximum length.
+     * Appends a value padded to a column width, followed by a space. Longer
+     * values are appended whole.
      */
-    private String truncate(String str, int maxLength) {
-        if (str.length() <= maxLength) {
-            return str;
+    private static void pad(StringBuilder row, String value, int width) {
+        String text = String.valueOf(value);
+        row.append(text);
+        for (int i = text.length(); i < width; i++) {
+            row.append(' ');
         }
-        return str.substring(0, maxLength - 3) + "...";
+        row.append(' ');
+    }
+
+    /**
+     * Appends a value like {@link #pad}, but cuts values longer than the
+     * column to fit, ending them with "...".
+     */
+    private static void clip(StringBuilder row, String value, int width) {
+        String text = String.valueOf(value);
+        if (text.length() <= width) {
+            pad(row, text, width);
+            return;
+        }
+        row.append(text, 0, width - 3).append("... ");
     }
 
     /**
@@ -336,6 +1396,9 @@ public class Library {
             System.out.println("7. Return Book");
             System.out.println("8. Display Member's Borrowed Books");
             System.out.println("9. Save Data");
+            System.out.println("10. Place Hold");
+            System.out.println("11. Export Data");
+            System.out.println("12. Loan Statistics");
             System.out.println("0. Exit");
             System.out.print("Enter your choice: ");
             
@@ -367,11 +1430,20 @@ public class Library {
                     displayMemberBorrowedBooks();
                     break;
                 case "9":
-                    saveData();
-                    System.out.println("Data saved successfully!");
+                    System.out.println(saveData() ? "Data saved successfully!" : "Error: Data could not be saved!");
+                    break;
+                case "10":
+                    placeHold();
+                    break;
+                case "11":
+                    exportData();
+                    break;
+                case "12":
+                    displayLoanStatistics();
                     break;
                 case "0":
                     saveData();
+                    close();
                     System.out.println("Thank you for using the Library Management System!");
                     running = false;
                     break;
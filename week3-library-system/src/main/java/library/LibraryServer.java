@@ -0,0 +1,876 @@
+package library;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded HTTP/JSON API for the library.
+ *
+ * Every request runs on its own virtual thread and calls the thread-safe
+ * Library operations directly, so thousands of slow clients do not tie up
+ * platform threads.
+ *
+ * Requests pass a {@link RequestScheduler} first: loans, returns, holds and
+ * transfers go ahead of single-record requests, which go ahead of listings,
+ * searches and exports, and requests for a member count towards that
+ * member's rate. A request over its member's rate gets 429 and one that the
+ * server is too busy for gets 503, both with a Retry-After header in seconds.
+ * GET /metrics, /branches and /scheduler are never held up.
+ *
+ * <pre>
+ *   GET    /books?offset=0&amp;limit=100    list books
+ *   GET    /books?q=words                 search titles and authors, typos allowed (&amp;maxEdits=0..2)
+ *   GET    /books?author=name             books by an author (&amp;available=true)
+ *   GET    /books?authorPrefix=na         books by authors starting with a prefix
+ *   GET    /books?isbn=978-0-13-468599-1  books with an ISBN
+ *   GET    /books?barcode=C1              the book a copy belongs to
+ *   GET    /books?sort=title&amp;cursor=c     a page in ID, title or author order, with the next cursor
+ *   POST   /books                         add {"id","title","author","isbn"}
+ *   POST   /books/{id}/copies             add a copy {"barcode"}
+ *   GET    /books/{id}                    get one book
+ *   PUT    /books/{id}                    update {"title","author","isbn"}
+ *   DELETE /books/{id}                    remove (not while on loan or held)
+ *   GET    /members?offset=0&amp;limit=100  list members
+ *   GET    /members?sort=name&amp;cursor=c    a page in ID or name order, with the next cursor
+ *   POST   /members                       add {"id","name","email","phone"}
+ *   GET    /members/{id}                  get one member
+ *   GET    /members/{id}/books            books the member has borrowed
+ *   GET    /members/{id}/holds            holds the member has placed
+ *   PUT    /members/{id}                  update {"name","email","phone"}
+ *   DELETE /members/{id}                  remove (not while holding books or holds)
+ *   POST   /borrow                        {"memberId","bookId"} or {"memberId","barcode"}
+ *   POST   /return                        {"memberId","bookId"} or {"memberId","barcode"}
+ *   POST   /holds                         {"memberId","bookId","priority"}, priority optional
+ *   DELETE /holds?memberId=M1&amp;bookId=B1    cancel a hold
+ *   GET    /export/books?format=csv       stream all books (or /export/members) as csv or json
+ *   GET    /branches                      branches with their book and member counts
+ *   POST   /transfers                     move {"bookId","to"} or {"memberId","to"} to another branch
+ *   GET    /loans?limit=10                open and overdue loan counts, most borrowed books
+ *   GET    /loans/overdue?limit=100       overdue loans, the longest overdue first
+ *   GET    /metrics                       operation counts, latency percentiles, file I/O
+ *   GET    /scheduler                     slots in use, queue lengths, refusals and queue waits
+ * </pre>
+ *
+ * With --branches a,b,c the server hosts several branches, each kept in
+ * its own subdirectory of the data directory (see {@link Branches}). Lists
+ * and new records take an optional "branch" (query parameter or field; the
+ * first branch by default), searches cover every branch and tag each book
+ * with its branch, and everything else finds the record's branch itself.
+ *
+ * Usage: java library.LibraryServer [--port 8080] [--data dir] [--branches a,b,c]
+ */
+public class LibraryServer {
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int BACKLOG = 4096;
+
+    private final Branches branches;
+    private final RequestScheduler scheduler;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Serves a single library, as the one branch "main".
+     */
+    public LibraryServer(Library library, int port) throws IOException {
+        this(new Branches(Collections.singletonMap("main", library), null), port);
+    }
+
+    /**
+     * Serves several branches. Requests for one record go to the branch that
+     * has it; listings and new records go to the branch named in the request,
+     * or the first one.
+     */
+    public LibraryServer(Branches branches, int port) throws IOException {
+        this(branches, new RequestScheduler(), port);
+    }
+
+    /**
+     * Serves several branches, admitting requests through the given scheduler.
+     */
+    public LibraryServer(Branches branches, RequestScheduler scheduler, int port) throws IOException {
+        this.branches = branches;
+        this.scheduler = scheduler;
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/books", exchange -> handle(exchange, this::books));
+        server.createContext("/members", exchange -> handle(exchange, this::members));
+        server.createContext("/borrow", exchange -> handle(exchange, this::borrow));
+        server.createContext("/return", exchange -> handle(exchange, this::giveBack));
+        server.createContext("/holds", exchange -> handle(exchange, this::holds));
+        server.createContext("/loans", exchange -> handle(exchange, this::loans));
+        server.createContext("/metrics", exchange -> handle(exchange, this::metrics));
+        server.createContext("/export", this::export);
+        server.createContext("/branches", exchange -> handle(exchange, this::branchList));
+        server.createContext("/transfers", exchange -> handle(exchange, this::transfers));
+        server.createContext("/scheduler", exchange -> handle(exchange, this::schedulerStats));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waiting up to the given number of seconds for
+     * running ones to finish.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        String dataDir = FileHandler.DATA_DIR;
+        String branchNames = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--data")) {
+                dataDir = args[i + 1];
+            } else if (args[i].equals("--branches")) {
+                branchNames = args[i + 1];
+            }
+        }
+
+        Branches branches = branchNames == null
+                ? new Branches(Collections.singletonMap("main", new Library(dataDir)), null)
+                : Branches.open(dataDir, Arrays.asList(branchNames.split(",")));
+        LibraryServer server = new LibraryServer(branches, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            branches.saveData();
+            branches.close();
+        }));
+        server.start();
+        System.out.println("Library API listening on port " + server.getPort());
+    }
+
+    /**
+     * A response to send: status code and JSON body.
+     */
+    private static class Response {
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private interface Route {
+        Response handle(HttpExchange exchange, String[] path) throws IOException;
+    }
+
+    /**
+     * Admits the request through the scheduler, then runs the route and sends
+     * its response. The slot is freed before the response is sent.
+     */
+    private void handle(HttpExchange exchange, Route route) throws IOException {
+        respond(exchange, (ex, path) -> {
+            try (RequestScheduler.Permit permit = admit(ex, path)) {
+                if (permit != null && !permit.isAdmitted()) {
+                    return refused(ex, permit);
+                }
+                return route.handle(ex, path);
+            }
+        });
+    }
+
+    /**
+     * Runs the route and sends its response, without admission.
+     */
+    private void respond(HttpExchange exchange, Route route) throws IOException {
+        Response response;
+        try {
+            response = route.handle(exchange, pathSegments(exchange));
+        } catch (IllegalArgumentException e) {
+            response = error(400, e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Error handling " + exchange.getRequestURI() + ": " + e);
+            response = error(500, "Internal error");
+        }
+        byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private Response books(HttpExchange exchange, String[] path) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (path.length == 1) {
+            if (method.equals("GET")) {
+                Map<String, String> query = query(exchange);
+                CatalogSnapshot snapshot = branch(query).getCatalog().snapshot();
+                if (query.containsKey("q")) {
+                    Found found = new Found(branches.searchBooks(query.get("q"),
+                            intParam(query, "maxEdits", SearchIndex.MAX_EDITS)), query.get("branch"));
+                    int limit = intParam(query, "limit", DEFAULT_PAGE_SIZE);
+                    return ok(page(found.size(), 0, found.json(0, limit)));
+                }
+                if (query.containsKey("sort") || query.containsKey("cursor")) {
+                    Page<Book> page = snapshot.getBooks(
+                            order(Catalog.BookOrder.class, query.get("sort")), query.get("cursor"),
+                            intParam(query, "limit", DEFAULT_PAGE_SIZE));
+                    return ok(cursorPage(bookJson(page.getItems()), page.getNextCursor()));
+                }
+                Found found = findBooks(query);
+                if (found != null) {
+                    int offset = Math.min(intParam(query, "offset", 0), found.size());
+                    int limit = intParam(query, "limit", DEFAULT_PAGE_SIZE);
+                    return ok(page(found.size(), offset, found.json(offset, limit)));
+                }
+                int offset = intParam(query, "offset", 0);
+                int limit = intParam(query, "limit", DEFAULT_PAGE_SIZE);
+                return ok(page(snapshot.getBookCount(), offset, bookJson(snapshot.getBooks(offset, limit))));
+            }
+            if (method.equals("POST")) {
+                Map<String, String> body = body(exchange);
+                Book book = new Book(required(body, "id"), text(body, "title"), text(body, "author"), text(body, "isbn"));
+                if (!branches.addBook(branchName(body), book)) {
+                    return error(409, "Book with this ID already exists");
+                }
+                return new Response(201, book.toJSON());
+            }
+        } else if (path.length == 2) {
+            String id = path[1];
+            switch (method) {
+                case "GET": {
+                    Book book = branches.findBook(id);
+                    return book == null ? error(404, "Book not found") : ok(book.toJSON());
+                }
+                case "PUT": {
+                    Map<String, String> body = body(exchange);
+                    UpdateResult result = branches.updateBook(
+                            new Book(id, present(body, "title"), present(body, "author"), present(body, "isbn")));
+                    return updateResponse(result, branches.findBook(id));
+                }
+                case "DELETE":
+                    return updateResponse(branches.removeBook(id), null);
+                default:
+                    break;
+            }
+        } else if (path.length == 3 && path[2].equals("copies") && method.equals("POST")) {
+            Map<String, String> body = body(exchange);
+            UpdateResult result = branches.addCopy(path[1], required(body, "barcode"));
+            if (result == UpdateResult.UPDATED) {
+                return new Response(201, branches.findBook(path[1]).toJSON());
+            }
+            return updateResponse(result, null);
+        }
+        return methodNotAllowed(path);
+    }
+
+    /**
+     * Runs a barcode, author, author prefix or ISBN lookup in every branch
+     * (or the one named) if the query asks for one, or returns null.
+     */
+    private Found findBooks(Map<String, String> query) {
+        boolean availableOnly = Boolean.parseBoolean(query.get("available"));
+        String branch = query.get("branch");
+        if (query.containsKey("barcode")) {
+            Book book = branches.findBookByBarcode(query.get("barcode"));
+            Map<String, List<Book>> found = new LinkedHashMap<>();
+            if (book != null && (!availableOnly || book.isAvailable())) {
+                found.put(branches.locateBook(book.getId()), Collections.singletonList(book));
+            }
+            return new Found(found, branch);
+        }
+        if (query.containsKey("isbn")) {
+            return new Found(branches.findBooksByIsbn(query.get("isbn"), availableOnly), branch);
+        }
+        if (query.containsKey("author")) {
+            return new Found(branches.findBooksByAuthor(query.get("author"), availableOnly), branch);
+        }
+        if (query.containsKey("authorPrefix")) {
+            return new Found(branches.findBooksByAuthorPrefix(query.get("authorPrefix"), availableOnly), branch);
+        }
+        return null;
+    }
+
+    /**
+     * Books found in one or more branches, in branch order, each with the
+     * name of its branch.
+     */
+    private static class Found {
+        private final List<Book> books = new ArrayList<>();
+        private final List<String> branchNames = new ArrayList<>();
+
+        Found(Map<String, List<Book>> byBranch, String onlyBranch) {
+            for (Map.Entry<String, List<Book>> entry : byBranch.entrySet()) {
+                if (onlyBranch == null || onlyBranch.equals(entry.getKey())) {
+                    for (Book book : entry.getValue()) {
+                        books.add(book);
+                        branchNames.add(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        int size() {
+            return books.size();
+        }
+
+        /**
+         * Formats up to limit books from offset, adding a "branch" field.
+         */
+        List<String> json(int offset, int limit) {
+            List<String> items = new ArrayList<>();
+            for (int i = offset; i < Math.min(books.size(), offset + limit); i++) {
+                items.add("{\"branch\":" + Json.quote(branchNames.get(i)) + "," + books.get(i).toJSON().substring(1));
+            }
+            return items;
+        }
+    }
+
+    private Response members(HttpExchange exchange, String[] path) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (path.length == 1) {
+            if (method.equals("GET")) {
+                Map<String, String> query = query(exchange);
+                CatalogSnapshot snapshot = branch(query).getCatalog().snapshot();
+                if (query.containsKey("sort") || query.containsKey("cursor")) {
+                    Page<Member> page = snapshot.getMembers(
+                            order(Catalog.MemberOrder.class, query.get("sort")), query.get("cursor"),
+                            intParam(query, "limit", DEFAULT_PAGE_SIZE));
+                    return ok(cursorPage(memberJson(page.getItems()), page.getNextCursor()));
+                }
+                int offset = intParam(query, "offset", 0);
+                int limit = intParam(query, "limit", DEFAULT_PAGE_SIZE);
+                return ok(page(snapshot.getMemberCount(), offset, memberJson(snapshot.getMembers(offset, limit))));
+            }
+            if (method.equals("POST")) {
+                Map<String, String> body = body(exchange);
+                Member member = new Member(required(body, "id"), text(body, "name"), text(body, "email"), text(body, "phone"));
+                if (!branches.addMember(branchName(body), member)) {
+                    return error(409, "Member with this ID already exists");
+                }
+                return new Response(201, member.toJSON());
+            }
+        } else if (path.length == 2) {
+            String id = path[1];
+            switch (method) {
+                case "GET": {
+                    Member member = branches.findMember(id);
+                    return member == null ? error(404, "Member not found") : ok(member.toJSON());
+                }
+                case "PUT": {
+                    Map<String, String> body = body(exchange);
+                    UpdateResult result = branches.updateMember(
+                            new Member(id, present(body, "name"), present(body, "email"), present(body, "phone")));
+                    return updateResponse(result, branches.findMember(id));
+                }
+                case "DELETE":
+                    return updateResponse(branches.removeMember(id), null);
+                default:
+                    break;
+            }
+        } else if (path.length == 3 && path[2].equals("books") && method.equals("GET")) {
+            Member member = branches.findMember(path[1]);
+            if (member == null) {
+                return error(404, "Member not found");
+            }
+            List<Book> borrowed = new ArrayList<>();
+            for (String bookId : member.getBorrowedBookIds()) {
+                Book book = branches.findBook(bookId);
+                if (book != null) {
+                    borrowed.add(book);
+                }
+            }
+            return ok(Json.array(bookJson(borrowed)));
+        } else if (path.length == 3 && path[2].equals("holds") && method.equals("GET")) {
+            if (branches.locateMember(path[1]) == null) {
+                return error(404, "Member not found");
+            }
+            List<String> items = new ArrayList<>();
+            for (Hold hold : branches.getHolds(path[1])) {
+                items.add(hold.toJSON());
+            }
+            return ok(Json.array(items));
+        }
+        return methodNotAllowed(path);
+    }
+
+    private Response borrow(HttpExchange exchange, String[] path) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST") || path.length != 1) {
+            return methodNotAllowed(path);
+        }
+        Map<String, String> body = body(exchange);
+        return loanResponse(branches.borrowBook(required(body, "memberId"), bookId(body)));
+    }
+
+    private Response giveBack(HttpExchange exchange, String[] path) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST") || path.length != 1) {
+            return methodNotAllowed(path);
+        }
+        Map<String, String> body = body(exchange);
+        return loanResponse(branches.returnBook(required(body, "memberId"), bookId(body)));
+    }
+
+    /**
+     * Returns the bookId field, or the ID of the book the copy in the barcode
+     * field belongs to. An unknown barcode gives an ID no book has.
+     */
+    private String bookId(Map<String, String> body) {
+        if (body.get("bookId") == null && body.get("barcode") != null) {
+            Book book = branches.findBookByBarcode(required(body, "barcode"));
+            return book != null ? book.getId() : "";
+        }
+        return required(body, "bookId");
+    }
+
+    private Response holds(HttpExchange exchange, String[] path) throws IOException {
+        if (path.length != 1) {
+            return methodNotAllowed(path);
+        }
+        switch (exchange.getRequestMethod()) {
+            case "POST": {
+                Map<String, String> body = body(exchange);
+                int priority;
+                try {
+                    priority = body.get("priority") == null ? 0 : Integer.parseInt(body.get("priority"));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Field priority must be a whole number");
+                }
+                return holdResponse(branches.placeHold(required(body, "memberId"), required(body, "bookId"), priority));
+            }
+            case "DELETE": {
+                Map<String, String> query = query(exchange);
+                return holdResponse(branches.cancelHold(required(query, "memberId"), required(query, "bookId")));
+            }
+            default:
+                return methodNotAllowed(path);
+        }
+    }
+
+    /**
+     * Streams all books or members as CSV or JSON, without building the
+     * response in memory first. Each branch is exported as of its snapshot
+     * when the request came in.
+     */
+    private void export(HttpExchange exchange) throws IOException {
+        String[] path = pathSegments(exchange);
+        boolean books = path.length == 2 && path[1].equals("books");
+        boolean members = path.length == 2 && path[1].equals("members");
+        if (!exchange.getRequestMethod().equals("GET") || !(books || members)) {
+            respond(exchange, (e, p) -> methodNotAllowed(p));
+            return;
+        }
+        Map<String, String> query = query(exchange);
+        Exporter.Format format;
+        List<CatalogSnapshot> snapshots = new ArrayList<>();
+        try {
+            format = Exporter.Format.parse(query.getOrDefault("format", "json"));
+            if (query.containsKey("branch")) {
+                snapshots.add(branch(query).getCatalog().snapshot());
+            } else {
+                for (String name : branches.getBranchNames()) {
+                    snapshots.add(branches.getBranch(name).getCatalog().snapshot());
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, (ex, p) -> error(400, e.getMessage()));
+            return;
+        }
+        // The export holds a bulk slot until the last byte is sent
+        try (RequestScheduler.Permit permit = scheduler.admit(RequestScheduler.Lane.BULK, null)) {
+            if (!permit.isAdmitted()) {
+                respond(exchange, (ex, p) -> refused(ex, permit));
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", format == Exporter.Format.CSV
+                    ? "text/csv; charset=utf-8" : "application/json; charset=utf-8");
+            // Length 0 sends the body in chunks as it is written
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+                if (books) {
+                    Exporter.exportBooks(() -> snapshots.stream().flatMap(s -> s.allBooks().stream()).iterator(),
+                            format, out);
+                } else {
+                    Exporter.exportMembers(() -> snapshots.stream().flatMap(s -> s.allMembers().stream()).iterator(),
+                            format, out);
+                }
+            }
+        }
+    }
+
+    private Response branchList(HttpExchange exchange, String[] path) {
+        if (!exchange.getRequestMethod().equals("GET") || path.length != 1) {
+            return methodNotAllowed(path);
+        }
+        List<String> items = new ArrayList<>();
+        for (String name : branches.getBranchNames()) {
+            Catalog catalog = branches.getBranch(name).getCatalog();
+            items.add("{\"name\":" + Json.quote(name) + ",\"books\":" + catalog.getBookCount()
+                    + ",\"members\":" + catalog.getMemberCount() + "}");
+        }
+        return ok(Json.array(items));
+    }
+
+    /**
+     * Moves a book or a member to another branch.
+     */
+    private Response transfers(HttpExchange exchange, String[] path) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST") || path.length != 1) {
+            return methodNotAllowed(path);
+        }
+        Map<String, String> body = body(exchange);
+        String to = required(body, "to");
+        if (branches.getBranch(to) == null) {
+            return error(404, "Branch not found");
+        }
+        if (body.get("bookId") != null) {
+            String id = body.get("bookId");
+            return updateResponse(branches.transferBook(id, to), branches.findBook(id));
+        }
+        String id = required(body, "memberId");
+        return updateResponse(branches.transferMember(id, to), branches.findMember(id));
+    }
+
+    /**
+     * Returns the branch named by the "branch" parameter, or the first one.
+     */
+    private Library branch(Map<String, String> params) {
+        Library library = branches.getBranch(branchName(params));
+        if (library == null) {
+            throw new IllegalArgumentException("Unknown branch: " + params.get("branch"));
+        }
+        return library;
+    }
+
+    private String branchName(Map<String, String> params) {
+        String name = params.get("branch");
+        return name == null || name.isEmpty() ? branches.getDefaultBranchName() : name;
+    }
+
+    /**
+     * Returns loan counts and the most borrowed books, or the overdue loans,
+     * over all branches.
+     */
+    private Response loans(HttpExchange exchange, String[] path) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return methodNotAllowed(path);
+        }
+        Map<String, String> query = query(exchange);
+        if (path.length == 1) {
+            List<String> top = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : branches.getTopBooks(intParam(query, "limit", 10)).entrySet()) {
+                Book book = branches.findBook(entry.getKey());
+                top.add("{\"id\":" + Json.quote(entry.getKey())
+                        + ",\"title\":" + (book == null ? "null" : Json.quote(book.getTitle()))
+                        + ",\"borrows\":" + entry.getValue() + "}");
+            }
+            return ok("{\"openLoans\":" + branches.getOpenLoanCount()
+                    + ",\"overdueLoans\":" + branches.getOverdueLoanCount()
+                    + ",\"windowDays\":" + LoanHistory.WINDOW_DAYS
+                    + ",\"topBooks\":" + Json.array(top) + "}");
+        }
+        if (path.length == 2 && path[1].equals("overdue")) {
+            List<String> items = new ArrayList<>();
+            for (Loan loan : branches.getOverdueLoans(intParam(query, "limit", DEFAULT_PAGE_SIZE))) {
+                items.add(loan.toJSON());
+            }
+            return ok(Json.array(items));
+        }
+        return methodNotAllowed(path);
+    }
+
+    private Response metrics(HttpExchange exchange, String[] path) {
+        if (exchange.getRequestMethod().equals("GET") && path.length == 1) {
+            return ok(Metrics.toJSON());
+        }
+        return methodNotAllowed(path);
+    }
+
+    private Response schedulerStats(HttpExchange exchange, String[] path) {
+        if (exchange.getRequestMethod().equals("GET") && path.length == 1) {
+            return ok(scheduler.toJSON());
+        }
+        return methodNotAllowed(path);
+    }
+
+    /**
+     * Waits for the scheduler to admit the request. Returns null for requests
+     * that are not scheduled: metrics and branch and scheduler status.
+     */
+    private RequestScheduler.Permit admit(HttpExchange exchange, String[] path) throws IOException {
+        RequestScheduler.Lane lane = laneOf(exchange.getRequestMethod(), path);
+        if (lane == null) {
+            return null;
+        }
+        return scheduler.admit(lane, memberOf(exchange, path, lane));
+    }
+
+    private static RequestScheduler.Lane laneOf(String method, String[] path) {
+        String resource = path.length == 0 ? "" : path[0];
+        switch (resource) {
+            case "metrics":
+            case "branches":
+            case "scheduler":
+                return null;
+            case "borrow":
+            case "return":
+            case "holds":
+            case "transfers":
+                return RequestScheduler.Lane.CIRCULATION;
+            case "loans":
+            case "export":
+                return RequestScheduler.Lane.BULK;
+            default:
+                return method.equals("GET") && path.length == 1
+                        ? RequestScheduler.Lane.BULK : RequestScheduler.Lane.RECORDS;
+        }
+    }
+
+    /**
+     * Returns the member a request is for, from the path, the query or, for
+     * circulation, the body; or null if it is not for a member.
+     */
+    private static String memberOf(HttpExchange exchange, String[] path, RequestScheduler.Lane lane)
+            throws IOException {
+        if (path.length >= 2 && path[0].equals("members")) {
+            return path[1];
+        }
+        String memberId = query(exchange).get("memberId");
+        if (memberId == null && lane == RequestScheduler.Lane.CIRCULATION
+                && exchange.getRequestMethod().equals("POST")) {
+            memberId = peekBody(exchange).get("memberId");
+        }
+        return memberId == null || memberId.trim().isEmpty() ? null : memberId.trim();
+    }
+
+    /**
+     * Returns 429 for a member over its rate and 503 when the server is too
+     * busy, telling the client when to try again.
+     */
+    private static Response refused(HttpExchange exchange, RequestScheduler.Permit permit) {
+        long retryAfterMillis = permit.getRetryAfterMillis();
+        exchange.getResponseHeaders().set("Retry-After",
+                String.valueOf(Math.max(1, (retryAfterMillis + 999) / 1000)));
+        AdmissionResult result = permit.getResult();
+        return new Response(result == AdmissionResult.RATE_LIMITED ? 429 : 503,
+                "{\"result\":" + Json.quote(result.name())
+                + ",\"message\":" + Json.quote(result.getMessage())
+                + ",\"retryAfterMillis\":" + retryAfterMillis + "}");
+    }
+
+    private static Response holdResponse(HoldResult result) {
+        int status;
+        switch (result) {
+            case PLACED:
+                status = 201;
+                break;
+            case CANCELLED:
+                status = 200;
+                break;
+            case MEMBER_NOT_FOUND:
+            case BOOK_NOT_FOUND:
+            case NOT_HELD:
+                status = 404;
+                break;
+            default:
+                status = 409;
+        }
+        return new Response(status, "{\"result\":" + Json.quote(result.name())
+                + ",\"message\":" + Json.quote(result.getMessage()) + "}");
+    }
+
+    private static Response loanResponse(LoanResult result) {
+        int status;
+        switch (result) {
+            case BORROWED:
+            case RETURNED:
+                status = 200;
+                break;
+            case MEMBER_NOT_FOUND:
+            case BOOK_NOT_FOUND:
+                status = 404;
+                break;
+            default:
+                status = 409;
+        }
+        return new Response(status, "{\"result\":" + Json.quote(result.name())
+                + ",\"message\":" + Json.quote(result.getMessage()) + "}");
+    }
+
+    private static Response updateResponse(UpdateResult result, Object record) {
+        switch (result) {
+            case UPDATED:
+                return ok(record instanceof Book ? ((Book) record).toJSON() : ((Member) record).toJSON());
+            case REMOVED:
+                return ok("{\"result\":\"REMOVED\"}");
+            case NOT_FOUND:
+                return error(404, result.getMessage());
+            default:
+                return error(409, result.getMessage());
+        }
+    }
+
+    private static List<String> bookJson(List<Book> books) {
+        List<String> items = new ArrayList<>(books.size());
+        for (Book book : books) {
+            items.add(book.toJSON());
+        }
+        return items;
+    }
+
+    private static List<String> memberJson(List<Member> members) {
+        List<String> items = new ArrayList<>(members.size());
+        for (Member member : members) {
+            items.add(member.toJSON());
+        }
+        return items;
+    }
+
+    private static String cursorPage(List<String> items, String next) {
+        return "{\"items\":" + Json.array(items) + ",\"next\":" + (next == null ? "null" : Json.quote(next)) + "}";
+    }
+
+    /**
+     * Parses a sort parameter such as "title" into an order; no sort means by ID.
+     */
+    private static <E extends Enum<E>> E order(Class<E> type, String sort) {
+        if (sort == null) {
+            return Enum.valueOf(type, "ID");
+        }
+        for (E order : type.getEnumConstants()) {
+            if (order.name().equalsIgnoreCase(sort)) {
+                return order;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sort: " + sort);
+    }
+
+    private static String page(int total, int offset, List<String> items) {
+        return "{\"total\":" + total + ",\"offset\":" + offset + ",\"items\":" + Json.array(items) + "}";
+    }
+
+    private static Response ok(String body) {
+        return new Response(200, body);
+    }
+
+    private static Response error(int status, String message) {
+        return new Response(status, "{\"error\":" + Json.quote(message) + "}");
+    }
+
+    private static Response methodNotAllowed(String[] path) {
+        return error(405, "Unsupported method or path: /" + String.join("/", path));
+    }
+
+    /**
+     * Splits the request path into decoded segments, e.g. /books/B1 into [books, B1].
+     */
+    private static String[] pathSegments(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getRawPath();
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(URLDecoder.decode(segment, StandardCharsets.UTF_8));
+            }
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw new IllegalArgumentException("Parameter " + name + " must not be negative");
+            }
+            return name.equals("limit") ? Math.min(parsed, MAX_PAGE_SIZE) : parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a number");
+        }
+    }
+
+    private static Map<String, String> body(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return Json.parseObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Parses the JSON body and puts it back, so the route can read it again.
+     */
+    private static Map<String, String> peekBody(HttpExchange exchange) throws IOException {
+        byte[] bytes;
+        try (InputStream in = exchange.getRequestBody()) {
+            bytes = in.readAllBytes();
+        }
+        exchange.setStreams(new ByteArrayInputStream(bytes), null);
+        return Json.parseObject(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static String required(Map<String, String> body, String name) {
+        String value = body.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("Field " + name + " is required");
+        }
+        return value.trim();
+    }
+
+    /**
+     * Returns a field that must be sent but may be empty, e.g. for a PUT,
+     * which replaces every field of the record, so a missing one is not
+     * taken to mean blank.
+     */
+    private static String present(Map<String, String> body, String name) {
+        String value = body.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Field " + name + " is required");
+        }
+        return value.trim();
+    }
+
+    private static String text(Map<String, String> body, String name) {
+        String value = body.get(name);
+        return value == null ? "" : value.trim();
+    }
+}
@@ -0,0 +1,214 @@
+package library;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load-test client for {@link LibraryServer}.
+ *
+ * Creates its own test books and one member per client, then runs many
+ * concurrent clients (one virtual thread each) issuing a mix of lookups (70%),
+ * searches (20%) and borrow/return pairs (10%). Prints throughput and
+ * p50/p90/p99/max latency. Requests the server refuses under load (429 or
+ * 503) are counted apart from errors.
+ *
+ * Usage: java library.LoadTestClient [--url http://localhost:8080]
+ *        [--clients 1000] [--requests 100] [--books 1000]
+ */
+public class LoadTestClient {
+    private static final String[] SEARCH_WORDS = {"load", "test", "volume", "load test"};
+
+    private final String baseUrl;
+    private final HttpClient client;
+    private final int books;
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    public LoadTestClient(String baseUrl, int books) {
+        this.baseUrl = baseUrl;
+        this.books = books;
+        this.client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:8080";
+        int clients = 1000;
+        int requests = 100;
+        int books = 1000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--url":
+                    url = args[i + 1];
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--books":
+                    books = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        LoadTestClient test = new LoadTestClient(url, books);
+        test.setUp(clients);
+        test.run(clients, requests);
+    }
+
+    /**
+     * Creates the test books and members; existing ones are reused.
+     */
+    public void setUp(int clients) throws Exception {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> pending = new ArrayList<>();
+            for (int i = 0; i < books; i++) {
+                String body = "{\"id\":" + Json.quote(bookId(i)) + ",\"title\":\"Load Test Volume " + i
+                        + "\",\"author\":\"Test Author " + (i % 50) + "\",\"isbn\":\"LT-" + i + "\"}";
+                pending.add(executor.submit(() -> send("POST", "/books", body)));
+            }
+            for (int c = 0; c < clients; c++) {
+                String body = "{\"id\":" + Json.quote(memberId(c)) + ",\"name\":\"Load Client " + c
+                        + "\",\"email\":\"client" + c + "@example.com\",\"phone\":\"555-0000\"}";
+                pending.add(executor.submit(() -> send("POST", "/members", body)));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        }
+        errors.set(0);
+    }
+
+    /**
+     * Runs the clients and prints the latency report.
+     */
+    public void run(int clients, int requestsPerClient) throws Exception {
+        List<Future<long[]>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                String memberId = memberId(c);
+                results.add(executor.submit(() -> clientLoop(memberId, requestsPerClient)));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<long[]> perClient = new ArrayList<>();
+        int total = 0;
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            perClient.add(latencies);
+            total += latencies.length;
+        }
+        long[] all = new long[total];
+        int position = 0;
+        for (long[] latencies : perClient) {
+            System.arraycopy(latencies, 0, all, position, latencies.length);
+            position += latencies.length;
+        }
+        Arrays.sort(all);
+
+        double seconds = elapsed / 1e9;
+        System.out.println("\n--- Load Test Results ---");
+        System.out.printf("Clients:     %d%n", clients);
+        System.out.printf("Requests:    %d (%d errors, %d refused)%n", total, errors.get(), refused.get());
+        System.out.printf("Duration:    %.2f s%n", seconds);
+        System.out.printf("Throughput:  %.0f requests/s%n", total / seconds);
+        System.out.printf("Latency p50: %.2f ms%n", percentile(all, 50));
+        System.out.printf("Latency p90: %.2f ms%n", percentile(all, 90));
+        System.out.printf("Latency p99: %.2f ms%n", percentile(all, 99));
+        System.out.printf("Latency max: %.2f ms%n", all.length == 0 ? 0.0 : all[all.length - 1] / 1e6);
+    }
+
+    /**
+     * One client's requests; returns the latency of each request in nanoseconds.
+     */
+    private long[] clientLoop(String memberId, int requests) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] latencies = new long[requests * 2];
+        int count = 0;
+        for (int i = 0; i < requests; i++) {
+            int choice = random.nextInt(100);
+            if (choice < 70) {
+                latencies[count++] = timed("GET", "/books/" + bookId(random.nextInt(books)), null);
+            } else if (choice < 90) {
+                String query = URLEncoder.encode(SEARCH_WORDS[random.nextInt(SEARCH_WORDS.length)], StandardCharsets.UTF_8);
+                latencies[count++] = timed("GET", "/books?q=" + query + "&limit=20", null);
+            } else {
+                String body = "{\"memberId\":" + Json.quote(memberId) + ",\"bookId\":" + Json.quote(bookId(random.nextInt(books))) + "}";
+                latencies[count++] = timed("POST", "/borrow", body);
+                latencies[count++] = timed("POST", "/return", body);
+            }
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private long timed(String method, String path, String body) {
+        long start = System.nanoTime();
+        send(method, path, body);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Sends a request; 429 and 503 count as refused, other 5xx responses and
+     * I/O failures as errors.
+     */
+    private int send(String method, String path, String body) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(30));
+        if (body == null) {
+            request.method(method, HttpRequest.BodyPublishers.noBody());
+        } else {
+            request.header("Content-Type", "application/json")
+                    .method(method, HttpRequest.BodyPublishers.ofString(body));
+        }
+        try {
+            int status = client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+            if (status == 429 || status == 503) {
+                refused.incrementAndGet();
+            } else if (status >= 500) {
+                errors.incrementAndGet();
+            }
+            return status;
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            return -1;
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static String bookId(int index) {
+        return "LT-B" + index;
+    }
+
+    private static String memberId(int index) {
+        return "LT-M" + index;
+    }
+}
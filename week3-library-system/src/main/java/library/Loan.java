@@ -0,0 +1,63 @@
+package library;
+
+/**
+ * A copy of a book lent to a member, with when it was borrowed and when it is
+ * due back. Times are epoch milliseconds.
+ */
+public class Loan {
+    private final String memberId;
+    private final String bookId;
+    private final long borrowedAt;
+    private final long dueAt;
+
+    public Loan(String memberId, String bookId, long borrowedAt, long dueAt) {
+        this.memberId = memberId;
+        this.bookId = bookId;
+        this.borrowedAt = borrowedAt;
+        this.dueAt = dueAt;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public String getBookId() {
+        return bookId;
+    }
+
+    public long getBorrowedAt() {
+        return borrowedAt;
+    }
+
+    public long getDueAt() {
+        return dueAt;
+    }
+
+    /**
+     * Returns true if the loan was due back before the given time.
+     */
+    public boolean isOverdue(long now) {
+        return dueAt < now;
+    }
+
+    /**
+     * Returns the key of the loan of a book to a member. A member borrows at
+     * most one copy of a book, so the key is unique among open loans.
+     */
+    static String key(String memberId, String bookId) {
+        return memberId + '\0' + bookId;
+    }
+
+    public String toJSON() {
+        return "{\"memberId\":" + Json.quote(memberId)
+                + ",\"bookId\":" + Json.quote(bookId)
+                + ",\"borrowedAt\":" + borrowedAt
+                + ",\"dueAt\":" + dueAt + "}";
+    }
+
+    @Override
+    public String toString() {
+        return "Loan{memberId='" + memberId + "', bookId='" + bookId + "', borrowedAt=" + borrowedAt
+                + ", dueAt=" + dueAt + "}";
+    }
+}
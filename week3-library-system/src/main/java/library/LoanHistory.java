@@ -0,0 +1,492 @@
+package library;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every loan ever made, in an append-only event log, with running totals for
+ * circulation questions: which loans are open, which are overdue, and which
+ * books were borrowed most recently.
+ *
+ * The log is split into one file per month (UTC), e.g. loans-2026-10.log in
+ * the history directory. Each borrow and return is appended as it happens.
+ * A new month's file starts with an OPEN row for every loan still open, so
+ * the latest file alone gives the open loans, and older files are never
+ * read again once they fall out of the window; they can be archived or
+ * removed. On startup the files covering the window are read once.
+ *
+ * The totals are kept up to date with each event, so the questions are
+ * answered without reading the log:
+ * <ul>
+ *   <li>open loans in a map, so their count is its size;</li>
+ *   <li>due dates in a priority queue; loans are moved to the overdue list
+ *       as their due date passes, so finding them only looks at loans that
+ *       just became overdue;</li>
+ *   <li>borrows per book per day for the last {@link #WINDOW_DAYS} days,
+ *       with the books ranked by their total; a day's counts are taken off
+ *       the ranking when it leaves the window.</li>
+ * </ul>
+ *
+ * Events are buffered and written to disk every second, without a sync: the
+ * journal stays the record of who has what. On startup, open loans are
+ * checked against the members' borrowed books, so a crash can lose at most
+ * the last second of borrows from the ranking.
+ *
+ * Row format: event,time,memberId,bookId[,dueAt], where event is OPEN,
+ * BORROWED or RETURNED.
+ */
+public class LoanHistory {
+    /**
+     * How long a loan lasts. Set with -Dlibrary.loans.periodMillis.
+     */
+    public static final long LOAN_PERIOD_MILLIS = Long.getLong("library.loans.periodMillis",
+            TimeUnit.DAYS.toMillis(14));
+
+    /**
+     * How many days of borrows the ranking covers. Set with
+     * -Dlibrary.loans.windowDays.
+     */
+    public static final int WINDOW_DAYS = Integer.getInteger("library.loans.windowDays", 30);
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final String HEADER = "# Format: event,time,memberId,bookId[,dueAt]";
+    private static final String OPEN = "OPEN";
+    private static final String BORROWED = "BORROWED";
+    private static final String RETURNED = "RETURNED";
+    private static final String PREFIX = "loans-";
+    private static final String SUFFIX = ".log";
+
+    private final String dir;
+    private final Map<String, Loan> open = new HashMap<>();
+    private final PriorityQueue<Loan> dueQueue = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.getDueAt(), b.getDueAt()));
+    private final Map<String, Loan> overdue = new LinkedHashMap<>();
+    private final TreeMap<Long, Map<String, Integer>> borrowsByDay = new TreeMap<>();
+    private final Map<String, Integer> borrowsInWindow = new HashMap<>();
+    private final TreeSet<Ranked> ranking = new TreeSet<>();
+    private YearMonth month;
+    private Writer writer;
+    private boolean dirty;
+
+    /**
+     * Keeps the history in the given directory. Call {@link #load(Catalog)}
+     * before recording events.
+     */
+    public LoanHistory(String dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the history directory in the given data directory.
+     */
+    public static String historyDir(String dataDir) {
+        return dataDir + File.separator + "history";
+    }
+
+    /**
+     * Reads the open loans from the latest file and the borrows in the
+     * window from the files that cover it, then checks the open loans
+     * against the members' borrowed books: loans the log missed are opened
+     * as of now, and loans it did not see returned are closed.
+     */
+    public synchronized void load(Catalog catalog) {
+        long now = System.currentTimeMillis();
+        closeWriter();
+        clear();
+        try {
+            Files.createDirectories(new File(dir).toPath());
+        } catch (IOException e) {
+            System.err.println("Error creating loan history directory: " + e.getMessage());
+        }
+
+        File[] files = partitions();
+        YearMonth windowStart = monthOf(now - WINDOW_DAYS * DAY_MILLIS);
+        long windowStartDay = dayOf(now) - WINDOW_DAYS + 1;
+        for (int i = 0; i < files.length; i++) {
+            boolean latest = i == files.length - 1;
+            if (latest || !monthOf(files[i]).isBefore(windowStart)) {
+                read(files[i], latest, windowStartDay);
+            }
+        }
+
+        int reconciled = 0;
+        Map<String, Loan> unseen = new HashMap<>(open);
+        for (Member member : catalog.allMembers()) {
+            for (String bookId : member.getBorrowedBookIds()) {
+                String key = Loan.key(member.getId(), bookId);
+                if (unseen.remove(key) == null) {
+                    openLoan(new Loan(member.getId(), bookId, now, now + LOAN_PERIOD_MILLIS));
+                    reconciled++;
+                }
+            }
+        }
+        for (String key : unseen.keySet()) {
+            open.remove(key);
+            overdue.remove(key);
+            reconciled++;
+        }
+        if (reconciled > 0) {
+            System.out.println("Reconciled " + reconciled + " loans with the loan history.");
+        }
+        try {
+            openWriter(monthOf(now));
+        } catch (IOException e) {
+            System.err.println("Error opening loan history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records that a member borrowed a book, and returns the loan.
+     */
+    public synchronized Loan borrowed(String memberId, String bookId, long now) {
+        Loan loan = new Loan(memberId, bookId, now, now + LOAN_PERIOD_MILLIS);
+        openLoan(loan);
+        expireDays(now);
+        count(bookId, dayOf(now), 1);
+        append(now, BORROWED, memberId, bookId, String.valueOf(loan.getDueAt()));
+        return loan;
+    }
+
+    /**
+     * Records that a member returned a book.
+     */
+    public synchronized void returned(String memberId, String bookId, long now) {
+        closeLoan(Loan.key(memberId, bookId));
+        append(now, RETURNED, memberId, bookId);
+    }
+
+    /**
+     * Returns a member's open loan of a book, or null.
+     */
+    public synchronized Loan getLoan(String memberId, String bookId) {
+        return open.get(Loan.key(memberId, bookId));
+    }
+
+    public synchronized int getOpenLoanCount() {
+        return open.size();
+    }
+
+    public synchronized int getOverdueLoanCount(long now) {
+        updateOverdue(now);
+        return overdue.size();
+    }
+
+    /**
+     * Returns up to limit overdue loans, the longest overdue first.
+     */
+    public synchronized List<Loan> getOverdueLoans(long now, int limit) {
+        updateOverdue(now);
+        List<Loan> loans = new ArrayList<>();
+        for (Loan loan : overdue.values()) {
+            if (loans.size() >= limit) {
+                break;
+            }
+            loans.add(loan);
+        }
+        return loans;
+    }
+
+    /**
+     * Returns the IDs of up to limit books borrowed most in the last
+     * {@link #WINDOW_DAYS} days, most borrowed first, with their number of
+     * borrows. Books borrowed equally often are ordered by ID.
+     */
+    public synchronized Map<String, Integer> getTopBooks(long now, int limit) {
+        expireDays(now);
+        Map<String, Integer> top = new LinkedHashMap<>();
+        for (Ranked ranked : ranking) {
+            if (top.size() >= limit) {
+                break;
+            }
+            top.put(ranked.bookId, ranked.borrows);
+        }
+        return top;
+    }
+
+    /**
+     * Writes buffered events to the file. Called every second.
+     */
+    public synchronized void flush() {
+        if (writer == null || !dirty) {
+            return;
+        }
+        try {
+            writer.flush();
+            dirty = false;
+        } catch (IOException e) {
+            System.err.println("Error writing loan history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes buffered events and closes the file.
+     */
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    private void clear() {
+        open.clear();
+        dueQueue.clear();
+        overdue.clear();
+        borrowsByDay.clear();
+        borrowsInWindow.clear();
+        ranking.clear();
+    }
+
+    private void openLoan(Loan loan) {
+        open.put(Loan.key(loan.getMemberId(), loan.getBookId()), loan);
+        dueQueue.add(loan);
+    }
+
+    /**
+     * Closes an open loan. Its entry in the due queue is skipped when it
+     * comes up, which is cheaper than finding it now.
+     */
+    private void closeLoan(String key) {
+        open.remove(key);
+        overdue.remove(key);
+    }
+
+    /**
+     * Moves the loans whose due date has passed from the due queue to the
+     * overdue list, in due order.
+     */
+    private void updateOverdue(long now) {
+        while (!dueQueue.isEmpty() && dueQueue.peek().isOverdue(now)) {
+            Loan loan = dueQueue.poll();
+            String key = Loan.key(loan.getMemberId(), loan.getBookId());
+            // Returned, or returned and borrowed again, since it was queued
+            if (open.get(key) == loan) {
+                overdue.put(key, loan);
+            }
+        }
+    }
+
+    /**
+     * Adds borrows of a book on a day to the counts and the ranking.
+     */
+    private void count(String bookId, long day, int borrows) {
+        borrowsByDay.computeIfAbsent(day, d -> new HashMap<>()).merge(bookId, borrows, Integer::sum);
+        rank(bookId, borrows);
+    }
+
+    private void rank(String bookId, int change) {
+        int before = borrowsInWindow.getOrDefault(bookId, 0);
+        int after = before + change;
+        if (before > 0) {
+            ranking.remove(new Ranked(bookId, before));
+        }
+        if (after > 0) {
+            borrowsInWindow.put(bookId, after);
+            ranking.add(new Ranked(bookId, after));
+        } else {
+            borrowsInWindow.remove(bookId);
+        }
+    }
+
+    /**
+     * Takes the days that have left the window off the ranking.
+     */
+    private void expireDays(long now) {
+        long firstDay = dayOf(now) - WINDOW_DAYS + 1;
+        while (!borrowsByDay.isEmpty() && borrowsByDay.firstKey() < firstDay) {
+            for (Map.Entry<String, Integer> entry : borrowsByDay.pollFirstEntry().getValue().entrySet()) {
+                rank(entry.getKey(), -entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads one month's file: its borrows in the window into the counts,
+     * and, if it is the latest, its loans into the open loans.
+     */
+    private void read(File file, boolean latest, long windowStartDay) {
+        long rows = 0;
+        try (CsvReader reader = new CsvReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            while (nextRow(reader, file.getPath())) {
+                if (reader.getFieldCount() < 4) {
+                    FileHandler.reportMalformedRow(file.getPath(),
+                            "line " + reader.getLineNumber() + ": expected at least 4 fields");
+                    continue;
+                }
+                String event = reader.getField(0);
+                String memberId = reader.getField(2);
+                String bookId = reader.getField(3);
+                try {
+                    long time = Long.parseLong(reader.getField(1));
+                    if (event.equals(BORROWED) && dayOf(time) >= windowStartDay) {
+                        count(bookId, dayOf(time), 1);
+                    }
+                    if (latest && event.equals(RETURNED)) {
+                        closeLoan(Loan.key(memberId, bookId));
+                    } else if (latest && (event.equals(OPEN) || event.equals(BORROWED))) {
+                        openLoan(new Loan(memberId, bookId, time, Long.parseLong(reader.getField(4))));
+                    }
+                    rows++;
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    FileHandler.reportMalformedRow(file.getPath(),
+                            "line " + reader.getLineNumber() + ": bad time or due date");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading loan history " + file.getPath() + ": " + e.getMessage());
+        }
+        Metrics.FileKind.HISTORY.read(file.length(), rows);
+    }
+
+    private static boolean nextRow(CsvReader reader, String path) throws IOException {
+        while (true) {
+            try {
+                return reader.next();
+            } catch (CsvFormatException e) {
+                FileHandler.reportMalformedRow(path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Appends an event to the file of the month it happened in, starting a
+     * new file if the month has changed.
+     */
+    private void append(long time, String event, String... fields) {
+        StringBuilder row = new StringBuilder(event).append(',').append(time);
+        for (String field : fields) {
+            row.append(',');
+            CsvWriter.appendField(row, field);
+        }
+        row.append('\n');
+        try {
+            YearMonth eventMonth = monthOf(time);
+            if (writer == null || !eventMonth.equals(month)) {
+                closeWriter();
+                openWriter(eventMonth);
+            }
+            writer.write(row.toString());
+            dirty = true;
+            Metrics.FileKind.HISTORY.written(row.length(), 1);
+        } catch (IOException e) {
+            System.err.println("Error writing loan history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the file of a month for appending. A new file is written in
+     * full with the open loans first, synced and renamed into place, so
+     * the latest file always has every open loan.
+     */
+    private void openWriter(YearMonth newMonth) throws IOException {
+        File file = new File(dir, PREFIX + newMonth + SUFFIX);
+        if (!file.exists()) {
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp);
+                 Writer start = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                start.write(HEADER);
+                start.write('\n');
+                long rows = 0;
+                for (Loan loan : open.values()) {
+                    start.write(CsvWriter.join(OPEN, String.valueOf(loan.getBorrowedAt()), loan.getMemberId(),
+                            loan.getBookId(), String.valueOf(loan.getDueAt())));
+                    start.write('\n');
+                    rows++;
+                }
+                start.flush();
+                out.getFD().sync();
+                Metrics.FileKind.HISTORY.written(temp.length(), rows);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            FileHandler.syncDirectory(file);
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8));
+        month = newMonth;
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("Error closing loan history: " + e.getMessage());
+        }
+        writer = null;
+        dirty = false;
+    }
+
+    /**
+     * Returns the monthly files, oldest first.
+     */
+    private File[] partitions() {
+        File[] files = new File(dir).listFiles(
+                (d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX) && monthOf(name) != null);
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static YearMonth monthOf(File file) {
+        return monthOf(file.getName());
+    }
+
+    private static YearMonth monthOf(String name) {
+        try {
+            return YearMonth.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static YearMonth monthOf(long time) {
+        return YearMonth.from(Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC));
+    }
+
+    private static long dayOf(long time) {
+        return Math.floorDiv(time, DAY_MILLIS);
+    }
+
+    /**
+     * A book's place in the ranking: more borrows first, then by ID.
+     */
+    private static class Ranked implements Comparable<Ranked> {
+        private final String bookId;
+        private final int borrows;
+
+        Ranked(String bookId, int borrows) {
+            this.bookId = bookId;
+            this.borrows = borrows;
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            int byBorrows = Integer.compare(other.borrows, borrows);
+            return byBorrows != 0 ? byBorrows : bookId.compareTo(other.bookId);
+        }
+    }
+}
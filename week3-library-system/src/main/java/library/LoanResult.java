@@ -0,0 +1,31 @@
+package library;
+
+/**
+ * Outcome of a borrow or return request.
+ */
+public enum LoanResult {
+    BORROWED("Book borrowed successfully!"),
+    RETURNED("Book returned successfully!"),
+    MEMBER_NOT_FOUND("Error: Member not found!"),
+    BOOK_NOT_FOUND("Error: Book not found!"),
+    LIMIT_REACHED("Error: Member has already borrowed maximum 3 books!"),
+    NOT_AVAILABLE("Error: Book is not available!"),
+    RESERVED("Error: Book is being kept for another member's hold!"),
+    NOT_BORROWED("Error: Member has not borrowed this book!"),
+    ALREADY_BORROWED("Error: Member has already borrowed a copy of this book!"),
+    OTHER_BRANCH("Error: Book belongs to another branch than the member!");
+
+    private final String message;
+
+    LoanResult(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isSuccess() {
+        return this == BORROWED || this == RETURNED;
+    }
+}
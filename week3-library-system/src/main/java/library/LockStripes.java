@@ -0,0 +1,38 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A fixed set of locks shared out by key hash.
+ *
+ * Gives roughly per-record locking without allocating a lock for every book
+ * or member: two keys only contend when they land on the same stripe. The
+ * locks can be of any kind, e.g. ReentrantLock or ReentrantReadWriteLock.
+ */
+public class LockStripes<L> {
+    private final List<L> locks;
+    private final int mask;
+
+    /**
+     * Creates the stripes; the count is rounded up to a power of two.
+     */
+    public LockStripes(int stripes, Supplier<L> newLock) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new ArrayList<>(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            locks.add(newLock.get());
+        }
+    }
+
+    /**
+     * Returns the lock guarding the given key.
+     */
+    public L get(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return locks.get(h & mask);
+    }
+}
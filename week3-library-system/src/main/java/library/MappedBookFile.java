@@ -0,0 +1,127 @@
+package library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Books stored in the binary record format (see {@link MappedRecordFile}).
+ *
+ * Record layout (28 bytes): id, title, author, isbn and barcodes (joined
+ * with ';' as in the CSV file) string references, then the number of copies
+ * and the number on the shelf as ints. The number on the shelf can be
+ * changed in place without rewriting the file.
+ *
+ * Version 1 files kept one availability byte instead of the copies and
+ * barcodes; they are rejected and have to be converted again.
+ */
+public class MappedBookFile extends MappedRecordFile {
+    private static final int MAGIC = 0x4C424B31; // "LBK1"
+    private static final short VERSION = 2;
+    private static final int RECORD_SIZE = 28;
+    private static final int BARCODES = 16;
+    private static final int COPIES = 20;
+    private static final int AVAILABLE = 24;
+
+    private MappedBookFile(String path, boolean writable) throws IOException {
+        super(path, MAGIC, VERSION, RECORD_SIZE, writable);
+    }
+
+    /**
+     * Maps a book file for reading.
+     */
+    public static MappedBookFile open(String path) throws IOException {
+        return new MappedBookFile(path, false);
+    }
+
+    /**
+     * Maps a book file so the copies on the shelf can be updated in place.
+     */
+    public static MappedBookFile openWritable(String path) throws IOException {
+        return new MappedBookFile(path, true);
+    }
+
+    /**
+     * Writes the books to a new binary file, replacing any existing one.
+     */
+    public static void write(List<Book> books, String path) throws IOException {
+        Writer writer = new Writer(MAGIC, VERSION, RECORD_SIZE, books.size());
+        for (Book book : books) {
+            ByteBuffer record = writer.nextRecord();
+            writer.putString(book.getId());
+            writer.putString(book.getTitle());
+            writer.putString(book.getAuthor());
+            writer.putString(book.getIsbn());
+            writer.putString(String.join(";", book.getBarcodes()));
+            record.putInt(book.getCopies());
+            record.putInt(book.getAvailableCopies());
+        }
+        writer.writeTo(path);
+    }
+
+    public String getId(int index) throws IOException {
+        return readString(recordOffset(index));
+    }
+
+    public boolean isAvailable(int index) {
+        return getAvailableCopies(index) > 0;
+    }
+
+    public int getCopies(int index) {
+        return buffer.getInt(recordOffset(index) + COPIES);
+    }
+
+    public int getAvailableCopies(int index) {
+        return buffer.getInt(recordOffset(index) + AVAILABLE);
+    }
+
+    /**
+     * Puts all of a book's copies on the shelf, or none, directly in the
+     * mapped file. Call {@link #flush()} to force the change to disk.
+     */
+    public void setAvailable(int index, boolean available) {
+        setAvailableCopies(index, available ? getCopies(index) : 0);
+    }
+
+    /**
+     * Changes the number of a book's copies on the shelf directly in the
+     * mapped file, keeping it between zero and the number of copies.
+     */
+    public void setAvailableCopies(int index, int available) {
+        buffer.putInt(recordOffset(index) + AVAILABLE, Math.max(0, Math.min(available, getCopies(index))));
+    }
+
+    /**
+     * Decodes the book at the given index.
+     *
+     * @throws IOException if the record is malformed
+     */
+    public Book get(int index) throws IOException {
+        int offset = recordOffset(index);
+        Book book = new Book(readString(offset), readString(offset + 4),
+                readString(offset + 8), readString(offset + 12));
+        for (String barcode : readString(offset + BARCODES).split(";")) {
+            if (!barcode.isEmpty()) {
+                book.addCopy(barcode);
+            }
+        }
+        book.setCopies(buffer.getInt(offset + COPIES), buffer.getInt(offset + AVAILABLE));
+        return book;
+    }
+
+    /**
+     * Decodes all books in file order, reporting and skipping malformed ones.
+     */
+    public List<Book> readAll() {
+        List<Book> books = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            try {
+                books.add(get(i));
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + "; skipping it");
+            }
+        }
+        return books;
+    }
+}
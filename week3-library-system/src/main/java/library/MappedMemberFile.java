@@ -0,0 +1,81 @@
+package library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Members stored in the binary record format (see {@link MappedRecordFile}).
+ *
+ * Record layout (20 bytes): id, name, email, phone and borrowed book IDs
+ * (joined with ';' as in the CSV file) string references.
+ */
+public class MappedMemberFile extends MappedRecordFile {
+    private static final int MAGIC = 0x4C4D4231; // "LMB1"
+    private static final short VERSION = 1;
+    private static final int RECORD_SIZE = 20;
+
+    private MappedMemberFile(String path) throws IOException {
+        super(path, MAGIC, VERSION, RECORD_SIZE, false);
+    }
+
+    /**
+     * Maps a member file for reading.
+     */
+    public static MappedMemberFile open(String path) throws IOException {
+        return new MappedMemberFile(path);
+    }
+
+    /**
+     * Writes the members to a new binary file, replacing any existing one.
+     */
+    public static void write(List<Member> members, String path) throws IOException {
+        Writer writer = new Writer(MAGIC, VERSION, RECORD_SIZE, members.size());
+        for (Member member : members) {
+            writer.nextRecord();
+            writer.putString(member.getId());
+            writer.putString(member.getName());
+            writer.putString(member.getEmail());
+            writer.putString(member.getPhone());
+            writer.putString(String.join(";", member.getBorrowedBookIds()));
+        }
+        writer.writeTo(path);
+    }
+
+    public String getId(int index) throws IOException {
+        return readString(recordOffset(index));
+    }
+
+    /**
+     * Decodes the member at the given index.
+     *
+     * @throws IOException if the record is malformed
+     */
+    public Member get(int index) throws IOException {
+        int offset = recordOffset(index);
+        Member member = new Member(readString(offset), readString(offset + 4),
+                readString(offset + 8), readString(offset + 12));
+        String borrowed = readString(offset + 16);
+        if (!borrowed.isEmpty()) {
+            for (String bookId : borrowed.split(";")) {
+                member.borrowBook(bookId.trim());
+            }
+        }
+        return member;
+    }
+
+    /**
+     * Decodes all members in file order, reporting and skipping malformed ones.
+     */
+    public List<Member> readAll() {
+        List<Member> members = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            try {
+                members.add(get(i));
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + "; skipping it");
+            }
+        }
+        return members;
+    }
+}
@@ -0,0 +1,222 @@
+package library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Base for the binary, memory-mapped record files.
+ *
+ * File layout (all numbers big-endian):
+ * <pre>
+ *   header        32 bytes: magic, version, record size, record count,
+ *                 string table offset. Each kind of file has its own magic
+ *                 and version; the version changes with the record layout
+ *   records       record count x record size bytes; record i starts at
+ *                 32 + i * record size. String fields are stored as int
+ *                 offsets into the string table.
+ *   string table  each string as an int byte length followed by UTF-8 bytes;
+ *                 equal strings (e.g. repeated authors) are stored once
+ * </pre>
+ *
+ * Opening a file only maps it; records are decoded when they are read, so
+ * start-up time does not depend on the number of records. A single mapping is
+ * limited to 2 GB.
+ */
+public abstract class MappedRecordFile implements AutoCloseable {
+    /**
+     * Whether full saves write this format, to books.bin and members.bin,
+     * rather than plain CSV to the text files. Off by default. Set with
+     * -Dlibrary.snapshot.format=mapped.
+     */
+    public static final boolean ENABLED = "mapped".equals(System.getProperty("library.snapshot.format", "csv"));
+
+    protected static final int HEADER_SIZE = 32;
+
+    private final String path;
+    private final RandomAccessFile file;
+    protected final MappedByteBuffer buffer;
+    private final int recordSize;
+    private final int recordCount;
+    private final int stringTableOffset;
+
+    protected MappedRecordFile(String path, int magic, short version, int expectedRecordSize, boolean writable)
+            throws IOException {
+        this.path = path;
+        this.file = new RandomAccessFile(path, writable ? "rw" : "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            this.buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != magic) {
+                throw new IOException("Not a library record file: " + path);
+            }
+            if (buffer.getShort(4) != version) {
+                throw new IOException("Unsupported record file version " + buffer.getShort(4) + ", expected "
+                        + version + " (convert the CSV files again): " + path);
+            }
+            this.recordSize = buffer.getShort(6);
+            this.recordCount = buffer.getInt(8);
+            long tableOffset = buffer.getLong(12);
+            if (recordSize != expectedRecordSize || recordCount < 0
+                    || HEADER_SIZE + (long) recordCount * recordSize > tableOffset
+                    || tableOffset > buffer.limit()) {
+                throw new IOException("Corrupt record file header: " + path);
+            }
+            this.stringTableOffset = (int) tableOffset;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of records in the file.
+     */
+    public int size() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the position of a record in the file.
+     */
+    protected int recordOffset(int index) {
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+        }
+        return HEADER_SIZE + index * recordSize;
+    }
+
+    /**
+     * Reads the string referenced by the int at the given position.
+     *
+     * @throws IOException if the reference or the string's length points
+     *         outside the string table
+     */
+    protected String readString(int position) throws IOException {
+        int reference = buffer.getInt(position);
+        if (reference < 0 || (long) stringTableOffset + reference + 4 > buffer.limit()) {
+            throw malformed(position, "string reference " + reference + " is outside the string table");
+        }
+        int offset = stringTableOffset + reference;
+        int length = buffer.getInt(offset);
+        if (length < 0 || (long) offset + 4 + length > buffer.limit()) {
+            throw malformed(position, "string length " + length + " runs past the end of the file");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private IOException malformed(int position, String reason) {
+        return new IOException("Malformed record " + (position - HEADER_SIZE) / recordSize + " in " + path + ": "
+                + reason);
+    }
+
+    /**
+     * Writes pending in-place changes to disk.
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Collects records and strings and writes them in the file layout above.
+     */
+    protected static class Writer {
+        private final int magic;
+        private final short version;
+        private final int recordSize;
+        private final ByteBuffer records;
+        private final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        private final Map<String, Integer> stringOffsets = new HashMap<>();
+        private int count;
+
+        /**
+         * @throws IOException if the records would not fit in one mapping
+         */
+        protected Writer(int magic, short version, int recordSize, int expectedRecords) throws IOException {
+            long size = (long) recordSize * expectedRecords;
+            if (HEADER_SIZE + size > Integer.MAX_VALUE) {
+                throw new IOException("Too many records for one file: " + expectedRecords);
+            }
+            this.magic = magic;
+            this.version = version;
+            this.recordSize = recordSize;
+            this.records = ByteBuffer.allocate((int) size);
+        }
+
+        /**
+         * Starts a new record and returns the buffer to write its fields into.
+         */
+        protected ByteBuffer nextRecord() {
+            records.position(count * recordSize);
+            count++;
+            return records;
+        }
+
+        /**
+         * Writes a reference to the string, adding it to the string table if new.
+         */
+        protected void putString(String value) {
+            String text = value == null ? "" : value;
+            Integer offset = stringOffsets.get(text);
+            if (offset == null) {
+                offset = strings.size();
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                strings.write(bytes.length >>> 24);
+                strings.write(bytes.length >>> 16);
+                strings.write(bytes.length >>> 8);
+                strings.write(bytes.length);
+                strings.write(bytes, 0, bytes.length);
+                stringOffsets.put(text, offset);
+            }
+            records.putInt(offset);
+        }
+
+        protected void writeTo(String path) throws IOException {
+            long tableOffset = HEADER_SIZE + (long) count * recordSize;
+            if (tableOffset + strings.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(magic);
+            header.putShort(version);
+            header.putShort((short) recordSize);
+            header.putInt(count);
+            header.putLong(tableOffset);
+            header.clear();
+            records.position(0).limit(count * recordSize);
+
+            try (RandomAccessFile out = new RandomAccessFile(path, "rw")) {
+                out.setLength(0);
+                FileChannel channel = out.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (records.hasRemaining()) {
+                    channel.write(records);
+                }
+                ByteBuffer table = ByteBuffer.wrap(strings.toByteArray());
+                while (table.hasRemaining()) {
+                    channel.write(table);
+                }
+                channel.force(true);
+            }
+        }
+    }
+}
@@ -1,24 +1,33 @@
 package library;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Represents a member of the library.
+ *
+ * The borrowed book IDs are kept in a copy-on-write array: it holds at most a
+ * few IDs, and readers can iterate it while a loan is being changed on another
+ * thread. A plain array costs far less per member than a list object, and all
+ * members without loans share one empty array.
  */
 public class Member {
     private String id;
     private String name;
     private String email;
     private String phone;
-    private List<String> borrowedBookIds;
+    private static final String[] NO_BOOKS = new String[0];
+
+    private volatile String[] borrowedBookIds = NO_BOOKS;
 
     public Member(String id, String name, String email, String phone) {
         this.id = id;
         this.name = name;
         this.email = email;
         this.phone = phone;
-        this.borrowedBookIds = new ArrayList<>();
     }
 
     public String getId() {
@@ -53,22 +62,60 @@ public class Member {
         this.phone = phone;
     }
 
+    /**
+     * Returns a read-only snapshot of the borrowed book IDs.
+     */
     public List<String> getBorrowedBookIds() {
-        return borrowedBookIds;
+        return Collections.unmodifiableList(Arrays.asList(borrowedBookIds));
     }
 
-    public void borrowBook(String bookId) {
-        if (!borrowedBookIds.contains(bookId)) {
-            borrowedBookIds.add(bookId);
+    public synchronized void borrowBook(String bookId) {
+        String[] current = borrowedBookIds;
+        if (indexOf(current, bookId) >= 0) {
+            return;
         }
+        String[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = bookId;
+        borrowedBookIds = updated;
     }
 
-    public void returnBook(String bookId) {
-        borrowedBookIds.remove(bookId);
+    public synchronized void returnBook(String bookId) {
+        String[] current = borrowedBookIds;
+        int index = indexOf(current, bookId);
+        if (index < 0) {
+            return;
+        }
+        if (current.length == 1) {
+            borrowedBookIds = NO_BOOKS;
+            return;
+        }
+        String[] updated = new String[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        borrowedBookIds = updated;
     }
 
     public int getBorrowedBooksCount() {
-        return borrowedBookIds.size();
+        return borrowedBookIds.length;
+    }
+
+    private static int indexOf(String[] ids, String bookId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].equals(bookId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy of this member, e.g. to save it while the original changes.
+     */
+    public Member copy() {
+        Member copy = new Member(id, name, email, phone);
+        // The array is never modified in place, so the copy can share it
+        copy.borrowedBookIds = borrowedBookIds;
+        return copy;
     }
 
     @Override
@@ -78,7 +125,23 @@ public class Member {
                 ", name='" + name + '\'' +
                 ", email='" + email + '\'' +
                 ", phone='" + phone + '\'' +
-                ", borrowedBooks=" + borrowedBookIds.size() +
+                ", borrowedBooks=" + borrowedBookIds.length +
+                '}';
+    }
+
+    /**
+     * Converts member to JSON for the HTTP API.
+     */
+    public String toJSON() {
+        List<String> quotedIds = new ArrayList<>();
+        for (String bookId : borrowedBookIds) {
+            quotedIds.add(Json.quote(bookId));
+        }
+        return "{\"id\":" + Json.quote(id) +
+                ",\"name\":" + Json.quote(name) +
+                ",\"email\":" + Json.quote(email) +
+                ",\"phone\":" + Json.quote(phone) +
+                ",\"borrowedBookIds\":" + Json.array(quotedIds) +
                 '}';
     }
 
@@ -86,30 +149,38 @@ public class Member {
      * Converts member to CSV format for file storage.
      */
     public String toCSV() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(id).append(",");
-        sb.append(name).append(",");
-        sb.append(email).append(",");
-        sb.append(phone).append(",");
-        sb.append(String.join(";", borrowedBookIds));
-        return sb.toString();
+        return CsvWriter.join(id, name, email, phone, String.join(";", borrowedBookIds));
     }
 
     /**
      * Creates a Member from CSV string.
      */
     public static Member fromCSV(String csv) {
-        String[] parts = csv.split(",");
-        if (parts.length >= 4) {
-            Member member = new Member(parts[0], parts[1], parts[2], parts[3]);
-            if (parts.length > 4 && !parts[4].isEmpty()) {
-                String[] bookIds = parts[4].split(";");
-                for (String bookId : bookIds) {
-                    member.borrowBook(bookId.trim());
-                }
+        try {
+            CsvReader reader = CsvReader.of(csv);
+            return reader.next() ? fromCSV(reader, 0) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a Member from the current row of a CSV reader, starting at the
+     * given field. Returns null if the row has too few fields.
+     */
+    public static Member fromCSV(CsvReader reader, int first) {
+        int fields = reader.getFieldCount() - first;
+        if (fields < 4) {
+            return null;
+        }
+        Member member = new Member(reader.getField(first), reader.getField(first + 1),
+                reader.getField(first + 2), reader.getField(first + 3));
+        if (fields > 4 && !reader.isEmpty(first + 4)) {
+            String[] bookIds = reader.getField(first + 4).split(";");
+            for (String bookId : bookIds) {
+                member.borrowBook(bookId.trim());
             }
-            return member;
         }
-        return null;
+        return member;
     }
 }
@@ -0,0 +1,336 @@
+package library;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the library's operations, and byte and
+ * record counts for its files.
+ *
+ * Timing an operation costs two System.nanoTime() calls and a few atomic
+ * increments, with no allocation and no locks:
+ *
+ * <pre>
+ *   long start = System.nanoTime();
+ *   ...
+ *   Metrics.Operation.BORROW.record(start, result.isSuccess());
+ * </pre>
+ *
+ * Adding books and members, borrowing and returning have async variants, so
+ * they are timed until the change is made and its journal entry queued,
+ * including any wait for locks; the journal's write and fsync are timed
+ * separately as JOURNAL_SYNC. The other operations are timed until they
+ * return, which for updates and holds includes the journal wait.
+ *
+ * The numbers are kept for the whole JVM since it started. They are published
+ * as JMX MXBeans under the "library" domain, returned by GET /metrics, and
+ * written as a text table to metrics.txt in the data directory every
+ * {@link #DUMP_SECONDS} seconds.
+ */
+public final class Metrics {
+    /**
+     * How often the text report is written, in seconds; 0 turns it off.
+     * Set with -Dlibrary.metrics.dumpSeconds.
+     */
+    public static final long DUMP_SECONDS = Long.getLong("library.metrics.dumpSeconds", 60);
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private static boolean registered;
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    /**
+     * Management view of one operation. Latencies are in microseconds.
+     */
+    public interface OperationMXBean {
+        long getCount();
+
+        long getFailures();
+
+        double getMeanMicros();
+
+        long getP50Micros();
+
+        long getP90Micros();
+
+        long getP99Micros();
+
+        long getP999Micros();
+
+        long getMaxMicros();
+
+        void reset();
+    }
+
+    /**
+     * Management view of the reads and writes of one kind of file.
+     */
+    public interface FileIOMXBean {
+        long getBytesRead();
+
+        long getRecordsRead();
+
+        long getBytesWritten();
+
+        long getRecordsWritten();
+    }
+
+    /**
+     * A timed operation. Failures are calls that returned an unsuccessful
+     * result, e.g. a loan refused because no copy was available.
+     */
+    public enum Operation implements OperationMXBean {
+        ADD_BOOK, ADD_MEMBER, UPDATE_BOOK, REMOVE_BOOK, UPDATE_MEMBER, REMOVE_MEMBER, ADD_COPY,
+        BORROW, RETURN, PLACE_HOLD, CANCEL_HOLD, EXPIRE_HOLDS, TRANSFER, SEARCH, EXPORT, LOAD, SAVE,
+        JOURNAL_SYNC;
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+
+        /**
+         * Records a successful call that started at the given System.nanoTime().
+         */
+        public void record(long startNanos) {
+            latency.record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Records a call that started at the given System.nanoTime().
+         */
+        public void record(long startNanos, boolean success) {
+            latency.record(System.nanoTime() - startNanos);
+            if (!success) {
+                failures.increment();
+            }
+        }
+
+        /**
+         * Returns the name used in reports, e.g. "borrow" or "addBook".
+         */
+        public String label() {
+            StringBuilder label = new StringBuilder();
+            for (String word : name().toLowerCase(Locale.ROOT).split("_")) {
+                label.append(label.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+            }
+            return label.toString();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return latency.getMean() / 1000;
+        }
+
+        @Override
+        public long getP50Micros() {
+            return micros(latency.getValueAtPercentile(50));
+        }
+
+        @Override
+        public long getP90Micros() {
+            return micros(latency.getValueAtPercentile(90));
+        }
+
+        @Override
+        public long getP99Micros() {
+            return micros(latency.getValueAtPercentile(99));
+        }
+
+        @Override
+        public long getP999Micros() {
+            return micros(latency.getValueAtPercentile(99.9));
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return micros(latency.getMax());
+        }
+
+        @Override
+        public void reset() {
+            latency.reset();
+            failures.reset();
+        }
+    }
+
+    /**
+     * A kind of file the library reads and writes. Delta files count towards
+     * their data file.
+     */
+    public enum FileKind implements FileIOMXBean {
+        BOOKS, MEMBERS, HOLDS, JOURNAL, HISTORY;
+
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder recordsRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder recordsWritten = new LongAdder();
+
+        /**
+         * Records that a file of this kind was read.
+         */
+        public void read(long bytes, long records) {
+            bytesRead.add(bytes);
+            recordsRead.add(records);
+        }
+
+        /**
+         * Records that a file of this kind was written or appended to.
+         */
+        public void written(long bytes, long records) {
+            bytesWritten.add(bytes);
+            recordsWritten.add(records);
+        }
+
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        @Override
+        public long getRecordsRead() {
+            return recordsRead.sum();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        @Override
+        public long getRecordsWritten() {
+            return recordsWritten.sum();
+        }
+    }
+
+    /**
+     * Registers the MXBeans with the platform MBean server, once per JVM.
+     * Management is optional, so failures are reported and otherwise ignored.
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Operation operation : Operation.values()) {
+                server.registerMBean(operation,
+                        new ObjectName("library:type=Operation,name=" + operation.label()));
+            }
+            for (FileKind kind : FileKind.values()) {
+                server.registerMBean(kind, new ObjectName("library:type=FileIO,name=" + kind.label()));
+            }
+        } catch (JMException e) {
+            System.err.println("Error registering metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts writing the text report to the given file every
+     * {@link #DUMP_SECONDS} seconds, on a daemon thread. Only the first call
+     * in a JVM starts it.
+     */
+    public static synchronized void startDump(String path) {
+        if (dumper != null || DUMP_SECONDS <= 0) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> FileHandler.saveReport(report(), path),
+                DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns all numbers as a text table. Latencies are in microseconds.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("# Library metrics at ").append(Instant.now()).append(", latencies in microseconds\n");
+        report.append(String.format(Locale.ROOT, "%-14s %10s %9s %9s %8s %8s %8s %8s %9s%n",
+                "operation", "count", "failures", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = operation.getLatency();
+            report.append(String.format(Locale.ROOT, "%-14s %10d %9d %9.1f", operation.label(),
+                    latency.getCount(), operation.getFailures(), latency.getMean() / 1000));
+            for (double percentile : PERCENTILES) {
+                report.append(String.format(Locale.ROOT, " %8d", micros(latency.getValueAtPercentile(percentile))));
+            }
+            report.append(String.format(Locale.ROOT, " %9d%n", micros(latency.getMax())));
+        }
+        report.append('\n');
+        report.append(String.format(Locale.ROOT, "%-14s %14s %12s %14s %14s%n",
+                "file", "bytesRead", "recordsRead", "bytesWritten", "recordsWritten"));
+        for (FileKind kind : FileKind.values()) {
+            report.append(String.format(Locale.ROOT, "%-14s %14d %12d %14d %14d%n", kind.label(),
+                    kind.getBytesRead(), kind.getRecordsRead(), kind.getBytesWritten(), kind.getRecordsWritten()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns all numbers as a JSON object. Latencies are in microseconds.
+     */
+    public static String toJSON() {
+        List<String> operations = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"name\":").append(Json.quote(operation.label()))
+                .append(",\"count\":").append(operation.getCount())
+                .append(",\"failures\":").append(operation.getFailures())
+                .append(",\"meanMicros\":").append(String.format(Locale.ROOT, "%.1f", operation.getMeanMicros()))
+                .append(",\"p50Micros\":").append(operation.getP50Micros())
+                .append(",\"p90Micros\":").append(operation.getP90Micros())
+                .append(",\"p99Micros\":").append(operation.getP99Micros())
+                .append(",\"p999Micros\":").append(operation.getP999Micros())
+                .append(",\"maxMicros\":").append(operation.getMaxMicros())
+                .append('}');
+            operations.add(json.toString());
+        }
+        List<String> files = new ArrayList<>();
+        for (FileKind kind : FileKind.values()) {
+            files.add("{\"name\":" + Json.quote(kind.label())
+                    + ",\"bytesRead\":" + kind.getBytesRead()
+                    + ",\"recordsRead\":" + kind.getRecordsRead()
+                    + ",\"bytesWritten\":" + kind.getBytesWritten()
+                    + ",\"recordsWritten\":" + kind.getRecordsWritten() + "}");
+        }
+        return "{\"operations\":" + Json.array(operations) + ",\"files\":" + Json.array(files) + "}";
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
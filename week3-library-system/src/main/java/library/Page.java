@@ -0,0 +1,98 @@
+package library;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * One page of a sorted listing, with the cursor for the page after it.
+ *
+ * A cursor holds the sort key and the ID of the last record on a page, so the
+ * next page starts right after that record even if records were added or
+ * removed in between; an offset would skip or repeat records instead. Cursors
+ * are opaque URL-safe strings.
+ *
+ * A page is selected in one pass over the records with a heap of at most
+ * limit records, so listing a large catalog page by page takes memory for
+ * one page only, whatever the sort order.
+ */
+public class Page<T> {
+    private final List<T> items;
+    private final String nextCursor;
+
+    Page(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Returns the records on this page, in order.
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the cursor of the next page, or null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Returns the first limit records that come after the given one in the
+     * order, or from the start if after is null. The order must not have
+     * ties, e.g. by breaking them on the ID.
+     */
+    static <T> List<T> select(Iterable<T> records, Comparator<T> order, T after, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        // The top of the heap is the last record that still makes the page
+        PriorityQueue<T> page = new PriorityQueue<>(limit, order.reversed());
+        for (T record : records) {
+            if (after != null && order.compare(record, after) <= 0) {
+                continue;
+            }
+            if (page.size() < limit) {
+                page.add(record);
+            } else if (order.compare(record, page.peek()) < 0) {
+                page.poll();
+                page.add(record);
+            }
+        }
+        List<T> items = new ArrayList<>(page);
+        items.sort(order);
+        return items;
+    }
+
+    /**
+     * Encodes the sort key and ID of a record as a cursor.
+     */
+    static String encodeCursor(String key, String id) {
+        String value = (key == null ? "" : key) + '\0' + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor into its sort key and ID.
+     *
+     * @throws IllegalArgumentException if the cursor is not one of ours
+     */
+    static String[] decodeCursor(String cursor) {
+        String value;
+        try {
+            value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        int separator = value.lastIndexOf('\0');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return new String[] {value.substring(0, separator), value.substring(separator + 1)};
+    }
+}
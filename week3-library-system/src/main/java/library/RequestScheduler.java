@@ -0,0 +1,383 @@
+package library;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control in front of the library's operations, for servers with
+ * many clients.
+ *
+ * At most {@link #SLOTS} requests run at once; the rest wait in a bounded
+ * queue per {@link Lane}. When a slot frees up it goes to the oldest request
+ * of the most urgent lane, so loans and returns overtake listings and
+ * exports, and bulk requests may only ever hold a quarter of the slots, so a
+ * few long exports cannot starve the desk. Each member also has a token
+ * bucket that refills at {@link #MEMBER_RATE} requests per second up to
+ * {@link #MEMBER_BURST}, so one member cannot crowd out the others.
+ *
+ * A request that cannot be admitted is refused at once rather than left to
+ * pile up: {@link AdmissionResult#RATE_LIMITED} if its member is out of
+ * tokens, {@link AdmissionResult#QUEUE_FULL} if its lane's queue is full and
+ * {@link AdmissionResult#TIMED_OUT} if it waited {@link #MAX_WAIT_MILLIS}
+ * without a slot. Each refusal comes with a time to retry after.
+ *
+ * Requests run on the caller's thread; waiting parks it, which costs nothing
+ * on a virtual thread:
+ *
+ * <pre>
+ *   try (RequestScheduler.Permit permit = scheduler.admit(Lane.CIRCULATION, memberId)) {
+ *       if (permit.isAdmitted()) {
+ *           ...
+ *       }
+ *   }
+ * </pre>
+ */
+public class RequestScheduler {
+    /**
+     * How many requests may run at once. Set with -Dlibrary.scheduler.slots.
+     */
+    public static final int SLOTS = Integer.getInteger("library.scheduler.slots", 64);
+
+    /**
+     * How many requests may wait in each lane. Set with
+     * -Dlibrary.scheduler.queueSize.
+     */
+    public static final int QUEUE_SIZE = Integer.getInteger("library.scheduler.queueSize", 1000);
+
+    /**
+     * How long a request may wait for a slot. Set with
+     * -Dlibrary.scheduler.maxWaitMillis.
+     */
+    public static final long MAX_WAIT_MILLIS = Long.getLong("library.scheduler.maxWaitMillis", 2000);
+
+    /**
+     * Requests per second each member may make in the long run, and how many
+     * at once after being idle. Set with -Dlibrary.scheduler.memberRate and
+     * -Dlibrary.scheduler.memberBurst; a rate of 0 turns the limit off.
+     */
+    public static final double MEMBER_RATE =
+            Double.parseDouble(System.getProperty("library.scheduler.memberRate", "5"));
+    public static final int MEMBER_BURST = Integer.getInteger("library.scheduler.memberBurst", 20);
+
+    private static final long RETRY_AFTER_MILLIS = 1000;
+
+    /**
+     * How many members' token buckets are kept. Member IDs come from the
+     * client, so beyond this the least recently used bucket is dropped; the
+     * member gets a full bucket again on their next request.
+     */
+    private static final int MAX_BUCKETS = 100_000;
+
+    /**
+     * Kinds of request, most urgent first.
+     */
+    public enum Lane {
+        /** Loans, returns, holds and transfers: the desk. */
+        CIRCULATION,
+        /** Reading, adding and changing single records. */
+        RECORDS,
+        /** Listings, searches, statistics and exports. */
+        BULK
+    }
+
+    /**
+     * The answer to {@link #admit(Lane, String)}. Closing an admitted permit
+     * frees its slot for the next request; closing a refused one does
+     * nothing.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Lane lane;
+        private final AdmissionResult result;
+        private final long retryAfterMillis;
+        private boolean closed;
+
+        private Permit(Lane lane, AdmissionResult result, long retryAfterMillis) {
+            this.lane = lane;
+            this.result = result;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public boolean isAdmitted() {
+            return result.isSuccess();
+        }
+
+        public AdmissionResult getResult() {
+            return result;
+        }
+
+        /**
+         * Returns how long a refused caller should wait before trying again.
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        @Override
+        public void close() {
+            if (isAdmitted() && !closed) {
+                closed = true;
+                release(lane);
+            }
+        }
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static final class Waiter {
+        private final Condition ready;
+        private boolean granted;
+
+        Waiter(Condition ready) {
+            this.ready = ready;
+        }
+    }
+
+    /**
+     * A member's token bucket. Tokens are refilled lazily, from the time
+     * since the last request.
+     */
+    private static final class TokenBucket {
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(int burst, long now) {
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+
+        /**
+         * Takes a token; returns 0 if there was one, or else the nanoseconds
+         * until there will be.
+         */
+        synchronized long take(long now, double rate, int burst) {
+            refill(now, rate, burst);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / rate * 1e9);
+        }
+
+        private void refill(long now, double rate, int burst) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+        }
+    }
+
+    private final int slots;
+    private final int bulkSlots;
+    private final int queueSize;
+    private final long maxWaitNanos;
+    private final double memberRate;
+    private final int memberBurst;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<ArrayDeque<Waiter>> queues = new ArrayList<>();
+    private final int[] running = new int[Lane.values().length];
+    private int runningTotal;
+    private final Map<String, TokenBucket> buckets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_BUCKETS;
+        }
+    };
+    private final LatencyHistogram[] waits = new LatencyHistogram[Lane.values().length];
+    private final LongAdder[][] outcomes = new LongAdder[Lane.values().length][AdmissionResult.values().length];
+
+    /**
+     * Creates a scheduler with the limits set by system properties.
+     */
+    public RequestScheduler() {
+        this(SLOTS, QUEUE_SIZE, MAX_WAIT_MILLIS, MEMBER_RATE, MEMBER_BURST);
+    }
+
+    public RequestScheduler(int slots, int queueSize, long maxWaitMillis, double memberRate, int memberBurst) {
+        if (slots < 1 || queueSize < 0 || maxWaitMillis < 0 || memberRate < 0 || memberBurst < 1) {
+            throw new IllegalArgumentException("Invalid scheduler limits");
+        }
+        this.slots = slots;
+        this.bulkSlots = Math.max(1, slots / 4);
+        this.queueSize = queueSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.memberRate = memberRate;
+        this.memberBurst = memberBurst;
+        for (Lane lane : Lane.values()) {
+            queues.add(new ArrayDeque<>());
+            waits[lane.ordinal()] = new LatencyHistogram();
+            for (AdmissionResult result : AdmissionResult.values()) {
+                outcomes[lane.ordinal()][result.ordinal()] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Waits for a slot to run a request in the given lane, for the given
+     * member (null if the request is not for a member). Returns a refused
+     * permit instead of waiting if the member is over its rate, the lane's
+     * queue is full, or no slot frees up in time.
+     */
+    public Permit admit(Lane lane, String memberId) {
+        long start = System.nanoTime();
+        if (memberId != null && memberRate > 0) {
+            long wait = bucketOf(memberId, start).take(start, memberRate, memberBurst);
+            if (wait > 0) {
+                return refuse(lane, AdmissionResult.RATE_LIMITED, TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            }
+        }
+
+        Waiter waiter;
+        lock.lock();
+        try {
+            if (canStart(lane) && !queuedAhead(lane)) {
+                start(lane);
+                return admitted(lane, start);
+            }
+            ArrayDeque<Waiter> queue = queues.get(lane.ordinal());
+            if (queue.size() >= queueSize) {
+                return refuse(lane, AdmissionResult.QUEUE_FULL, RETRY_AFTER_MILLIS);
+            }
+            waiter = new Waiter(lock.newCondition());
+            queue.addLast(waiter);
+            long remaining = maxWaitNanos;
+            try {
+                while (!waiter.granted && remaining > 0) {
+                    remaining = waiter.ready.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!waiter.granted) {
+                queue.remove(waiter);
+                return refuse(lane, AdmissionResult.TIMED_OUT, RETRY_AFTER_MILLIS);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // Granted just as it was interrupted: pass the slot on
+                finish(lane);
+                return refuse(lane, AdmissionResult.TIMED_OUT, RETRY_AFTER_MILLIS);
+            }
+            return admitted(lane, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit admitted(Lane lane, long start) {
+        waits[lane.ordinal()].record(System.nanoTime() - start);
+        outcomes[lane.ordinal()][AdmissionResult.ADMITTED.ordinal()].increment();
+        return new Permit(lane, AdmissionResult.ADMITTED, 0);
+    }
+
+    private Permit refuse(Lane lane, AdmissionResult result, long retryAfterMillis) {
+        outcomes[lane.ordinal()][result.ordinal()].increment();
+        return new Permit(lane, result, retryAfterMillis);
+    }
+
+    private void release(Lane lane) {
+        lock.lock();
+        try {
+            finish(lane);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a slot and hands free slots to the waiting requests, most
+     * urgent lane first. Called with the lock held.
+     */
+    private void finish(Lane lane) {
+        running[lane.ordinal()]--;
+        runningTotal--;
+        for (Lane next : Lane.values()) {
+            ArrayDeque<Waiter> queue = queues.get(next.ordinal());
+            while (!queue.isEmpty() && canStart(next)) {
+                Waiter waiter = queue.pollFirst();
+                waiter.granted = true;
+                start(next);
+                waiter.ready.signal();
+            }
+        }
+    }
+
+    private boolean canStart(Lane lane) {
+        return runningTotal < slots && (lane != Lane.BULK || running[lane.ordinal()] < bulkSlots);
+    }
+
+    /**
+     * Returns true if a request of the lane or a more urgent one is waiting,
+     * so a new request does not jump the queue.
+     */
+    private boolean queuedAhead(Lane lane) {
+        for (int i = 0; i <= lane.ordinal(); i++) {
+            if (!queues.get(i).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void start(Lane lane) {
+        running[lane.ordinal()]++;
+        runningTotal++;
+    }
+
+    private TokenBucket bucketOf(String memberId, long now) {
+        synchronized (buckets) {
+            return buckets.computeIfAbsent(memberId, id -> new TokenBucket(memberBurst, now));
+        }
+    }
+
+    /**
+     * Returns the slots in use and the queue lengths, and per lane the
+     * counts of each outcome and the time spent waiting, in microseconds.
+     */
+    public String toJSON() {
+        List<String> lanes = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Lane lane : Lane.values()) {
+                StringBuilder json = new StringBuilder();
+                json.append("{\"name\":").append(Json.quote(lane.name().toLowerCase(Locale.ROOT)))
+                    .append(",\"running\":").append(running[lane.ordinal()])
+                    .append(",\"queued\":").append(queues.get(lane.ordinal()).size());
+                for (AdmissionResult result : AdmissionResult.values()) {
+                    json.append(",\"").append(label(result)).append("\":")
+                        .append(outcomes[lane.ordinal()][result.ordinal()].sum());
+                }
+                LatencyHistogram wait = waits[lane.ordinal()];
+                json.append(",\"waitP50Micros\":").append(micros(wait.getValueAtPercentile(50)))
+                    .append(",\"waitP99Micros\":").append(micros(wait.getValueAtPercentile(99)))
+                    .append(",\"waitMaxMicros\":").append(micros(wait.getMax()))
+                    .append('}');
+                lanes.add(json.toString());
+            }
+            return "{\"slots\":" + slots + ",\"bulkSlots\":" + bulkSlots + ",\"running\":" + runningTotal
+                    + ",\"queueSize\":" + queueSize + ",\"lanes\":" + Json.array(lanes) + "}";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the name of an outcome in JSON, e.g. "rateLimited".
+     */
+    private static String label(AdmissionResult result) {
+        StringBuilder label = new StringBuilder();
+        for (String word : result.name().toLowerCase(Locale.ROOT).split("_")) {
+            label.append(label.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        }
+        return label.toString();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,414 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over book titles and authors.
+ *
+ * Titles and authors are split into lowercase word tokens. Each token maps to
+ * the books containing it and how often it occurs there. The tokens are kept
+ * sorted, so a query term matches every token it is a prefix of with a single
+ * range lookup instead of scanning all books.
+ *
+ * Searches are typo tolerant: a term also matches tokens within a few edits
+ * of it (insertions, deletions, substitutions and swaps of adjacent letters),
+ * so "gatsbby" finds "gatsby" and "john" finds "jhon". The distinct tokens
+ * are indexed by their trigrams. An edit changes at most four trigrams (a
+ * swap of two letters), so a token within k edits of a term shares all but
+ * at most 4k of the term's trigrams, and only tokens listed under enough
+ * of them are candidates, and those are found from the shortest trigram
+ * lists alone. The edit distance is then computed for the few candidates
+ * left, stopping as soon as it exceeds k.
+ *
+ * Only the distinct tokens are indexed by trigram, not each book, but with
+ * many distinct words the trigram lists still take about as much memory as
+ * the books themselves. An index without typo tolerance does not keep them.
+ *
+ * Searches run concurrently under a read lock; updates take the write lock.
+ */
+public class SearchIndex {
+    /**
+     * The most edits a search term may be away from a word and still match
+     * it. Set with -Dlibrary.search.maxEdits; 0 turns typo tolerance off,
+     * and the trigram lists are then not built.
+     */
+    public static final int MAX_EDITS = Integer.getInteger("library.search.maxEdits", 2);
+
+    private static final int GRAM = 3;
+    private static final int GRAMS_PER_EDIT = GRAM + 1;
+    private static final String PADDING = "  ";
+
+    private final boolean typoTolerant;
+    private final TreeMap<String, Map<Book, Integer>> postings = new TreeMap<>();
+    private final Map<String, Set<String>> tokensByGram = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Creates an index that is typo tolerant unless {@link #MAX_EDITS} is 0.
+     */
+    public SearchIndex() {
+        this(MAX_EDITS > 0);
+    }
+
+    /**
+     * Creates an index. Without typo tolerance no trigram lists are kept,
+     * and every search matches only words that start with its terms.
+     */
+    public SearchIndex(boolean typoTolerant) {
+        this.typoTolerant = typoTolerant;
+    }
+
+    /**
+     * Adds a book's title and author to the index.
+     */
+    public void add(Book book) {
+        List<String> tokens = tokens(book);
+        lock.writeLock().lock();
+        try {
+            for (String token : tokens) {
+                postings.computeIfAbsent(token, t -> {
+                    indexGrams(t);
+                    return new HashMap<>();
+                }).merge(book, 1, Integer::sum);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a book from the index. Must be called with the same title and
+     * author the book had when it was added.
+     */
+    public void remove(Book book) {
+        List<String> tokens = tokens(book);
+        lock.writeLock().lock();
+        try {
+            for (String token : tokens) {
+                Map<Book, Integer> books = postings.get(token);
+                if (books != null) {
+                    books.remove(book);
+                    if (books.isEmpty()) {
+                        postings.remove(token);
+                        unindexGrams(token);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all books from the index.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            tokensByGram.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds books matching every term of the query, allowing up to
+     * {@link #MAX_EDITS} typos per term.
+     */
+    public List<Book> search(String query) {
+        return search(query, MAX_EDITS);
+    }
+
+    /**
+     * Finds books matching every term of the query. Each term matches words
+     * that start with it, and words at most maxEdits edits away from it;
+     * short terms allow fewer edits (none up to 2 letters, one up to 5).
+     * Results with fewer edits come first, then by score, highest first:
+     * exact word matches score higher than prefix and fuzzy matches.
+     */
+    public List<Book> search(String query, int maxEdits) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Score each term separately, then intersect starting from the rarest term
+        List<Map<Book, Match>> termMatches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String term : terms) {
+                Map<Book, Match> matches = matchTerm(term, editsFor(term, maxEdits));
+                if (matches.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                termMatches.add(matches);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        termMatches.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+        Map<Book, Match> result = termMatches.get(0);
+        for (int i = 1; i < termMatches.size() && !result.isEmpty(); i++) {
+            Map<Book, Match> matches = termMatches.get(i);
+            result.entrySet().removeIf(entry -> !matches.containsKey(entry.getKey()));
+            for (Map.Entry<Book, Match> entry : result.entrySet()) {
+                entry.getValue().add(matches.get(entry.getKey()));
+            }
+        }
+
+        List<Map.Entry<Book, Match>> ranked = new ArrayList<>(result.entrySet());
+        ranked.sort((a, b) -> a.getValue().compareTo(b.getValue()));
+        List<Book> books = new ArrayList<>(ranked.size());
+        for (Map.Entry<Book, Match> entry : ranked) {
+            books.add(entry.getKey());
+        }
+        return books;
+    }
+
+    /**
+     * Returns the number of distinct tokens in the index.
+     */
+    public int getTokenCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collects the books containing a word that starts with the term or is
+     * within maxEdits of it, with the fewest edits of any such word and a
+     * score by term frequency. An exact word match counts double.
+     */
+    private Map<Book, Match> matchTerm(String term, int maxEdits) {
+        Map<Book, Match> matches = new HashMap<>();
+        SortedMap<String, Map<Book, Integer>> prefixed = postings.subMap(term, term + Character.MAX_VALUE);
+        for (Map.Entry<String, Map<Book, Integer>> match : prefixed.entrySet()) {
+            int weight = match.getKey().length() == term.length() ? 2 : 1;
+            addMatches(matches, match.getValue(), 0, weight);
+        }
+        if (maxEdits > 0 && typoTolerant) {
+            for (String token : candidates(term, maxEdits)) {
+                if (token.startsWith(term)) {
+                    continue;
+                }
+                int edits = editDistance(term, token, maxEdits);
+                if (edits <= maxEdits) {
+                    addMatches(matches, postings.get(token), edits, 1);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static void addMatches(Map<Book, Match> matches, Map<Book, Integer> books, int edits, int weight) {
+        for (Map.Entry<Book, Integer> posting : books.entrySet()) {
+            Match match = matches.computeIfAbsent(posting.getKey(), b -> new Match(edits));
+            match.edits = Math.min(match.edits, edits);
+            match.score += posting.getValue() * weight;
+        }
+    }
+
+    /**
+     * Returns the tokens that share enough trigrams with the term to be
+     * within maxEdits of it, and are close enough in length. A token that
+     * shares at least needed of the term's trigrams must be in one of the
+     * trigram lists other than the (needed - 1) longest, so the candidates
+     * are taken from the shortest lists and the rest are only looked up.
+     */
+    private List<String> candidates(String term, int maxEdits) {
+        List<Set<String>> lists = new ArrayList<>();
+        for (String gram : grams(term)) {
+            Set<String> tokens = tokensByGram.get(gram);
+            lists.add(tokens == null ? Collections.emptySet() : tokens);
+        }
+        int needed = lists.size() - GRAMS_PER_EDIT * maxEdits;
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+        Map<String, Integer> shared = new HashMap<>();
+        int scanned = lists.size() - needed + 1;
+        for (int i = 0; i < scanned; i++) {
+            for (String token : lists.get(i)) {
+                if (Math.abs(token.length() - term.length()) <= maxEdits) {
+                    shared.merge(token, 1, Integer::sum);
+                }
+            }
+        }
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : shared.entrySet()) {
+            int count = entry.getValue();
+            for (int i = scanned; i < lists.size() && count < needed; i++) {
+                if (lists.get(i).contains(entry.getKey())) {
+                    count++;
+                }
+            }
+            if (count >= needed) {
+                candidates.add(entry.getKey());
+            }
+        }
+        return candidates;
+    }
+
+    private void indexGrams(String token) {
+        if (!typoTolerant) {
+            return;
+        }
+        for (String gram : grams(token)) {
+            tokensByGram.computeIfAbsent(gram, g -> new HashSet<>()).add(token);
+        }
+    }
+
+    private void unindexGrams(String token) {
+        if (!typoTolerant) {
+            return;
+        }
+        for (String gram : grams(token)) {
+            Set<String> tokens = tokensByGram.get(gram);
+            if (tokens != null) {
+                tokens.remove(token);
+                if (tokens.isEmpty()) {
+                    tokensByGram.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the distinct trigrams of a word padded with two spaces on each
+     * side, so a word of n letters has up to n + 2 and even one letter has
+     * some.
+     */
+    static Set<String> grams(String word) {
+        String padded = PADDING + word + PADDING;
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+
+    /**
+     * Returns the edits allowed for a term: fewer for short terms, so a
+     * two-letter term does not match every other two-letter word, and few
+     * enough that the term keeps at least one trigram to find candidates by.
+     */
+    private static int editsFor(String term, int maxEdits) {
+        int byLength = term.length() <= 2 ? 0 : term.length() <= 5 ? 1 : maxEdits;
+        int byGrams = (grams(term).size() - 1) / GRAMS_PER_EDIT;
+        return Math.max(0, Math.min(maxEdits, Math.min(byLength, byGrams)));
+    }
+
+    /**
+     * Returns the number of insertions, deletions, substitutions and swaps
+     * of adjacent characters that turn a into b, or max + 1 if it is more
+     * than max. Only the cells within max of the diagonal are computed, and
+     * the computation stops once a whole row is over max.
+     */
+    static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int over = max + 1;
+        int[] before = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = Math.min(j, over);
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(b.length(), i + max);
+            current[0] = Math.min(i, over);
+            if (from > 1) {
+                current[from - 1] = over;
+            }
+            int rowMin = current[0];
+            for (int j = from; j <= to; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(previous[j - 1] + cost, Math.min(previous[j], current[j - 1]) + 1);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    value = Math.min(value, before[j - 2] + 1);
+                }
+                current[j] = Math.min(value, over);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (to < b.length()) {
+                current[to + 1] = over;
+            }
+            if (rowMin > max) {
+                return over;
+            }
+            int[] recycled = before;
+            before = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * How well a book matches the terms so far: the fewest edits per term,
+     * added up, and the score.
+     */
+    private static class Match implements Comparable<Match> {
+        private int edits;
+        private int score;
+
+        Match(int edits) {
+            this.edits = edits;
+        }
+
+        void add(Match other) {
+            edits += other.edits;
+            score += other.score;
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            int byEdits = Integer.compare(edits, other.edits);
+            return byEdits != 0 ? byEdits : Integer.compare(other.score, score);
+        }
+    }
+
+    private static List<String> tokens(Book book) {
+        List<String> tokens = tokenize(book.getTitle());
+        tokens.addAll(tokenize(book.getAuthor()));
+        return tokens;
+    }
+
+    /**
+     * Splits text into lowercase tokens of letters and digits.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,270 @@
+package library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Loads a large CSV data file on several threads.
+ *
+ * The file is split into byte ranges that start right after a newline, and
+ * each range (shard) is parsed by its own {@link CsvReader} on the common
+ * fork-join pool. The shards are then joined in file order, so the records
+ * come out in the same order as with a single reader, and malformed rows are
+ * reported with their line number in the whole file.
+ *
+ * A newline inside a quoted field can put a shard boundary in the middle of
+ * a record. The shard before it then ends in an unterminated quoted field;
+ * when a shard's last row fails to parse, it is parsed again together with
+ * the next shard, on the calling thread. The result is always the same as
+ * reading the file from start to end.
+ *
+ * Duplicate IDs are left to {@link Catalog#setBooks(List)} and
+ * {@link Catalog#setMembers(List)}, which keep the first record and report
+ * the rest as the records are merged into the catalog in order.
+ */
+public class ShardedLoader {
+    private static final long MIN_SHARD_BYTES = 4L << 20;
+    private static final long MAX_SHARD_BYTES = 1L << 30;
+    private static final int SHARDS_PER_THREAD = 4;
+    private static final int SCAN_BUFFER_SIZE = 8192;
+
+    /**
+     * Returns true if the file is big enough, and there are enough cores, for
+     * a parallel load to pay off.
+     */
+    public static boolean isWorthwhile(File file) {
+        return ForkJoinPool.getCommonPoolParallelism() > 1 && file.length() >= 2 * MIN_SHARD_BYTES;
+    }
+
+    /**
+     * Loads all records of a file, with as many shards as suit its size and
+     * the number of cores. The parser returns null for a row with too few
+     * fields, which is reported with the given detail.
+     */
+    public static <T> List<T> load(String path, Function<CsvReader, T> parser, String detail) throws IOException {
+        long size = new File(path).length();
+        int shards = (int) Math.min(ForkJoinPool.getCommonPoolParallelism() * SHARDS_PER_THREAD,
+                Math.max(1, size / MIN_SHARD_BYTES));
+        return load(path, parser, detail, shards);
+    }
+
+    /**
+     * Loads all records of a file with about the given number of shards.
+     */
+    public static <T> List<T> load(String path, Function<CsvReader, T> parser, String detail, int shards)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long[] bounds = split(channel, Math.max(1, shards));
+
+            List<Callable<Shard<T>>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                tasks.add(() -> parse(channel, start, end, parser));
+            }
+            List<Shard<T>> parsed = new ArrayList<>(tasks.size());
+            for (Future<Shard<T>> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                parsed.add(result(future));
+            }
+            return merge(channel, parsed, parser, path, detail);
+        }
+    }
+
+    /**
+     * Joins the shards in file order, reparsing a shard together with the
+     * next one when its boundary fell inside a record.
+     */
+    private static <T> List<T> merge(FileChannel channel, List<Shard<T>> parsed, Function<CsvReader, T> parser,
+                                     String path, String detail) throws IOException {
+        int total = 0;
+        for (Shard<T> shard : parsed) {
+            total += shard.records.size();
+        }
+        List<T> records = new ArrayList<>(total);
+        int lineOffset = 0;
+        int i = 0;
+        while (i < parsed.size()) {
+            Shard<T> shard = parsed.get(i);
+            while (shard.lastRowFailed && i + 1 < parsed.size()) {
+                i++;
+                shard = parse(channel, shard.start, parsed.get(i).end, parser);
+            }
+            for (Problem problem : shard.problems) {
+                String reason = problem.reason != null ? problem.reason : detail;
+                FileHandler.reportMalformedRow(path, "line " + (lineOffset + problem.line) + ": " + reason);
+            }
+            records.addAll(shard.records);
+            lineOffset += shard.lines;
+            i++;
+        }
+        return records;
+    }
+
+    /**
+     * Returns shard boundaries: 0, the offsets just after the first newline
+     * following each even split point, and the file size.
+     */
+    private static long[] split(FileChannel channel, int shards) throws IOException {
+        long size = channel.size();
+        shards = (int) Math.max(shards, (size + MAX_SHARD_BYTES - 1) / MAX_SHARD_BYTES);
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        for (int i = 1; i < shards; i++) {
+            long from = Math.max(size * i / shards, bounds.get(bounds.size() - 1));
+            long bound = nextLineStart(channel, from, size, buffer);
+            if (bound > bounds.get(bounds.size() - 1) && bound < size) {
+                bounds.add(bound);
+            }
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer buffer)
+            throws IOException {
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+
+    /**
+     * Parses the records in one byte range of the file.
+     */
+    private static <T> Shard<T> parse(FileChannel channel, long start, long end, Function<CsvReader, T> parser)
+            throws IOException {
+        Shard<T> shard = new Shard<>(start, end);
+        try (CsvReader reader = new CsvReader(
+                new InputStreamReader(new RangeInputStream(channel, start, end), StandardCharsets.UTF_8))) {
+            while (true) {
+                try {
+                    if (!reader.next()) {
+                        break;
+                    }
+                } catch (CsvFormatException e) {
+                    shard.problems.add(new Problem(e.getLineNumber(), e.getReason()));
+                    shard.lastRowFailed = true;
+                    continue;
+                }
+                shard.lastRowFailed = false;
+                T record = parser.apply(reader);
+                if (record != null) {
+                    shard.records.add(record);
+                } else {
+                    shard.problems.add(new Problem(reader.getLineNumber(), null));
+                }
+            }
+            shard.lines = reader.getLinesRead();
+        }
+        return shard;
+    }
+
+    private static <T> Shard<T> result(Future<Shard<T>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The records parsed from one byte range, with line numbers relative to
+     * the start of the range.
+     */
+    private static class Shard<T> {
+        private final long start;
+        private final long end;
+        private final List<T> records = new ArrayList<>();
+        private final List<Problem> problems = new ArrayList<>();
+        private boolean lastRowFailed;
+        private int lines;
+
+        Shard(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * A malformed row; a null reason means the row had too few fields.
+     */
+    private static class Problem {
+        private final int line;
+        private final String reason;
+
+        Problem(int line, String reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Reads one byte range of a file with positional reads, so several
+     * threads can read the same channel at once.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package library;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * An immutable table of records in insertion order with an index by ID, for
+ * {@link CatalogSnapshot}.
+ *
+ * The records are kept in chunks of up to {@link #CHUNK_SIZE} and the index
+ * in {@link #BUCKETS} hash buckets. Applying changes copies only the chunks
+ * and buckets they touch, each once per batch, and shares everything else
+ * with the table it started from, so a new version costs about the size of
+ * the changes rather than of the table, and older versions stay valid for
+ * as long as readers hold them.
+ */
+final class SnapshotTable<T> implements Iterable<T> {
+    static final int CHUNK_SIZE = 512;
+    static final int BUCKETS = 1024;
+
+    /**
+     * A run of records. Chunk numbers only grow, so the chunks of a table
+     * are in number order and a chunk is found by binary search.
+     */
+    private static final class Chunk {
+        private final long number;
+        private final Object[] records;
+
+        Chunk(long number, Object[] records) {
+            this.number = number;
+            this.records = records;
+        }
+    }
+
+    /**
+     * A record and the number of the chunk it is in.
+     */
+    private static final class Entry<T> {
+        private final T record;
+        private final long chunk;
+
+        Entry(T record, long chunk) {
+            this.record = record;
+            this.chunk = chunk;
+        }
+    }
+
+    private final Function<T, String> idOf;
+    private final Chunk[] chunks;
+    private final int[] starts;
+    private final Map<String, Entry<T>>[] buckets;
+    private final int size;
+
+    private SnapshotTable(Function<T, String> idOf, Chunk[] chunks, Map<String, Entry<T>>[] buckets) {
+        this.idOf = idOf;
+        this.chunks = chunks;
+        this.buckets = buckets;
+        this.starts = new int[chunks.length];
+        int total = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            starts[i] = total;
+            total += chunks[i].records.length;
+        }
+        this.size = total;
+    }
+
+    /**
+     * Returns an empty table of records with the given ID.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> SnapshotTable<T> empty(Function<T, String> idOf) {
+        Map<String, Entry<T>>[] buckets = (Map<String, Entry<T>>[]) new Map<?, ?>[BUCKETS];
+        Arrays.fill(buckets, Collections.emptyMap());
+        return new SnapshotTable<>(idOf, new Chunk[0], buckets);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the record with the given ID, or null.
+     */
+    T get(String id) {
+        Entry<T> entry = buckets[bucketOf(id)].get(id);
+        return entry == null ? null : entry.record;
+    }
+
+    /**
+     * Returns up to limit records starting at offset, in insertion order.
+     */
+    @SuppressWarnings("unchecked")
+    List<T> range(int offset, int limit) {
+        List<T> records = new ArrayList<>();
+        int from = Math.max(0, offset);
+        if (from >= size || limit <= 0) {
+            return records;
+        }
+        int chunk = Arrays.binarySearch(starts, from);
+        if (chunk < 0) {
+            chunk = -chunk - 2;
+        }
+        int index = from - starts[chunk];
+        while (chunk < chunks.length && records.size() < limit) {
+            Object[] run = chunks[chunk].records;
+            while (index < run.length && records.size() < limit) {
+                records.add((T) run[index++]);
+            }
+            chunk++;
+            index = 0;
+        }
+        return records;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int chunk;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (chunk < chunks.length && index >= chunks[chunk].records.length) {
+                    chunk++;
+                    index = 0;
+                }
+                return chunk < chunks.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (T) chunks[chunk].records[index++];
+            }
+        };
+    }
+
+    /**
+     * Returns a new table with the changes applied: each changed ID is
+     * replaced by its record, or removed if the record is null, and the
+     * added records are appended in order. A record whose ID is already in
+     * the table replaces it in place, and a changed record that is not yet
+     * in it is appended. This table is unchanged.
+     */
+    @SuppressWarnings("unchecked")
+    SnapshotTable<T> apply(Map<String, T> changed, List<T> added) {
+        Map<String, Entry<T>>[] newBuckets = buckets.clone();
+        boolean[] copiedBuckets = new boolean[BUCKETS];
+        Map<Long, List<Object>> working = new HashMap<>();
+        long nextNumber = chunks.length == 0 ? 0 : chunks[chunks.length - 1].number + 1;
+        List<Object> tail = null;
+        long tailNumber = -1;
+
+        List<Map.Entry<String, T>> changes = new ArrayList<>(changed.entrySet());
+        for (T record : added) {
+            changes.add(new AbstractMap.SimpleEntry<>(idOf.apply(record), record));
+        }
+        for (Map.Entry<String, T> change : changes) {
+            String id = change.getKey();
+            T record = change.getValue();
+            int bucket = bucketOf(id);
+            if (!copiedBuckets[bucket]) {
+                newBuckets[bucket] = new HashMap<>(newBuckets[bucket]);
+                copiedBuckets[bucket] = true;
+            }
+            Entry<T> old = newBuckets[bucket].get(id);
+            if (old != null) {
+                List<Object> run = working.computeIfAbsent(old.chunk, n -> chunkRecords(n));
+                int index = indexOf(run, id);
+                if (record == null) {
+                    run.remove(index);
+                    newBuckets[bucket].remove(id);
+                } else {
+                    run.set(index, record);
+                    newBuckets[bucket].put(id, new Entry<>(record, old.chunk));
+                }
+            } else if (record != null) {
+                if (tail == null) {
+                    if (chunks.length > 0 && chunks[chunks.length - 1].records.length < CHUNK_SIZE) {
+                        tailNumber = chunks[chunks.length - 1].number;
+                        tail = working.computeIfAbsent(tailNumber, n -> chunkRecords(n));
+                    } else {
+                        tailNumber = nextNumber++;
+                        tail = new ArrayList<>();
+                        working.put(tailNumber, tail);
+                    }
+                }
+                if (tail.size() >= CHUNK_SIZE) {
+                    tailNumber = nextNumber++;
+                    tail = new ArrayList<>();
+                    working.put(tailNumber, tail);
+                }
+                tail.add(record);
+                newBuckets[bucket].put(id, new Entry<>(record, tailNumber));
+            }
+        }
+
+        List<Chunk> newChunks = new ArrayList<>(chunks.length + 1);
+        for (Chunk chunk : chunks) {
+            List<Object> run = working.remove(chunk.number);
+            if (run == null) {
+                newChunks.add(chunk);
+            } else if (!run.isEmpty()) {
+                newChunks.add(new Chunk(chunk.number, run.toArray()));
+            }
+        }
+        // The rest are new chunks at the end, in number order
+        List<Long> numbers = new ArrayList<>(working.keySet());
+        Collections.sort(numbers);
+        for (long number : numbers) {
+            List<Object> run = working.get(number);
+            if (!run.isEmpty()) {
+                newChunks.add(new Chunk(number, run.toArray()));
+            }
+        }
+        return new SnapshotTable<>(idOf, newChunks.toArray(new Chunk[0]), newBuckets);
+    }
+
+    private List<Object> chunkRecords(long number) {
+        int low = 0;
+        int high = chunks.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (chunks[middle].number < number) {
+                low = middle + 1;
+            } else if (chunks[middle].number > number) {
+                high = middle - 1;
+            } else {
+                return new ArrayList<>(Arrays.asList(chunks[middle].records));
+            }
+        }
+        throw new IllegalStateException("No chunk " + number);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int indexOf(List<Object> run, String id) {
+        for (int i = 0; i < run.size(); i++) {
+            if (idOf.apply((T) run.get(i)).equals(id)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Record " + id + " is not in its chunk");
+    }
+
+    private static int bucketOf(String id) {
+        int hash = id.hashCode();
+        return (hash ^ (hash >>> 16)) & (BUCKETS - 1);
+    }
+}
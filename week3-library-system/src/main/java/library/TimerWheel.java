@@ -0,0 +1,103 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for deadlines far more numerous than they are urgent.
+ *
+ * Time is cut into ticks, and the wheel has a fixed number of slots; an item
+ * goes into the slot of the tick its deadline falls in. Advancing the wheel
+ * only looks at the slots of the ticks that passed, so finding what is due
+ * costs time in proportion to the items in those slots, not to everything
+ * scheduled. Items whose deadline is more than one turn of the wheel away
+ * stay in their slot until a later turn.
+ *
+ * Items cannot be cancelled; callers check whether an item that comes due is
+ * still current. Thread-safe.
+ */
+public class TimerWheel<T> {
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates a wheel with the given tick length and number of slots, which
+     * starts at the given time.
+     */
+    public TimerWheel(long tickMillis, int slotCount, long nowMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.currentTick = nowMillis / this.tickMillis;
+    }
+
+    /**
+     * Schedules an item. A deadline that has already passed comes due on the
+     * next advance.
+     */
+    public synchronized void schedule(T item, long deadlineMillis) {
+        // Round up, so an item never comes due before its deadline
+        long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+        slots.get(slotOf(tick)).add(new Entry<>(item, tick));
+        size++;
+    }
+
+    /**
+     * Moves the wheel to the given time and returns the items that came due.
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> due = new ArrayList<>();
+        long target = nowMillis / tickMillis;
+        // After a whole turn every slot has been visited once
+        long from = Math.max(currentTick + 1, target - slots.size() + 1);
+        for (long tick = from; tick <= target; tick++) {
+            List<Entry<T>> slot = slots.get(slotOf(tick));
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                if (slot.get(i).tick <= target) {
+                    due.add(slot.get(i).item);
+                    // Order within a slot does not matter, so fill the gap from the end
+                    slot.set(i, slot.get(slot.size() - 1));
+                    slot.remove(slot.size() - 1);
+                    size--;
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, target);
+        return due;
+    }
+
+    /**
+     * Removes all scheduled items.
+     */
+    public synchronized void clear() {
+        for (List<Entry<T>> slot : slots) {
+            slot.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the number of scheduled items, including ones no longer current.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private int slotOf(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.size());
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
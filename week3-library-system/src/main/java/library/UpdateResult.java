@@ -0,0 +1,27 @@
+package library;
+
+/**
+ * Outcome of updating or removing a book or member.
+ */
+public enum UpdateResult {
+    UPDATED("Updated successfully!"),
+    REMOVED("Removed successfully!"),
+    NOT_FOUND("Error: Record not found!"),
+    IN_USE("Error: Record has books on loan or holds!"),
+    DUPLICATE("Error: Barcode is already in use!"),
+    NOT_MOVED("Error: Record could not be added to the other branch!");
+
+    private final String message;
+
+    UpdateResult(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isSuccess() {
+        return this == UPDATED || this == REMOVED;
+    }
+}
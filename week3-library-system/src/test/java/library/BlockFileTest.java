@@ -0,0 +1,131 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a block file reads back the rows it was written with, and
+ * that a damaged or cut short file loses only the blocks that are bad, is
+ * reported, and is kept aside.
+ */
+class BlockFileTest {
+    private static final int BOOKS = 20_000;
+    private static final int MAGIC_BYTES = 8;
+    private static final int BLOCK_HEADER_BYTES = 17;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void rowsReadBackUnchanged() throws IOException {
+        List<String> rows = rows();
+        File file = write(rows);
+
+        assertTrue(BlockFile.isBlockFile(file));
+        assertFalse(BlockFile.isBlockFile(new File(dir, "missing.blk")));
+        assertTrue(BlockFile.rawLength(file) > file.length(), "blocks were not compressed");
+        assertEquals(rows, csv(load(file, new ByteArrayOutputStream())));
+        assertFalse(new File(file.getPath() + ".damaged").exists());
+    }
+
+    @Test
+    void damagedBlockIsSkippedAndReported() throws IOException {
+        List<String> rows = rows();
+        File file = write(rows);
+        int firstBlockRows;
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(MAGIC_BYTES);
+            firstBlockRows = raw.readInt();
+            raw.readInt();
+            int storedLength = raw.readInt();
+            long middle = MAGIC_BYTES + BLOCK_HEADER_BYTES + storedLength / 2;
+            raw.seek(middle);
+            int b = raw.read();
+            raw.seek(middle);
+            raw.write(b ^ 0x40);
+        }
+
+        assertTrue(firstBlockRows < rows.size(), "the file has only one block");
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        List<Book> books = load(file, report);
+        assertEquals(rows.subList(firstBlockRows, rows.size()), csv(books));
+        String reported = report.toString(StandardCharsets.UTF_8);
+        assertTrue(reported.contains("block 0 at byte 8 does not match its checksum"), reported);
+        assertTrue(new File(file.getPath() + ".damaged").exists());
+    }
+
+    @Test
+    void fileCutShortKeepsTheWholeBlocksBeforeTheCut() throws IOException {
+        List<String> rows = rows();
+        File file = write(rows);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(raw.length() * 2 / 3);
+        }
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        List<String> loaded = csv(load(file, report));
+        assertFalse(loaded.isEmpty());
+        assertTrue(loaded.size() < rows.size());
+        assertEquals(rows.subList(0, loaded.size()), loaded);
+        assertFalse(report.toString(StandardCharsets.UTF_8).isEmpty());
+        assertEquals(-1, BlockFile.rawLength(file));
+        assertTrue(new File(file.getPath() + ".damaged").exists());
+    }
+
+    /**
+     * Returns book rows with quoted line breaks and non-ASCII text, varied
+     * enough that the file takes several blocks even when compressed.
+     */
+    private static List<String> rows() {
+        List<String> rows = new ArrayList<>(BOOKS);
+        for (int i = 0; i < BOOKS; i++) {
+            String title = (i % 7 == 0 ? "Two\nlines " : "Títle ") + Long.toString(i * 2654435761L % 1_000_003, 36);
+            rows.add(new Book("B" + i, title, "Author " + i % 97, "978-" + i * 7919L % 1_000_003).toCSV());
+        }
+        return rows;
+    }
+
+    private File write(List<String> rows) throws IOException {
+        File file = new File(dir, "books.blk");
+        try (OutputStream out = new FileOutputStream(file)) {
+            assertEquals(rows.size(), BlockFile.write(out, FileHandler.BOOKS_HEADER, rows.iterator()));
+        }
+        return file;
+    }
+
+    /**
+     * Loads the file, writing what it reports to the given stream.
+     */
+    private static List<Book> load(File file, ByteArrayOutputStream report) throws IOException {
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(report, true, StandardCharsets.UTF_8));
+        try {
+            return BlockFile.load(file.getPath(), reader -> Book.fromCSV(reader, 0), "expected 5 fields");
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    private static List<String> csv(List<Book> books) {
+        List<String> rows = new ArrayList<>(books.size());
+        for (Book book : books) {
+            rows.add(book.toCSV());
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,109 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks lookups by author, author prefix and ISBN, on the index itself and
+ * through the catalog, which must keep the index in step with updates and
+ * removals and share one String per author.
+ */
+class BookIndexTest {
+
+    @Test
+    void authorsAreMatchedIgnoringCaseAndSpacing() {
+        BookIndex index = new BookIndex();
+        Book first = book("B1", "Jane  Austen", "978-0-14-143951-8");
+        Book second = book("B2", "jane austen", "0141439580");
+        index.add(first);
+        index.add(second);
+        index.add(book("B3", "Janet Frame", ""));
+
+        assertEquals(List.of(first, second), index.findByAuthor(" JANE AUSTEN ", false));
+        assertEquals(2, index.getAuthorCount());
+        assertTrue(index.findByAuthor("Jane", false).isEmpty());
+    }
+
+    @Test
+    void prefixLookupsAreOrderedByAuthor() {
+        BookIndex index = new BookIndex();
+        Book frame = book("B1", "Janet Frame", "");
+        Book austen = book("B2", "Jane Austen", "");
+        Book eyre = book("B3", "Jan Eyre", "");
+        index.add(frame);
+        index.add(austen);
+        index.add(eyre);
+        index.add(book("B4", "Ja", ""));
+
+        assertEquals(List.of(eyre, austen, frame), index.findByAuthorPrefix("jan", false));
+        assertEquals(List.of(austen, frame), index.findByAuthorPrefix("JANE", false));
+        assertTrue(index.findByAuthorPrefix("", false).isEmpty());
+    }
+
+    @Test
+    void isbnsAreMatchedWithoutHyphensOrSpaces() {
+        BookIndex index = new BookIndex();
+        Book book = book("B1", "Author", "0-8044-2957-x");
+        index.add(book);
+        index.add(book("B2", "Author", ""));
+
+        assertEquals(List.of(book), index.findByIsbn("080442957X", false));
+        assertEquals(List.of(book), index.findByIsbn("0 8044 2957 X", false));
+        assertTrue(index.findByIsbn("", false).isEmpty());
+    }
+
+    @Test
+    void availabilityIsFilteredAtLookupTime() {
+        BookIndex index = new BookIndex();
+        Book book = book("B1", "Author", "123");
+        index.add(book);
+
+        assertTrue(book.reserveCopy());
+        assertTrue(index.findByAuthor("author", true).isEmpty());
+        assertEquals(List.of(book), index.findByAuthor("author", false));
+        assertTrue(book.releaseCopy());
+        assertEquals(List.of(book), index.findByIsbn("123", true));
+    }
+
+    @Test
+    void catalogKeepsTheIndexInStep() {
+        Catalog catalog = new Catalog();
+        Book book = book("B1", "Old Author", "111");
+        catalog.addBook(book);
+        catalog.addBook(book("B2", "Other Author", "222"));
+
+        catalog.updateBook(book, book.getTitle(), "New Author", "333");
+        assertTrue(catalog.findBooksByAuthor("Old Author", false).isEmpty());
+        assertTrue(catalog.findBooksByIsbn("111", false).isEmpty());
+        assertEquals(List.of(book), catalog.findBooksByAuthor("new author", false));
+        assertEquals(List.of(book), catalog.findBooksByIsbn("333", false));
+
+        catalog.removeBook("B1");
+        assertTrue(catalog.findBooksByAuthor("New Author", false).isEmpty());
+        assertTrue(catalog.findBooksByAuthorPrefix("new", false).isEmpty());
+    }
+
+    @Test
+    void catalogSharesOneStringPerAuthor() {
+        Catalog catalog = new Catalog();
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            // A new String each time, as when the books are read from a file
+            Book book = book("B" + i, new String("Ursula K. Le Guin".toCharArray()), "");
+            catalog.addBook(book);
+            books.add(book);
+        }
+        assertSame(books.get(0).getAuthor(), books.get(1).getAuthor());
+        assertSame(books.get(0).getAuthor(), books.get(2).getAuthor());
+    }
+
+    private static Book book(String id, String author, String isbn) {
+        return new Book(id, "Title of " + id, author, isbn);
+    }
+}
@@ -0,0 +1,112 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks moving books and members between branches, and finishing moves
+ * that a crash cut short from the transfer log on the next start.
+ */
+class BranchesTest {
+    private static final List<String> NAMES = List.of("main", "east");
+
+    @TempDir
+    File dataDir;
+
+    @Test
+    void movedRecordsStayMovedAfterARestart() {
+        Branches branches = open();
+        assertTrue(branches.addBook("main", new Book("B1", "Über Alles", "Autor", "ISBN-1")));
+        assertTrue(branches.addMember("main", new Member("M1", "Zoë", "z@example.com", "555")));
+
+        assertEquals(UpdateResult.UPDATED, branches.transferBook("B1", "east"));
+        assertEquals(UpdateResult.UPDATED, branches.transferMember("M1", "east"));
+        assertEquals("east", branches.locateBook("B1"));
+        assertEquals(LoanResult.BORROWED, branches.borrowBook("M1", "B1"));
+        branches.close();
+
+        Branches reopened = open();
+        try {
+            assertNull(reopened.getBranch("main").getCatalog().findBookById("B1"));
+            assertEquals("Über Alles", reopened.getBranch("east").getCatalog().findBookById("B1").getTitle());
+            assertEquals("Zoë", reopened.getBranch("east").getCatalog().findMemberById("M1").getName());
+            assertFalse(new File(transferLog()).exists(), "finished transfers left in the log");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void recordsInUseAreNotMoved() {
+        Branches branches = open();
+        try {
+            assertTrue(branches.addBook("main", new Book("B1", "Title", "Author", "ISBN-1")));
+            assertTrue(branches.addMember("main", new Member("M1", "Name", "m@example.com", "555")));
+            assertEquals(LoanResult.BORROWED, branches.borrowBook("M1", "B1"));
+
+            assertFalse(branches.transferBook("B1", "east").isSuccess());
+            assertFalse(branches.transferMember("M1", "east").isSuccess());
+            assertEquals("main", branches.locateBook("B1"));
+            assertEquals("main", branches.locateMember("M1"));
+            assertEquals(UpdateResult.NOT_FOUND, branches.transferBook("B9", "east"));
+        } finally {
+            branches.close();
+        }
+    }
+
+    @Test
+    void interruptedTransfersAreFinishedOnStart() throws IOException {
+        Branches branches = open();
+        Book stillInSource = new Book("B1", "Not yet moved", "Author", "ISBN-1");
+        Book inNeither = new Book("B2", "Removed, not yet added", "Author", "ISBN-2");
+        assertTrue(branches.addBook("main", stillInSource));
+        assertTrue(branches.addBook("main", inNeither));
+        assertTrue(branches.getBranch("main").removeBook("B2").isSuccess());
+        branches.close();
+
+        Files.write(new File(transferLog()).toPath(), List.of(
+                CsvWriter.join("TRANSFER", "1", "BOOK", "B1", "main", "east") + "," + stillInSource.toCSV(),
+                CsvWriter.join("TRANSFER", "2", "BOOK", "B2", "main", "east") + "," + inNeither.toCSV(),
+                CsvWriter.join("TRANSFER", "3", "BOOK", "B3", "main", "west") + ",B3,Lost,Author,ISBN-3,true",
+                "DONE,\"2"), StandardCharsets.UTF_8);
+
+        Branches reopened = open();
+        try {
+            Catalog east = reopened.getBranch("east").getCatalog();
+            assertNotNull(east.findBookById("B1"));
+            assertNotNull(east.findBookById("B2"));
+            assertNull(reopened.getBranch("main").getCatalog().findBookById("B1"));
+            assertEquals("Removed, not yet added", east.findBookById("B2").getTitle());
+
+            // The move to an unknown branch stays open, and new moves do not reuse its number
+            List<String> log = Files.readAllLines(new File(transferLog()).toPath(), StandardCharsets.UTF_8);
+            assertTrue(log.stream().anyMatch(line -> line.startsWith("TRANSFER,3,")));
+            assertTrue(reopened.addBook("main", new Book("B4", "Title", "Author", "ISBN-4")));
+            assertEquals(UpdateResult.UPDATED, reopened.transferBook("B4", "east"));
+            log = Files.readAllLines(new File(transferLog()).toPath(), StandardCharsets.UTF_8);
+            assertTrue(log.stream().anyMatch(line -> line.startsWith("TRANSFER,4,BOOK,B4,")), log.toString());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private Branches open() {
+        return Branches.open(dataDir.getPath(), NAMES);
+    }
+
+    private String transferLog() {
+        return Branches.transferLogFile(dataDir.getPath());
+    }
+}
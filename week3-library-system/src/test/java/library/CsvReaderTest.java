@@ -0,0 +1,129 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the RFC 4180 cases of {@link CsvReader}: quoted fields with commas,
+ * doubled quotes and line breaks, empty fields, CRLF endings, and malformed
+ * rows that are reported and skipped. Most inputs are also read through a
+ * tiny buffer, so fields and line endings straddle buffer refills.
+ */
+class CsvReaderTest {
+
+    @Test
+    void plainFieldsAreSplitOnCommas() throws IOException {
+        assertEquals(List.of(List.of("B1", "Title", "Author")), rows("B1,Title,Author\n"));
+    }
+
+    @Test
+    void emptyFieldsAreKept() throws IOException {
+        List<List<String>> rows = rows(",a,,\n");
+        assertEquals(List.of(List.of("", "a", "", "")), rows);
+
+        CsvReader reader = CsvReader.of("x,,y");
+        assertTrue(reader.next());
+        assertFalse(reader.isEmpty(0));
+        assertTrue(reader.isEmpty(1));
+    }
+
+    @Test
+    void quotedFieldsMayContainCommasQuotesAndLineBreaks() throws IOException {
+        String text = "\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",\"\"\n";
+        assertEquals(List.of(List.of("a,b", "say \"hi\"", "two\nlines", "")), rows(text));
+    }
+
+    @Test
+    void crlfAndLfEndingsAndMissingLastEndingAreAccepted() throws IOException {
+        assertEquals(List.of(List.of("a", "b"), List.of("c", "d"), List.of("e")), rows("a,b\r\nc,d\ne"));
+    }
+
+    @Test
+    void blankAndCommentLinesAreSkipped() throws IOException {
+        assertEquals(List.of(List.of("a"), List.of("b")), rows("# header\n\na\r\n\r\n#,x\nb\n"));
+    }
+
+    @Test
+    void lineNumbersCountLineBreaksInsideQuotes() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("# header\n\"x\ny\",1\nz\n"));
+        assertTrue(reader.next());
+        assertEquals(2, reader.getLineNumber());
+        assertTrue(reader.next());
+        assertEquals(4, reader.getLineNumber());
+        assertFalse(reader.next());
+        assertEquals(4, reader.getLinesRead());
+    }
+
+    @Test
+    void writerOutputReadsBackUnchanged() throws IOException {
+        String[] fields = {"#not a comment", "comma,", "quote\"", "cr\rlf\r\n", "", "plain"};
+        CsvReader reader = new CsvReader(new StringReader(CsvWriter.join(fields) + "\n"), 3);
+        assertTrue(reader.next());
+        assertEquals(fields.length, reader.getFieldCount());
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(fields[i], reader.getField(i));
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    void textAfterClosingQuoteIsReportedAndTheRowSkipped() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("a\n\"b\"x,c\nd\n"));
+        assertTrue(reader.next());
+        CsvFormatException e = assertThrows(CsvFormatException.class, reader::next);
+        assertEquals(2, e.getLineNumber());
+        assertTrue(reader.next());
+        assertEquals("d", reader.getField(0));
+    }
+
+    @Test
+    void unterminatedQuoteAtTheEndIsReported() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("a\n\"half a field\n"));
+        assertTrue(reader.next());
+        CsvFormatException e = assertThrows(CsvFormatException.class, reader::next);
+        assertEquals(2, e.getLineNumber());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    void getBooleanIgnoresCase() throws IOException {
+        CsvReader reader = CsvReader.of("TRUE,true,yes,truer");
+        assertTrue(reader.next());
+        assertTrue(reader.getBoolean(0));
+        assertTrue(reader.getBoolean(1));
+        assertFalse(reader.getBoolean(2));
+        assertFalse(reader.getBoolean(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> reader.getField(4));
+    }
+
+    /**
+     * Reads all rows with the default buffer and with a 2-char buffer, and
+     * checks that both give the same result.
+     */
+    private static List<List<String>> rows(String text) throws IOException {
+        List<List<String>> rows = read(new CsvReader(new StringReader(text)));
+        assertEquals(rows, read(new CsvReader(new StringReader(text), 2)), "result depends on the buffer size");
+        return rows;
+    }
+
+    private static List<List<String>> read(CsvReader reader) throws IOException {
+        List<List<String>> rows = new ArrayList<>();
+        while (reader.next()) {
+            List<String> row = new ArrayList<>();
+            for (int i = 0; i < reader.getFieldCount(); i++) {
+                row.add(reader.getField(i));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+}
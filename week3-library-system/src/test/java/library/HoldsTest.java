@@ -0,0 +1,129 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the order holds are served in, that holds run out on time through
+ * the timer wheel, and that a copy kept for a hold goes to the right member
+ * in a running library and after a restart.
+ */
+class HoldsTest {
+    private static final long MINUTE = 60_000;
+
+    @TempDir
+    File dataDir;
+
+    @Test
+    void holdsAreServedByPriorityThenInOrder() {
+        HoldQueue holds = new HoldQueue();
+        long now = System.currentTimeMillis();
+        holds.place("B1", "A", 0, holds.nextSequence(), now + MINUTE);
+        holds.place("B1", "B", 1, holds.nextSequence(), now + MINUTE);
+        holds.place("B1", "C", 0, holds.nextSequence(), now + MINUTE);
+        assertNull(holds.place("B1", "A", 5, holds.nextSequence(), now + MINUTE));
+        assertEquals(3, holds.getQueueLength("B1"));
+
+        assertEquals("B", holds.promoteNext("B1", now, now + MINUTE).getMemberId());
+        assertEquals("A", holds.promoteNext("B1", now, now + MINUTE).getMemberId());
+        assertTrue(holds.hasReady("B1"));
+        assertEquals(1, holds.getQueueLength("B1"));
+    }
+
+    @Test
+    void cancelledAndLapsedHoldsArePassedOver() {
+        HoldQueue holds = new HoldQueue();
+        long now = System.currentTimeMillis();
+        holds.place("B1", "A", 0, holds.nextSequence(), now + MINUTE);
+        holds.place("B1", "B", 0, holds.nextSequence(), now - 1);
+        holds.place("B1", "C", 0, holds.nextSequence(), now + MINUTE);
+        assertNotNull(holds.remove("B1", "A"));
+
+        assertEquals("C", holds.promoteNext("B1", now, now + MINUTE).getMemberId());
+        assertNull(holds.promoteNext("B1", now, now + MINUTE));
+        assertTrue(holds.hasHold("B", "B1"), "a lapsed hold is left for expiry");
+    }
+
+    @Test
+    void holdsRunOutOnlyOnceTheirDeadlinePasses() {
+        HoldQueue holds = new HoldQueue();
+        long now = System.currentTimeMillis();
+        Hold waiting = holds.place("B1", "A", 0, holds.nextSequence(), now + 5_000);
+        Hold ready = holds.place("B2", "B", 0, holds.nextSequence(), now + 10 * MINUTE);
+        holds.promoteNext("B2", now, now + 3_000);
+        Hold cancelled = holds.place("B3", "C", 0, holds.nextSequence(), now + 4_000);
+        holds.remove("B3", "C");
+
+        assertTrue(holds.takeExpired(now + 2_000).isEmpty());
+        assertEquals(List.of(ready), holds.takeExpired(now + 4_500));
+        holds.remove("B2", "B");
+        assertEquals(List.of(waiting), holds.takeExpired(now + 6_500));
+        holds.remove("B1", "A");
+        // The deadline the ready hold had while waiting comes up too, but it is done
+        assertTrue(holds.takeExpired(now + 20 * MINUTE).isEmpty());
+        assertEquals(Hold.State.DONE, cancelled.getState());
+        assertEquals(0, holds.size());
+    }
+
+    @Test
+    void timerWheelKeepsDeadlinesBeyondOneTurn() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8, 0);
+        wheel.schedule("soon", 25);
+        wheel.schedule("next turn", 125);
+        wheel.schedule("overdue", -50);
+        assertEquals(3, wheel.size());
+
+        assertEquals(List.of("overdue"), wheel.advance(15));
+        assertEquals(List.of("soon"), wheel.advance(30));
+        assertTrue(wheel.advance(110).isEmpty(), "came due a turn early");
+        assertEquals(List.of("next turn"), wheel.advance(130));
+        assertEquals(0, wheel.size());
+        // Skipping more than a whole turn still visits every slot once
+        wheel.schedule("far", 500);
+        assertEquals(List.of("far"), wheel.advance(10_000));
+    }
+
+    @Test
+    void returnedCopyIsKeptForTheNextHoldAcrossARestart() {
+        Library library = new Library(dataDir.getPath());
+        assertTrue(library.addBook(new Book("B1", "Only Copy", "Author", "ISBN-1")));
+        for (String id : new String[] {"A", "B", "C"}) {
+            assertTrue(library.addMember(new Member(id, "Member " + id, id + "@example.com", "555")));
+        }
+        assertEquals(LoanResult.BORROWED, library.borrowBook("A", "B1"));
+        assertEquals(HoldResult.PLACED, library.placeHold("B", "B1"));
+        assertEquals(HoldResult.PLACED, library.placeHold("C", "B1", 0));
+        assertEquals(HoldResult.ALREADY_BORROWED, library.placeHold("A", "B1"));
+        assertEquals(HoldResult.ALREADY_HELD, library.placeHold("B", "B1"));
+
+        assertEquals(LoanResult.RETURNED, library.returnBook("A", "B1"));
+        assertEquals(0, library.getCatalog().findBookById("B1").getAvailableCopies());
+        library.close();
+
+        Library reloaded = new Library(dataDir.getPath());
+        try {
+            Hold kept = reloaded.getCatalog().getHolds().find("B1", "B");
+            assertNotNull(kept);
+            assertTrue(kept.isReady());
+            assertEquals(0, reloaded.getCatalog().findBookById("B1").getAvailableCopies());
+            assertEquals(LoanResult.RESERVED, reloaded.borrowBook("C", "B1"));
+
+            // Cancelling a ready hold passes the copy on to the next in line
+            assertEquals(HoldResult.CANCELLED, reloaded.cancelHold("B", "B1"));
+            assertEquals(Hold.State.READY, reloaded.getCatalog().getHolds().find("B1", "C").getState());
+            assertEquals(LoanResult.BORROWED, reloaded.borrowBook("C", "B1"));
+            assertFalse(reloaded.getCatalog().getHolds().hasHoldsOn("B1"));
+        } finally {
+            reloaded.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Hammers borrowBook/returnBook from many threads on a small, heavily shared
+ * set of books, then checks that no copy was lent twice and that no member
+ * went over the limit, both in the running library and in one that replays
+ * its journal.
+ */
+class LoanConcurrencyTest {
+    private static final int THREADS = 16;
+    private static final int OPERATIONS = 2000;
+    private static final int BOOKS = 20;
+    private static final int MEMBERS = 50;
+
+    @TempDir
+    File dataDir;
+
+    @Test
+    void singleCopiesAreNeverLentTwice() throws Exception {
+        checkLoans(1);
+    }
+
+    @Test
+    void copiesOnTheShelfMatchTheLoans() throws Exception {
+        checkLoans(3);
+    }
+
+    private void checkLoans(int copies) throws Exception {
+        Library library = new Library(dataDir.getPath());
+        for (int i = 0; i < BOOKS; i++) {
+            Book book = new Book("B" + i, "Title " + i, "Author " + i, "ISBN-" + i);
+            book.setCopies(copies, copies);
+            library.addBook(book);
+        }
+        for (int i = 0; i < MEMBERS; i++) {
+            library.addMember(new Member("M" + i, "Member " + i, "m" + i + "@example.com", "555-" + i));
+        }
+
+        AtomicLong borrowed = new AtomicLong();
+        AtomicLong returned = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < OPERATIONS; i++) {
+                    String memberId = "M" + random.nextInt(MEMBERS);
+                    String bookId = "B" + random.nextInt(BOOKS);
+                    if (random.nextBoolean()) {
+                        if (library.borrowBook(memberId, bookId) == LoanResult.BORROWED) {
+                            borrowed.incrementAndGet();
+                        }
+                    } else if (library.returnBook(memberId, bookId) == LoanResult.RETURNED) {
+                        returned.incrementAndGet();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long onLoan = borrowed.get() - returned.get();
+        assertTrue(borrowed.get() > 0, "no borrow succeeded");
+        checkCatalog(library.getCatalog(), onLoan);
+        library.close();
+
+        // A fresh library replaying the same journal must see the same state
+        Library reloaded = new Library(dataDir.getPath());
+        try {
+            checkCatalog(reloaded.getCatalog(), onLoan);
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    /**
+     * Checks that each book's copies off the shelf match its holders, that
+     * no member holds a book twice, and that no member is over the limit.
+     */
+    private static void checkCatalog(Catalog catalog, long expectedOnLoan) {
+        Map<String, Integer> holders = new HashMap<>();
+        long loans = 0;
+        for (Member member : catalog.getMembers()) {
+            assertTrue(member.getBorrowedBooksCount() <= Library.MAX_BORROWED_BOOKS, "member over limit: " + member);
+            Set<String> own = new HashSet<>(member.getBorrowedBookIds());
+            assertEquals(member.getBorrowedBooksCount(), own.size(), "member holds a book twice: " + member);
+            for (String bookId : own) {
+                holders.merge(bookId, 1, Integer::sum);
+                loans++;
+            }
+        }
+        for (Book book : catalog.getBooks()) {
+            assertEquals(holders.getOrDefault(book.getId(), 0), book.getCopies() - book.getAvailableCopies(),
+                    "copies on the shelf do not match the loans of " + book);
+        }
+        assertEquals(expectedOnLoan, loans, "books on loan");
+    }
+}
@@ -0,0 +1,152 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a library comes back in the same state after a restart: from
+ * the journal alone, from a full snapshot plus a delta, from a rotated
+ * journal that a crash kept from being dropped, and despite a temporary file
+ * and a torn journal entry left by a crash.
+ */
+class RecoveryTest {
+    @TempDir
+    File dataDir;
+
+    @Test
+    void journalAloneRestoresUnsavedChanges() {
+        Library library = open();
+        populate(library);
+        assertEquals(LoanResult.BORROWED, library.borrowBook("M1", "B1"));
+        assertTrue(library.updateMember(new Member("M2", "Émile Zola", "ez@example.com", "555-2")).isSuccess());
+        library.close();
+
+        assertFalse(new File(FileHandler.booksFile(dataDir.getPath())).exists());
+        Library reloaded = open();
+        try {
+            assertEquals(3, reloaded.getCatalog().getBookCount());
+            assertEquals(List.of("B1"), reloaded.getCatalog().findMemberById("M1").getBorrowedBookIds());
+            assertEquals(1, reloaded.getCatalog().findBookById("B1").getAvailableCopies());
+            assertEquals("Émile Zola", reloaded.getCatalog().findMemberById("M2").getName());
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    void secondSaveWritesADeltaThatIsAppliedOnLoad() throws IOException {
+        String booksFile = FileHandler.booksFile(dataDir.getPath());
+        Library library = open();
+        populate(library);
+        assertTrue(library.saveData());
+        assertTrue(new File(booksFile).exists());
+        assertFalse(new File(FileHandler.deltaFile(booksFile)).exists());
+        byte[] snapshot = Files.readAllBytes(new File(booksFile).toPath());
+
+        Book changed = new Book("B2", "Second, revised", "Author Two", "ISBN-2");
+        assertTrue(library.updateBook(changed).isSuccess());
+        assertTrue(library.removeBook("B3").isSuccess());
+        assertTrue(library.addBook(new Book("B4", "Fourth", "Author Four", "ISBN-4")));
+        assertTrue(library.saveData());
+        library.close();
+
+        // Only the changes were written, next to the untouched snapshot
+        assertTrue(new File(FileHandler.deltaFile(booksFile)).exists());
+        assertEquals(new String(snapshot, StandardCharsets.UTF_8),
+                new String(Files.readAllBytes(new File(booksFile).toPath()), StandardCharsets.UTF_8));
+        assertEquals(0, new File(FileHandler.journalFile(dataDir.getPath())).length(), "journal not compacted");
+
+        Library reloaded = open();
+        try {
+            Catalog catalog = reloaded.getCatalog();
+            assertEquals(3, catalog.getBookCount());
+            assertEquals("Second, revised", catalog.findBookById("B2").getTitle());
+            assertNull(catalog.findBookById("B3"));
+            assertNotNull(catalog.findBookById("B4"));
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    void rotatedJournalLeftByACrashIsReplayedFirst() throws IOException {
+        String journalFile = FileHandler.journalFile(dataDir.getPath());
+        Library library = open();
+        populate(library);
+        assertEquals(LoanResult.BORROWED, library.borrowBook("M1", "B1"));
+        library.close();
+
+        // A crash after the journal was rotated but before the snapshot was written
+        Files.move(new File(journalFile).toPath(), new File(journalFile + ".1").toPath());
+        library = open();
+        assertEquals(LoanResult.RETURNED, library.returnBook("M1", "B1"));
+        assertEquals(LoanResult.BORROWED, library.borrowBook("M2", "B1"));
+        library.close();
+
+        Library reloaded = open();
+        try {
+            Catalog catalog = reloaded.getCatalog();
+            assertTrue(catalog.findMemberById("M1").getBorrowedBookIds().isEmpty());
+            assertEquals(List.of("B1"), catalog.findMemberById("M2").getBorrowedBookIds());
+            assertEquals(1, catalog.findBookById("B1").getAvailableCopies());
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    void tempFileAndTornJournalEntryFromACrashAreIgnored() throws IOException {
+        String booksFile = FileHandler.booksFile(dataDir.getPath());
+        Library library = open();
+        populate(library);
+        assertTrue(library.saveData());
+        assertEquals(LoanResult.BORROWED, library.borrowBook("M1", "B2"));
+        library.close();
+
+        // A full save cut short before the rename, and a journal write cut short
+        Files.write(new File(booksFile + ".tmp").toPath(), "B1,\"half a rec".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(FileHandler.journalFile(dataDir.getPath())).toPath(),
+                "BORROWED,M2,\"B".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        Library reloaded = open();
+        try {
+            Catalog catalog = reloaded.getCatalog();
+            assertEquals(3, catalog.getBookCount());
+            assertEquals("First", catalog.findBookById("B1").getTitle());
+            assertEquals(List.of("B2"), catalog.findMemberById("M1").getBorrowedBookIds());
+            assertTrue(catalog.findMemberById("M2").getBorrowedBookIds().isEmpty());
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    private Library open() {
+        return new Library(dataDir.getPath());
+    }
+
+    /**
+     * Adds three books, B1 with two copies, and two members.
+     */
+    private static void populate(Library library) {
+        Book first = new Book("B1", "First", "Author One", "ISBN-1");
+        first.setCopies(2, 2);
+        assertTrue(library.addBook(first));
+        assertTrue(library.addBook(new Book("B2", "Second", "Author Two", "ISBN-2")));
+        assertTrue(library.addBook(new Book("B3", "Third", "Author Three", "ISBN-3")));
+        assertTrue(library.addMember(new Member("M1", "Member One", "m1@example.com", "555-1")));
+        assertTrue(library.addMember(new Member("M2", "Member Two", "m2@example.com", "555-2")));
+    }
+}
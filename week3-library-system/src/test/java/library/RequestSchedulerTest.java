@@ -0,0 +1,122 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the scheduler refuses requests with the right result (the 429
+ * and 503 answers of the server) and hands freed slots to the most urgent
+ * waiting request.
+ */
+class RequestSchedulerTest {
+
+    @Test
+    void memberOverTheRateIsRefusedWithARetryTime() {
+        RequestScheduler scheduler = new RequestScheduler(4, 10, 1000, 0.5, 2);
+        for (int i = 0; i < 2; i++) {
+            try (RequestScheduler.Permit permit = scheduler.admit(RequestScheduler.Lane.RECORDS, "M1")) {
+                assertTrue(permit.isAdmitted());
+            }
+        }
+        try (RequestScheduler.Permit permit = scheduler.admit(RequestScheduler.Lane.RECORDS, "M1")) {
+            assertEquals(AdmissionResult.RATE_LIMITED, permit.getResult());
+            assertTrue(permit.getRetryAfterMillis() > 1000 && permit.getRetryAfterMillis() <= 2001,
+                    "retry after " + permit.getRetryAfterMillis());
+        }
+        try (RequestScheduler.Permit permit = scheduler.admit(RequestScheduler.Lane.RECORDS, "M2")) {
+            assertTrue(permit.isAdmitted(), "one member's rate held up another");
+        }
+        try (RequestScheduler.Permit permit = scheduler.admit(RequestScheduler.Lane.RECORDS, null)) {
+            assertTrue(permit.isAdmitted(), "a request for no member was rate limited");
+        }
+    }
+
+    @Test
+    void fullQueueIsRefusedAtOnce() {
+        RequestScheduler scheduler = new RequestScheduler(1, 0, 5000, 0, 1);
+        try (RequestScheduler.Permit running = scheduler.admit(RequestScheduler.Lane.CIRCULATION, null)) {
+            assertTrue(running.isAdmitted());
+            long start = System.nanoTime();
+            RequestScheduler.Permit refused = scheduler.admit(RequestScheduler.Lane.CIRCULATION, null);
+            assertEquals(AdmissionResult.QUEUE_FULL, refused.getResult());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "waited before refusing");
+            refused.close();
+        }
+        try (RequestScheduler.Permit permit = scheduler.admit(RequestScheduler.Lane.CIRCULATION, null)) {
+            assertTrue(permit.isAdmitted(), "the slot was not freed");
+        }
+    }
+
+    @Test
+    void requestWaitingTooLongTimesOut() {
+        RequestScheduler scheduler = new RequestScheduler(1, 10, 50, 0, 1);
+        try (RequestScheduler.Permit running = scheduler.admit(RequestScheduler.Lane.BULK, null)) {
+            assertTrue(running.isAdmitted());
+            RequestScheduler.Permit late = scheduler.admit(RequestScheduler.Lane.BULK, null);
+            assertEquals(AdmissionResult.TIMED_OUT, late.getResult());
+            assertFalse(late.isAdmitted());
+        }
+        assertTrue(scheduler.toJSON().contains("\"timedOut\":1"), scheduler.toJSON());
+    }
+
+    @Test
+    void freedSlotGoesToTheMostUrgentLane() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1, 10, 10_000, 0, 1);
+        List<RequestScheduler.Lane> order = new ArrayList<>();
+        RequestScheduler.Permit running = scheduler.admit(RequestScheduler.Lane.RECORDS, null);
+        CompletableFuture<Void> bulk = waitFor(scheduler, RequestScheduler.Lane.BULK, order);
+        awaitQueued(scheduler, 1);
+        CompletableFuture<Void> circulation = waitFor(scheduler, RequestScheduler.Lane.CIRCULATION, order);
+        awaitQueued(scheduler, 2);
+
+        running.close();
+        CompletableFuture.allOf(bulk, circulation).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(RequestScheduler.Lane.CIRCULATION, RequestScheduler.Lane.BULK), order);
+    }
+
+    /**
+     * Starts a request on another thread that records its lane once admitted.
+     */
+    private static CompletableFuture<Void> waitFor(RequestScheduler scheduler, RequestScheduler.Lane lane,
+                                                   List<RequestScheduler.Lane> order) {
+        return CompletableFuture.runAsync(() -> {
+            try (RequestScheduler.Permit permit = scheduler.admit(lane, null)) {
+                assertTrue(permit.isAdmitted());
+                synchronized (order) {
+                    order.add(lane);
+                }
+            }
+        }, task -> new Thread(task).start());
+    }
+
+    private static void awaitQueued(RequestScheduler scheduler, int queued) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline && queuedRequests(scheduler) < queued) {
+            Thread.sleep(5);
+        }
+        assertEquals(queued, queuedRequests(scheduler));
+    }
+
+    private static int queuedRequests(RequestScheduler scheduler) {
+        String json = scheduler.toJSON();
+        int total = 0;
+        int at = 0;
+        while ((at = json.indexOf("\"queued\":", at)) >= 0) {
+            at += "\"queued\":".length();
+            int end = at;
+            while (Character.isDigit(json.charAt(end))) {
+                end++;
+            }
+            total += Integer.parseInt(json.substring(at, end));
+        }
+        return total;
+    }
+}
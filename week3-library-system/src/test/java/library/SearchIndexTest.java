@@ -0,0 +1,111 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the bounded edit distance and the prefix, typo tolerant and ranked
+ * matching of {@link SearchIndex}.
+ */
+class SearchIndexTest {
+
+    @Test
+    void editDistanceCountsInsertionsDeletionsSubstitutionsAndSwaps() {
+        assertEquals(0, SearchIndex.editDistance("gatsby", "gatsby", 2));
+        assertEquals(1, SearchIndex.editDistance("gatsby", "gatsbby", 2));
+        assertEquals(1, SearchIndex.editDistance("gatsby", "gatby", 2));
+        assertEquals(1, SearchIndex.editDistance("gatsby", "gatsbu", 2));
+        assertEquals(1, SearchIndex.editDistance("john", "jhon", 2));
+        assertEquals(3, SearchIndex.editDistance("kitten", "sitting", 3));
+        assertEquals(1, SearchIndex.editDistance("", "a", 1));
+    }
+
+    @Test
+    void editDistanceStopsJustPastTheLimit() {
+        assertEquals(3, SearchIndex.editDistance("kitten", "sitting", 2));
+        assertEquals(2, SearchIndex.editDistance("a", "abcdef", 1));
+        assertEquals(3, SearchIndex.editDistance("abcdef", "badcfe", 2));
+    }
+
+    @Test
+    void termsMatchPrefixesAndNearbyWords() {
+        SearchIndex index = new SearchIndex(true);
+        Book gatsby = book("B1", "The Great Gatsby", "F. Scott Fitzgerald");
+        Book john = book("B2", "Letters", "John Keats");
+        index.add(gatsby);
+        index.add(john);
+
+        assertEquals(List.of(gatsby), index.search("gatsbby", 2));
+        assertEquals(List.of(gatsby), index.search("fitzg", 2));
+        assertEquals(List.of(john), index.search("jhon", 2));
+        assertEquals(List.of(gatsby), index.search("GREAT gatsby fitzgerald", 2));
+        assertTrue(index.search("great keats", 2).isEmpty());
+        assertTrue(index.search("gatsbby", 0).isEmpty());
+    }
+
+    @Test
+    void shortTermsAllowFewerEdits() {
+        SearchIndex index = new SearchIndex(true);
+        Book it = book("B1", "It", "Stephen King");
+        index.add(it);
+
+        assertTrue(index.search("at", 2).isEmpty(), "a two-letter term matched with an edit");
+        assertEquals(List.of(it), index.search("kimg", 2));
+        assertTrue(index.search("kimm", 2).isEmpty(), "a four-letter term matched with two edits");
+    }
+
+    @Test
+    void exactWordsRankBeforePrefixesAndTypos() {
+        SearchIndex index = new SearchIndex(true);
+        Book fuzzy = book("B1", "Tune Up", "Someone");
+        Book prefix = book("B2", "Dunes of the Sahara", "Someone");
+        Book exact = book("B3", "Dune", "Frank Herbert");
+        index.add(fuzzy);
+        index.add(prefix);
+        index.add(exact);
+
+        assertEquals(List.of(exact, prefix, fuzzy), index.search("dune", 1));
+    }
+
+    @Test
+    void removedBooksAreNotFound() {
+        SearchIndex index = new SearchIndex(true);
+        Book book = book("B1", "Middlemarch", "George Eliot");
+        index.add(book);
+        index.remove(book);
+
+        assertTrue(index.search("middlemarch", 2).isEmpty());
+        assertTrue(index.search("middlemarsh", 2).isEmpty());
+        assertEquals(0, index.getTokenCount());
+    }
+
+    @Test
+    void withoutTypoToleranceOnlyPrefixesMatch() {
+        SearchIndex index = new SearchIndex(false);
+        Book book = book("B1", "The Great Gatsby", "F. Scott Fitzgerald");
+        index.add(book);
+
+        assertEquals(List.of(book), index.search("gats", 2));
+        assertTrue(index.search("gatsbby", 2).isEmpty());
+    }
+
+    @Test
+    void tokensAreLowercasedTheSameInEveryLocale() {
+        Locale before = Locale.getDefault();
+        Locale.setDefault(Locale.forLanguageTag("tr"));
+        try {
+            assertEquals(List.of("title", "ıi", "çe", "2nd"), SearchIndex.tokenize("TITLE, ıI: çE (2nd)"));
+        } finally {
+            Locale.setDefault(before);
+        }
+    }
+
+    private static Book book(String id, String title, String author) {
+        return new Book(id, title, author, "");
+    }
+}
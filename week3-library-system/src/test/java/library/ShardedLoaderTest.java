@@ -0,0 +1,110 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a sharded load gives the same books, in the same order, as
+ * reading the file from start to end, however the shard boundaries fall:
+ * inside quoted fields whose lines would parse as books of their own,
+ * next to multi-byte characters, and next to malformed rows, which must be
+ * reported with the same line numbers.
+ */
+class ShardedLoaderTest {
+    private static final int BOOKS = 2000;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void everyShardCountGivesTheSequentialResult() throws IOException {
+        String text = catalog();
+        File file = new File(dir, "books.txt");
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        List<String> expected = readSequentially(text);
+
+        List<Book> books = new ArrayList<>();
+        String expectedReport = load(file, 1, books);
+        assertEquals(expected, csv(books));
+        assertEquals(BOOKS / 250, expectedReport.lines().count());
+        for (int shards = 2; shards <= 64; shards++) {
+            books.clear();
+            String report = load(file, shards, books);
+            assertEquals(expected, csv(books), "with " + shards + " shards");
+            assertEquals(expectedReport, report, "malformed rows reported with " + shards + " shards");
+        }
+    }
+
+    /**
+     * Loads the file with the given number of shards into books, and returns
+     * what was reported about malformed rows.
+     */
+    private static String load(File file, int shards, List<Book> books) throws IOException {
+        PrintStream err = System.err;
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(report, true, StandardCharsets.UTF_8));
+        try {
+            books.addAll(ShardedLoader.load(file.getPath(), reader -> Book.fromCSV(reader, 0), "expected 5 fields",
+                    shards));
+        } finally {
+            System.setErr(err);
+        }
+        return report.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a books file in which every third title spans several lines,
+     * each of which would parse as a book on its own, with some non-ASCII
+     * text and a few rows with too few fields.
+     */
+    private static String catalog() {
+        StringBuilder text = new StringBuilder(FileHandler.BOOKS_HEADER).append('\n');
+        for (int i = 0; i < BOOKS; i++) {
+            String title = "Title " + i;
+            if (i % 3 == 0) {
+                title += "\nFAKE" + i + ",Not a book,Nobody,000,true\nFAKE" + i + "b,Again,Nobody,000,true";
+            } else if (i % 3 == 1) {
+                title += " – Ünïcødé ✓";
+            }
+            text.append(CsvWriter.join("B" + i, title, "Author " + i % 50, "ISBN-" + i, "true")).append('\n');
+            if (i % 250 == 0) {
+                text.append("BROKEN").append(i).append(",too few\n");
+            }
+        }
+        return text.toString();
+    }
+
+    private static List<String> readSequentially(String text) throws IOException {
+        List<Book> books = new ArrayList<>();
+        try (CsvReader reader = new CsvReader(new StringReader(text))) {
+            while (reader.next()) {
+                Book book = Book.fromCSV(reader, 0);
+                if (book != null) {
+                    books.add(book);
+                }
+            }
+        }
+        assertEquals(BOOKS, books.size());
+        return csv(books);
+    }
+
+    private static List<String> csv(List<Book> books) {
+        List<String> rows = new ArrayList<>(books.size());
+        for (Book book : books) {
+            rows.add(book.toCSV());
+        }
+        return rows;
+    }
+}